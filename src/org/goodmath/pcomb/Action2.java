@@ -0,0 +1,27 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parse action which combines the results of 2 parsers into a single result.
+ *
+ * @param <A> the type of the first value
+ * @param <B> the type of the second value
+ * @param <Transformed> the combined result type.
+ */
+public interface Action2<A, B, Transformed> {
+  Transformed run(A a, B b);
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memoization policy which decides at runtime which rules of a grammar are worth memoizing.
+ *
+ * Memoizing every parser makes backtracking cheap, but costs memory and cache locality for
+ * rules that are never re-run; memoizing nothing lets choices re-parse the same input over and
+ * over. A rule wrapped with memo keeps track of how often it's invoked again on an input it
+ * was recently invoked on. After each window of invocations, the policy turns memoization
+ * on for rules where at least enableRate of the invocations were repeats, and off again for
+ * memoized rules where fewer than disableRate of them were cache hits.
+ *
+ * The decisions can be read with getDecisions, and frozen into a fixed policy with
+ * fixed(decisions), or compiled into a generated parser by GrammarGenerator.
+ *
+ * Each rule remembers recent inputs and results in a small table indexed by the input's
+ * hashCode, and compares entries with equals, so memoized rules must be pure functions of their
+ * input. The tables belong to one parse on one thread: they're kept while a parse started by
+ * parse(root, in) is running, or otherwise while the outermost memoized rule on the thread is
+ * running, and cleared when it finishes. Only the statistics and decisions last from one parse
+ * to the next. Even within a parse, inputs are compared by position rather than content, so a
+ * rule can't be memoized over a buffer that changes while it's being parsed.
+ *
+ * The counters aren't synchronized, so with several threads they're approximate, which only
+ * affects when a decision changes.
+ */
+public class AdaptiveMemo {
+  static final int CACHE_SIZE = 256;
+
+  private final int _window;
+  private final double _enableRate;
+  private final double _disableRate;
+  private volatile boolean _frozen;
+  private final Map<String, Rule> _rules = new LinkedHashMap<String, Rule>();
+  private final ThreadLocal<Scope> _scopes = new ThreadLocal<Scope>() {
+    @Override
+    protected Scope initialValue() {
+      return new Scope();
+    }
+  };
+
+  /**
+   * Create an adaptive policy.
+   * @param window the number of invocations of a rule between decisions about it.
+   * @param enableRate the fraction of repeated invocations that turns memoization on.
+   * @param disableRate the fraction of cache hits below which memoization is turned off.
+   */
+  public AdaptiveMemo(int window, double enableRate, double disableRate) {
+    this._window = window;
+    this._enableRate = enableRate;
+    this._disableRate = disableRate;
+  }
+
+  public AdaptiveMemo() {
+    this(1024, 0.2, 0.05);
+  }
+
+  /**
+   * Create a policy which doesn't adapt, and memoizes exactly the rules that a previous policy
+   * decided to memoize. Rules that aren't in the map aren't memoized.
+   */
+  public static AdaptiveMemo fixed(Map<String, Boolean> decisions) {
+    AdaptiveMemo policy = new AdaptiveMemo();
+    for (Map.Entry<String, Boolean> d : decisions.entrySet()) {
+      policy.rule(d.getKey()).enabled = d.getValue();
+    }
+    policy._frozen = true;
+    return policy;
+  }
+
+  /**
+   * Wrap a rule of a grammar so that it's memoized when this policy decides it should be.
+   * Rules with the same name share their statistics and cache, so a name should only be
+   * used for one rule.
+   */
+  public <In, Out> Parser<In, Out> memo(String name, Parser<In, Out> base) {
+    return new MemoParser<In, Out>(rule(name), base);
+  }
+
+  /**
+   * Run a parse with one scope for memoized results, so that the rules of this policy can reuse
+   * results from anywhere in it, even where the parser at its top isn't memoized. The results
+   * are dropped when the parse finishes.
+   */
+  public <In, Out> ParseResult<In, Out> parse(Parser<In, Out> root, ParserInput<In> in) {
+    Scope scope = enter();
+    try {
+      return root.parse(in);
+    } finally {
+      scope.exit();
+    }
+  }
+
+  Scope enter() {
+    Scope scope = _scopes.get();
+    scope._depth++;
+    return scope;
+  }
+
+  synchronized Rule rule(String name) {
+    Rule r = _rules.get(name);
+    if (r == null) {
+      r = new Rule(this, name, _rules.size());
+      _rules.put(name, r);
+    }
+    return r;
+  }
+
+  /**
+   * Stop changing decisions. Rules that are memoized now stay memoized.
+   */
+  public void freeze() {
+    _frozen = true;
+  }
+
+  public boolean isFrozen() { return _frozen; }
+
+  /**
+   * Get the current decision for each rule: true if it's memoized.
+   */
+  public synchronized Map<String, Boolean> getDecisions() {
+    Map<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+    for (Rule r : _rules.values()) {
+      result.put(r.name, r.enabled);
+    }
+    return result;
+  }
+
+  /**
+   * Describe each rule's decision, and the fraction of its invocations that were repeats or
+   * cache hits in its most recently completed window.
+   */
+  @Override
+  public synchronized String toString() {
+    StringBuilder b = new StringBuilder();
+    for (Rule r : _rules.values()) {
+      b.append(r.name).append(r.enabled ? ": memoized" : ": not memoized");
+      b.append(String.format(", %.1f%% repeated%n", r.lastRate * 100));
+    }
+    return b.toString();
+  }
+
+  /**
+   * The memo tables of one thread's parse. Scopes nest, and the tables are cleared when the
+   * outermost one exits.
+   */
+  static final class Scope {
+    private static final int MAX_WRITTEN = 4 * CACHE_SIZE;
+
+    private int _depth;
+    // For each rule, by index: recently seen inputs while the rule isn't memoized, for
+    // estimating its repeat rate, and Entries while it is.
+    private Object[][] _tables = new Object[8][];
+    // The slots written since the tables were last cleared, as rule index * CACHE_SIZE + slot,
+    // so that a short parse doesn't have to clear every table. Past MAX_WRITTEN, all of them are.
+    private int[] _written = new int[16];
+    private int _writtenCount;
+
+    private Object[] table(int rule) {
+      if (rule >= _tables.length) {
+        _tables = Arrays.copyOf(_tables, Math.max(rule + 1, _tables.length * 2));
+      }
+      Object[] table = _tables[rule];
+      if (table == null) {
+        table = new Object[CACHE_SIZE];
+        _tables[rule] = table;
+      }
+      return table;
+    }
+
+    private void written(int rule, int slot) {
+      if (_writtenCount >= MAX_WRITTEN) {
+        return;
+      }
+      if (_writtenCount == _written.length) {
+        _written = Arrays.copyOf(_written, _written.length * 2);
+      }
+      _written[_writtenCount++] = rule * CACHE_SIZE + slot;
+    }
+
+    void exit() {
+      if (--_depth > 0 || _writtenCount == 0) {
+        return;
+      }
+      if (_writtenCount >= MAX_WRITTEN) {
+        for (Object[] table : _tables) {
+          if (table != null) {
+            Arrays.fill(table, null);
+          }
+        }
+      } else {
+        for (int i = 0; i < _writtenCount; i++) {
+          _tables[_written[i] / CACHE_SIZE][_written[i] % CACHE_SIZE] = null;
+        }
+      }
+      _writtenCount = 0;
+    }
+  }
+
+  /**
+   * The decision and statistics for one named rule.
+   */
+  static final class Rule {
+    private final AdaptiveMemo _policy;
+    final String name;
+    private final int _index;
+    volatile boolean enabled;
+    double lastRate;
+    private int _calls;
+    private int _repeats;
+
+    Rule(AdaptiveMemo policy, String name, int index) {
+      this._policy = policy;
+      this.name = name;
+      this._index = index;
+    }
+
+    /**
+     * Enter the scope that the rule's results are kept in; the caller has to exit it when
+     * it's done with the rule.
+     */
+    Scope enter() {
+      return _policy.enter();
+    }
+
+    /**
+     * Count an invocation of the rule, and look for a memoized result.
+     * @return the result, or null if it has to be parsed.
+     */
+    ParseResult<?, ?> lookup(Scope scope, ParserInput<?> in) {
+      if (_policy._frozen) {
+        return enabled ? cached(scope, in) : null;
+      }
+      ParseResult<?, ?> result = null;
+      if (enabled) {
+        result = cached(scope, in);
+        if (result != null) {
+          _repeats++;
+        }
+      } else {
+        ParserInput<?> raw = WrappedInput.unwrap(in);
+        Object[] seen = scope.table(_index);
+        int slot = slot(raw);
+        if (raw.equals(seen[slot])) {
+          _repeats++;
+        }
+        seen[slot] = raw;
+        scope.written(_index, slot);
+      }
+      if (++_calls >= _policy._window) {
+        decide();
+      }
+      return result;
+    }
+
+    /**
+     * Find a cached result. Entries are keyed and stored on unwrapped inputs (see WrappedInput),
+     * since they're shared by everything in the scope; a hit is put back into the caller's
+     * wrappers.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private ParseResult<?, ?> cached(Scope scope, ParserInput<?> in) {
+      ParserInput raw = WrappedInput.unwrap(in);
+      Object o = scope.table(_index)[slot(raw)];
+      if (!(o instanceof Entry)) {
+        return null;
+      }
+      Entry e = (Entry)o;
+      if (!e.in.equals(raw)) {
+        return null;
+      }
+      if (raw == in || !(e.result instanceof Success)) {
+        return e.result;
+      }
+      Success success = (Success)e.result;
+      return new Success(success.getResult(), WrappedInput.rewrap((ParserInput)in, success.getRest()));
+    }
+
+    /**
+     * Remember the result of an invocation that wasn't found by lookup.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    void record(Scope scope, ParserInput<?> in, ParseResult<?, ?> result) {
+      if (!enabled) {
+        return;
+      }
+      ParserInput<?> raw = WrappedInput.unwrap(in);
+      if (raw != in && result instanceof Success) {
+        Success success = (Success)result;
+        result = new Success(success.getResult(), WrappedInput.unwrap(success.getRest()));
+      }
+      int slot = slot(raw);
+      scope.table(_index)[slot] = new Entry(raw, result);
+      scope.written(_index, slot);
+    }
+
+    private void decide() {
+      double rate = (double)_repeats / _calls;
+      lastRate = rate;
+      _calls = 0;
+      _repeats = 0;
+      if (!enabled && rate >= _policy._enableRate) {
+        enabled = true;
+      } else if (enabled && rate < _policy._disableRate) {
+        enabled = false;
+      }
+    }
+
+    private static int slot(ParserInput<?> in) {
+      return in.hashCode() & (CACHE_SIZE - 1);
+    }
+  }
+
+  private static final class Entry {
+    final ParserInput<?> in;
+    final ParseResult<?, ?> result;
+
+    Entry(ParserInput<?> in, ParseResult<?, ?> result) {
+      this.in = in;
+      this.result = result;
+    }
+  }
+}
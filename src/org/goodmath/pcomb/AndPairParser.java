@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser which runs two parsers in sequence, and returns a pair containing
+ * both of their results if both succeeded.
+ */
+public class AndPairParser<In, Out1, Out2> extends Parser<In, Pair<Out1, Out2>> {
+  private final Parser<In, Out1> _first;
+  private final Parser<In, Out2> _second;
+
+  public AndPairParser(Parser<In, Out1> first, Parser<In, Out2> second) {
+    this._first = first;
+    this._second = second;
+  }
+
+  Parser<In, Out1> getFirst() { return _first; }
+  Parser<In, Out2> getSecond() { return _second; }
+
+  @Override
+  public ParseResult<In, Pair<Out1, Out2>> parse(ParserInput<In> in) {
+    ParseResult<In, Out1> firstStep = _first.parse(in);
+    if (firstStep instanceof Failure) {
+      return new Failure<In, Pair<Out1, Out2>>();
+    }
+    Out1 firstResult = ((Success<In, Out1>)firstStep).getResult();
+    ParseResult<In, Out2> secondStep = _second.parse(firstStep.getRest());
+    if (secondStep instanceof Failure) {
+      return new Failure<In, Pair<Out1, Out2>>();
+    }
+    Out2 secondResult = ((Success<In, Out2>)secondStep).getResult();
+    return new Success<In, Pair<Out1, Out2>>(new Pair<Out1, Out2>(firstResult, secondResult), secondStep.getRest());
+  }
+}
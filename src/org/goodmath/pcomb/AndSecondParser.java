@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser which runs two parsers in sequence, and returns the result of the second.
+ */
+public class AndSecondParser<In, Out1, Out> extends Parser<In, Out> {
+  private final Parser<In, Out1> _first;
+  private final Parser<In, Out> _second;
+
+  public AndSecondParser(Parser<In, Out1> first, Parser<In, Out> second) {
+    this._first = first;
+    this._second = second;
+  }
+
+  Parser<In, Out1> getFirst() { return _first; }
+  Parser<In, Out> getSecond() { return _second; }
+
+  @Override
+  public ParseResult<In, Out> parse(ParserInput<In> in) {
+    ParseResult<In, Out1> firstStep = _first.parse(in);
+    if (firstStep instanceof Failure) {
+      return new Failure<In, Out>();
+    }
+    return _second.parse(firstStep.getRest());
+  }
+}
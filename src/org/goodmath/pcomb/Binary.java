@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Parsers for binary formats: fixed-width integers, varints, raw byte runs, and
+ * length-prefixed sub-parsers.
+ *
+ * These work on any ParserInput of bytes, but they're written for ByteParserInput: on one
+ * of those they read bytes directly from the buffer, and slicing is zero-copy. On other
+ * inputs they fall back to reading one element at a time.
+ */
+public final class Binary {
+  private Binary() { }
+
+  /**
+   * Create a parser which consumes a specific byte value.
+   */
+  public static Parser<Byte, Byte> matchByte(int b) {
+    return new MatchParser<Byte>((byte)b);
+  }
+
+  /**
+   * A parser for an unsigned 8 bit integer.
+   */
+  public static Parser<Byte, Integer> uint8() {
+    return new FixedInt<Integer>(1, ByteOrder.BIG_ENDIAN, false, true);
+  }
+
+  /**
+   * A parser for a signed 8 bit integer.
+   */
+  public static Parser<Byte, Integer> int8() {
+    return new FixedInt<Integer>(1, ByteOrder.BIG_ENDIAN, true, true);
+  }
+
+  /**
+   * A parser for a signed 16 bit integer.
+   */
+  public static Parser<Byte, Integer> int16(ByteOrder order) {
+    return new FixedInt<Integer>(2, order, true, true);
+  }
+
+  /**
+   * A parser for an unsigned 16 bit integer.
+   */
+  public static Parser<Byte, Integer> uint16(ByteOrder order) {
+    return new FixedInt<Integer>(2, order, false, true);
+  }
+
+  /**
+   * A parser for a signed 32 bit integer.
+   */
+  public static Parser<Byte, Integer> int32(ByteOrder order) {
+    return new FixedInt<Integer>(4, order, true, true);
+  }
+
+  /**
+   * A parser for an unsigned 32 bit integer.
+   */
+  public static Parser<Byte, Long> uint32(ByteOrder order) {
+    return new FixedInt<Long>(4, order, false, false);
+  }
+
+  /**
+   * A parser for a signed 64 bit integer.
+   */
+  public static Parser<Byte, Long> int64(ByteOrder order) {
+    return new FixedInt<Long>(8, order, true, false);
+  }
+
+  /**
+   * A parser for an unsigned LEB128 varint (as used by protocol buffers) of up to 64 bits.
+   */
+  public static Parser<Byte, Long> varint() {
+    return new VarInt();
+  }
+
+  /**
+   * A parser which consumes exactly n bytes, and returns a read-only view of them.
+   * On a ByteParserInput, the view shares the input's buffer.
+   */
+  public static Parser<Byte, ByteBuffer> bytes(int n) {
+    return new Bytes(n);
+  }
+
+  /**
+   * Create a parser for a length-prefixed field: it parses a length, and then runs the body
+   * parser on a slice of the input containing exactly that many bytes. The body has to
+   * consume the whole slice for the field to succeed. On a ByteParserInput, the slice
+   * shares the input's buffer.
+   * @param length a parser for the length prefix.
+   * @param body the parser for the contents of the field.
+   */
+  public static <Out> Parser<Byte, Out> lengthPrefixed(Parser<Byte, ? extends Number> length,
+      Parser<Byte, Out> body) {
+    return new LengthPrefixed<Out>(length, body);
+  }
+
+  /**
+   * Convert an arbitrary byte input to a ByteParserInput containing its next n bytes,
+   * or return null if there aren't n bytes left. For a ByteParserInput, even a wrapped one,
+   * this is free; anything else gets copied.
+   */
+  private static ByteParserInput take(ParserInput<Byte> in, int n) {
+    ParserInput<Byte> raw = WrappedInput.unwrap(in);
+    if (raw instanceof ByteParserInput) {
+      ByteParserInput bytes = (ByteParserInput)raw;
+      return bytes.available(n) ? bytes.slice(n) : null;
+    }
+    byte[] copy = new byte[n];
+    for (int i = 0; i < n; i++) {
+      if (in.atEnd()) {
+        return null;
+      }
+      copy[i] = in.first();
+      in = in.rest();
+    }
+    return new ByteParserInput(copy);
+  }
+
+  /**
+   * Skip n bytes of an input, which the caller has already checked are available.
+   */
+  private static ParserInput<Byte> drop(ParserInput<Byte> in, int n) {
+    ParserInput<Byte> raw = WrappedInput.unwrap(in);
+    if (raw instanceof ByteParserInput) {
+      return WrappedInput.rewrap(in, ((ByteParserInput)raw).skip(n));
+    }
+    for (int i = 0; i < n; i++) {
+      in = in.rest();
+    }
+    return in;
+  }
+
+  private static class FixedInt<Out> extends Parser<Byte, Out> {
+    private final int _width;
+    private final boolean _bigEndian;
+    private final boolean _signed;
+    private final boolean _asInt;
+
+    FixedInt(int width, ByteOrder order, boolean signed, boolean asInt) {
+      this._width = width;
+      this._bigEndian = order == ByteOrder.BIG_ENDIAN;
+      this._signed = signed;
+      this._asInt = asInt;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public ParseResult<Byte, Out> parse(ParserInput<Byte> in) {
+      ByteParserInput bytes = take(in, _width);
+      if (bytes == null) {
+        return new Failure<Byte, Out>();
+      }
+      long value = 0;
+      for (int i = 0; i < _width; i++) {
+        int b = bytes.peek(_bigEndian ? i : _width - 1 - i) & 0xff;
+        value = (value << 8) | b;
+      }
+      if (_signed && _width < 8) {
+        int shift = 64 - 8 * _width;
+        value = (value << shift) >> shift;
+      }
+      Object result;
+      if (_asInt) {
+        result = Integer.valueOf((int)value);
+      } else {
+        result = Long.valueOf(value);
+      }
+      return new Success<Byte, Out>((Out)result, drop(in, _width));
+    }
+  }
+
+  private static class VarInt extends Parser<Byte, Long> {
+    @Override
+    public ParseResult<Byte, Long> parse(ParserInput<Byte> in) {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (in.atEnd()) {
+          return new Failure<Byte, Long>();
+        }
+        int b;
+        ParserInput<Byte> raw = WrappedInput.unwrap(in);
+        if (raw instanceof ByteParserInput) {
+          ByteParserInput bytes = (ByteParserInput)raw;
+          b = bytes.peek(0);
+          in = WrappedInput.rewrap(in, bytes.skip(1));
+        } else {
+          b = in.first();
+          in = in.rest();
+        }
+        if (shift == 63 && (b & 0x7e) != 0) {
+          // The tenth byte only has room for bit 63; anything more overflows.
+          return new Failure<Byte, Long>();
+        }
+        value |= (long)(b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return new Success<Byte, Long>(value, in);
+        }
+      }
+      // More than ten bytes can't be a valid 64 bit varint.
+      return new Failure<Byte, Long>();
+    }
+  }
+
+  private static class Bytes extends Parser<Byte, ByteBuffer> {
+    private final int _count;
+
+    Bytes(int count) {
+      this._count = count;
+    }
+
+    @Override
+    public ParseResult<Byte, ByteBuffer> parse(ParserInput<Byte> in) {
+      ByteParserInput bytes = take(in, _count);
+      if (bytes == null) {
+        return new Failure<Byte, ByteBuffer>();
+      }
+      return new Success<Byte, ByteBuffer>(bytes.view(_count), drop(in, _count));
+    }
+  }
+
+  private static class LengthPrefixed<Out> extends Parser<Byte, Out> {
+    private final Parser<Byte, ? extends Number> _length;
+    private final Parser<Byte, Out> _body;
+
+    LengthPrefixed(Parser<Byte, ? extends Number> length, Parser<Byte, Out> body) {
+      this._length = length;
+      this._body = body;
+    }
+
+    @Override
+    public ParseResult<Byte, Out> parse(ParserInput<Byte> in) {
+      ParseResult<Byte, ? extends Number> len = _length.parse(in);
+      if (len instanceof Failure) {
+        return new Failure<Byte, Out>();
+      }
+      long n = ((Success<Byte, ? extends Number>)len).getResult().longValue();
+      if (n < 0 || n > Integer.MAX_VALUE) {
+        return new Failure<Byte, Out>();
+      }
+      ParserInput<Byte> rest = len.getRest();
+      ByteParserInput field = take(rest, (int)n);
+      if (field == null) {
+        return new Failure<Byte, Out>();
+      }
+      ParseResult<Byte, Out> result = _body.parse(field);
+      if (result instanceof Failure || !result.getRest().atEnd()) {
+        return new Failure<Byte, Out>();
+      }
+      return new Success<Byte, Out>(((Success<Byte, Out>)result).getResult(), drop(rest, (int)n));
+    }
+  }
+}
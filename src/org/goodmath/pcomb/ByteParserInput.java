@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A parser input for binary parsers that read from a ByteBuffer or a byte array.
+ *
+ * The input never copies or modifies its buffer: it reads with absolute gets, and
+ * each position in the stream is just an offset and a limit into the same shared buffer.
+ * That means it works directly on a direct ByteBuffer filled by NIO, and that slicing
+ * a bounded region out of it is free. Binary parsers (see Binary) use the primitive accessors
+ * rather than first and rest, so they don't box anything.
+ */
+public class ByteParserInput implements ParserInput<Byte> {
+  private final ByteBuffer _buf;
+  private final int _pos;
+  private final int _limit;
+
+  protected ByteParserInput(ByteBuffer buf, int pos, int limit) {
+    this._buf = buf;
+    this._pos = pos;
+    this._limit = limit;
+  }
+
+  /**
+   * Create an input that reads the bytes between a buffer's position and its limit.
+   * The buffer's position and limit aren't changed.
+   */
+  public ByteParserInput(ByteBuffer buf) {
+    this(buf, buf.position(), buf.limit());
+  }
+
+  public ByteParserInput(byte[] bytes) {
+    this(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Create a new input over the same buffer as this one. Subclasses override this so
+   * that positions derived from them are instances of the subclass.
+   */
+  protected ByteParserInput create(int pos, int limit) {
+    return new ByteParserInput(_buf, pos, limit);
+  }
+
+  /**
+   * Called when a parser wants more bytes than the input has left. This does nothing by
+   * default; subclasses that can get more input later can override it to find out that
+   * a parse failed for lack of data.
+   */
+  protected void underflow() { }
+
+  @Override
+  public Byte first() {
+    if (_pos < _limit) {
+      return _buf.get(_pos);
+    } else {
+      underflow();
+      return 0;
+    }
+  }
+
+  @Override
+  public ParserInput<Byte> rest() {
+    if (_pos < _limit) {
+      return create(_pos + 1, _limit);
+    } else {
+      return this;
+    }
+  }
+
+  @Override
+  public boolean atEnd() {
+    if (_pos >= _limit) {
+      underflow();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Get the offset of this input in the underlying buffer.
+   */
+  @Override
+  public int getPosition() { return _pos; }
+
+  /**
+   * Get the number of bytes left in the input.
+   */
+  public int remaining() { return _limit - _pos; }
+
+  /**
+   * Check whether there are at least n bytes left in the input.
+   */
+  public boolean available(int n) {
+    if (n <= _limit - _pos) {
+      return true;
+    }
+    underflow();
+    return false;
+  }
+
+  /**
+   * Get a byte at an offset from the start of this input, without boxing it.
+   * The caller is responsible for checking that it's available.
+   */
+  public byte peek(int offset) {
+    return _buf.get(_pos + offset);
+  }
+
+  /**
+   * Get the input that's left after skipping n bytes. The caller is responsible for
+   * checking that they're available.
+   */
+  public ByteParserInput skip(int n) {
+    return create(_pos + n, _limit);
+  }
+
+  /**
+   * Get an input containing just the next n bytes. It shares this input's buffer.
+   */
+  public ByteParserInput slice(int n) {
+    return create(_pos, _pos + n);
+  }
+
+  /**
+   * Two byte inputs are equal if they're at the same position, with the same limit, in the
+   * same buffer object.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ByteParserInput)) {
+      return false;
+    }
+    ByteParserInput other = (ByteParserInput)o;
+    return other._buf == _buf && other._pos == _pos && other._limit == _limit;
+  }
+
+  @Override
+  public int hashCode() {
+    return (System.identityHashCode(_buf) * 31 + _pos) * 31 + _limit;
+  }
+
+  /**
+   * Get a read-only view of the next n bytes, sharing this input's buffer.
+   */
+  public ByteBuffer view(int n) {
+    ByteBuffer view = _buf.asReadOnlyBuffer();
+    view.limit(_pos + n);
+    view.position(_pos);
+    return view.slice();
+  }
+}
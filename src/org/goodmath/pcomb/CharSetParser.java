@@ -25,6 +25,8 @@ public class CharSetParser extends Parser<Character, Character> {
     this._chars = chars;
   }
 
+  String getChars() { return _chars; }
+
   @Override
   public org.goodmath.pcomb.ParseResult<Character, Character> parse(
       ParserInput<Character> in) {
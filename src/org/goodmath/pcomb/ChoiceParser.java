@@ -17,6 +17,7 @@ package org.goodmath.pcomb;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A parser which tries a sequence of parsers, and returns the result from the first one that succeeds.
@@ -38,6 +39,8 @@ public class ChoiceParser<In, Out> extends Parser<In, Out> {
     this._choices = choices;
   }
 
+  List<Parser<In, Out>> getChoices() { return _choices; }
+
   @Override
   public Parser<In, Out> or(Parser<In, Out> newChoice) {
     ChoiceParser<In, Out> p = new ChoiceParser<In, Out>();
@@ -47,6 +50,14 @@ public class ChoiceParser<In, Out> extends Parser<In, Out> {
   }
 
 
+  /**
+   * Create a choice between the same alternatives, which evaluates them concurrently.
+   * @param executor the executor to run the lower priority alternatives on.
+   */
+  public ParallelChoiceParser<In, Out> parallel(ExecutorService executor) {
+    return new ParallelChoiceParser<In, Out>(_choices, executor);
+  }
+
   @Override
   public org.goodmath.pcomb.ParseResult<In, Out> parse(
       ParserInput<In> in) {
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable set of Unicode code points.
+ *
+ * ASCII code points are looked up in a 128 bit bitmap; anything else is found with a binary
+ * search of a sorted list of ranges.
+ */
+public final class CodePointClass {
+  private final long _ascii0;
+  private final long _ascii1;
+  // Sorted, non-overlapping, non-adjacent ranges of non-ASCII code points: start, end (inclusive), ...
+  private final int[] _ranges;
+
+  private CodePointClass(int[] ranges) {
+    long a0 = 0;
+    long a1 = 0;
+    List<Integer> rest = new ArrayList<Integer>();
+    for (int i = 0; i < ranges.length; i += 2) {
+      int start = ranges[i];
+      int end = ranges[i + 1];
+      for (int cp = start; cp <= end && cp < 128; cp++) {
+        if (cp < 64) {
+          a0 |= 1L << cp;
+        } else {
+          a1 |= 1L << (cp - 64);
+        }
+      }
+      if (end >= 128) {
+        rest.add(Math.max(start, 128));
+        rest.add(end);
+      }
+    }
+    _ascii0 = a0;
+    _ascii1 = a1;
+    _ranges = new int[rest.size()];
+    for (int i = 0; i < _ranges.length; i++) {
+      _ranges[i] = rest.get(i);
+    }
+  }
+
+  /**
+   * Build a class from unsorted, possibly overlapping ranges.
+   */
+  private static CodePointClass fromRanges(List<int[]> ranges) {
+    List<int[]> sorted = new ArrayList<int[]>(ranges);
+    sorted.sort(new java.util.Comparator<int[]>() {
+      @Override
+      public int compare(int[] a, int[] b) {
+        return Integer.compare(a[0], b[0]);
+      }
+    });
+    int[] merged = new int[sorted.size() * 2];
+    int n = 0;
+    for (int[] r : sorted) {
+      if (n > 0 && r[0] <= merged[n - 1] + 1) {
+        merged[n - 1] = Math.max(merged[n - 1], r[1]);
+      } else {
+        merged[n++] = r[0];
+        merged[n++] = r[1];
+      }
+    }
+    return new CodePointClass(Arrays.copyOf(merged, n));
+  }
+
+  /**
+   * Get the class of the code points in a string. Surrogate pairs in the string are one
+   * code point.
+   */
+  public static CodePointClass of(String chars) {
+    List<int[]> ranges = new ArrayList<int[]>();
+    for (int i = 0; i < chars.length(); ) {
+      int cp = chars.codePointAt(i);
+      ranges.add(new int[] { cp, cp });
+      i += Character.charCount(cp);
+    }
+    return fromRanges(ranges);
+  }
+
+  /**
+   * Get the class of the code points from start to end, inclusive.
+   */
+  public static CodePointClass range(int start, int end) {
+    if (start < 0 || end > Character.MAX_CODE_POINT || start > end) {
+      throw new IllegalArgumentException("Invalid code point range " + start + " to " + end);
+    }
+    return new CodePointClass(new int[] { start, end });
+  }
+
+  /**
+   * Get the class of the code points in either this class or another one.
+   */
+  public CodePointClass union(CodePointClass other) {
+    List<int[]> ranges = new ArrayList<int[]>();
+    addRanges(ranges);
+    other.addRanges(ranges);
+    return fromRanges(ranges);
+  }
+
+  /**
+   * Get the class of the code points that aren't in this class.
+   */
+  public CodePointClass complement() {
+    List<int[]> mine = new ArrayList<int[]>();
+    addRanges(mine);
+    CodePointClass sorted = fromRanges(mine);
+    List<int[]> mineSorted = new ArrayList<int[]>();
+    sorted.addRanges(mineSorted);
+    List<int[]> result = new ArrayList<int[]>();
+    int next = 0;
+    for (int[] r : mineSorted) {
+      if (r[0] > next) {
+        result.add(new int[] { next, r[0] - 1 });
+      }
+      next = r[1] + 1;
+    }
+    if (next <= Character.MAX_CODE_POINT) {
+      result.add(new int[] { next, Character.MAX_CODE_POINT });
+    }
+    return fromRanges(result);
+  }
+
+  private void addRanges(List<int[]> ranges) {
+    for (int cp = 0; cp < 128; cp++) {
+      if (contains(cp)) {
+        ranges.add(new int[] { cp, cp });
+      }
+    }
+    for (int i = 0; i < _ranges.length; i += 2) {
+      ranges.add(new int[] { _ranges[i], _ranges[i + 1] });
+    }
+  }
+
+  /**
+   * Check whether a code point is in the class.
+   */
+  public boolean contains(int cp) {
+    if (cp < 64) {
+      return cp >= 0 && (_ascii0 & (1L << cp)) != 0;
+    }
+    if (cp < 128) {
+      return (_ascii1 & (1L << (cp - 64))) != 0;
+    }
+    // Find the last range that starts at or before the code point.
+    int lo = 0;
+    int hi = _ranges.length / 2 - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (_ranges[mid * 2] <= cp) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return hi >= 0 && cp <= _ranges[hi * 2 + 1];
+  }
+}
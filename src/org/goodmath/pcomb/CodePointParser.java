@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser which matches a single code point from a CodePointClass.
+ *
+ * On a CodePointParserInput, even a wrapped one (see WrappedInput), the code point is checked
+ * as a primitive int, so nothing is boxed unless the match succeeds with a code point outside
+ * of the Integer cache. It also works on any other input of Integers, like a list of code
+ * points.
+ */
+public class CodePointParser extends Parser<Integer, Integer> {
+  private final CodePointClass _class;
+
+  public CodePointParser(CodePointClass cls) {
+    this._class = cls;
+  }
+
+  CodePointClass getCodePointClass() { return _class; }
+
+  @Override
+  public ParseResult<Integer, Integer> parse(ParserInput<Integer> in) {
+    ParserInput<Integer> raw = WrappedInput.unwrap(in);
+    if (raw instanceof CodePointParserInput) {
+      CodePointParserInput cpIn = (CodePointParserInput)raw;
+      int cp = cpIn.codePoint();
+      if (cp < 0 || !_class.contains(cp)) {
+        return new Failure<Integer, Integer>();
+      }
+      return new Success<Integer, Integer>(cp,
+          WrappedInput.rewrap(in, cpIn.skip(Character.charCount(cp), 1)));
+    }
+    if (in.atEnd() || !_class.contains(in.first())) {
+      return new Failure<Integer, Integer>();
+    }
+    return new Success<Integer, Integer>(in.first(), in.rest());
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser input which reads Unicode code points from a CharSequence, like a String or a
+ * CharBuffer, decoding surrogate pairs as it goes.
+ *
+ * A StringParserInput returns UTF-16 chars, so a character outside of the basic multilingual
+ * plane, like an emoji, arrives as two halves that no char class can match. This input returns
+ * whole code points instead. ASCII text takes a fast path with no decoding, and since small
+ * Integers are cached, reading it doesn't allocate anything beyond the input itself.
+ *
+ * Like every input, its positions count input elements, which here are code points. The
+ * offset of a position in the backing text, for slicing it or for a LineIndex, is
+ * getCharOffset, and that's what Parser.position and the errors of a recovering parser report.
+ * A lone surrogate is returned as is.
+ */
+public class CodePointParserInput implements ParserInput<Integer> {
+  private final CharSequence _text;
+  // The offset of the current code point in the text, in chars.
+  private final int _pos;
+  // The number of code points before _pos.
+  private final int _index;
+
+  private CodePointParserInput(CharSequence text, int charOffset, int index) {
+    this._text = text;
+    this._pos = charOffset;
+    this._index = index;
+  }
+
+  /**
+   * Create an input which starts at a char offset in a text. The offset has to be at a
+   * code point boundary.
+   */
+  public CodePointParserInput(CharSequence text, int charOffset) {
+    this(text, charOffset, Character.codePointCount(text, 0, charOffset));
+  }
+
+  public CodePointParserInput(CharSequence text) {
+    this(text, 0);
+  }
+
+  /**
+   * Get the code point at the start of the input, without boxing it.
+   * @return the code point, or -1 at the end of the input.
+   */
+  public int codePoint() {
+    if (_pos >= _text.length()) {
+      return -1;
+    }
+    char c = _text.charAt(_pos);
+    if (c < 0x80 || !Character.isHighSurrogate(c) || _pos + 1 == _text.length()) {
+      return c;
+    }
+    char low = _text.charAt(_pos + 1);
+    return Character.isLowSurrogate(low) ? Character.toCodePoint(c, low) : c;
+  }
+
+  /**
+   * Get the number of chars that the first code point takes up: 2 for a surrogate pair, 0 at
+   * the end of the input, and 1 otherwise.
+   */
+  int width() {
+    if (_pos >= _text.length()) {
+      return 0;
+    }
+    char c = _text.charAt(_pos);
+    if (c < 0x80 || !Character.isHighSurrogate(c) || _pos + 1 == _text.length()) {
+      return 1;
+    }
+    return Character.isLowSurrogate(_text.charAt(_pos + 1)) ? 2 : 1;
+  }
+
+  /**
+   * Get the code point at the start of the input. At the end of the input, this returns 0,
+   * like StringParserInput.
+   */
+  @Override
+  public Integer first() {
+    int cp = codePoint();
+    return cp < 0 ? 0 : cp;
+  }
+
+  @Override
+  public ParserInput<Integer> rest() {
+    int width = width();
+    return width == 0 ? this : new CodePointParserInput(_text, _pos + width, _index + 1);
+  }
+
+  /**
+   * Get the input after a number of chars, which must hold exactly some number of code points.
+   */
+  CodePointParserInput skip(int chars, int codePoints) {
+    return chars == 0 ? this : new CodePointParserInput(_text, _pos + chars, _index + codePoints);
+  }
+
+  @Override
+  public boolean atEnd() {
+    return _pos >= _text.length();
+  }
+
+  /**
+   * Get the number of code points before this point in the text.
+   */
+  @Override
+  public int getPosition() { return _index; }
+
+  /**
+   * Get the offset of this point in the text, in chars.
+   */
+  public int getCharOffset() { return _pos; }
+
+  CharSequence getText() { return _text; }
+
+  /**
+   * Two code point inputs are equal if they're at the same position in the same text object.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof CodePointParserInput)) {
+      return false;
+    }
+    CodePointParserInput other = (CodePointParserInput)o;
+    return other._text == _text && other._pos == _pos;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(_text) * 31 + _pos;
+  }
+}
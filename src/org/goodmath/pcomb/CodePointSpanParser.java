@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser which matches a run of code points from a CodePointClass, and returns the text
+ * that they came from.
+ *
+ * This is a leaf, rather than a repetition of CodePointParsers, so that scanning an identifier
+ * or a number doesn't build a list. On a CodePointParserInput, even a wrapped one (see
+ * WrappedInput), code points are decoded in place, and the result is a slice of the backing
+ * text. Any other input of code points is read element by element.
+ */
+public class CodePointSpanParser extends Parser<Integer, String> {
+  private final CodePointClass _class;
+  private final int _min;
+
+  public CodePointSpanParser(CodePointClass cls, int atleast) {
+    this._class = cls;
+    this._min = atleast;
+  }
+
+  CodePointClass getCodePointClass() { return _class; }
+  int getMin() { return _min; }
+
+  @Override
+  public ParseResult<Integer, String> parse(ParserInput<Integer> in) {
+    ParserInput<Integer> raw = WrappedInput.unwrap(in);
+    if (!(raw instanceof CodePointParserInput)) {
+      return parseElements(in);
+    }
+    CodePointParserInput cpIn = (CodePointParserInput)raw;
+    CharSequence text = cpIn.getText();
+    int start = cpIn.getCharOffset();
+    int pos = start;
+    int count = 0;
+    int length = text.length();
+    while (pos < length) {
+      char c = text.charAt(pos);
+      int cp = c;
+      if (c >= 0x80 && Character.isHighSurrogate(c) && pos + 1 < length
+          && Character.isLowSurrogate(text.charAt(pos + 1))) {
+        cp = Character.toCodePoint(c, text.charAt(pos + 1));
+      }
+      if (!_class.contains(cp)) {
+        break;
+      }
+      pos += Character.charCount(cp);
+      count++;
+    }
+    if (count < _min) {
+      return new Failure<Integer, String>();
+    }
+    return new Success<Integer, String>(text.subSequence(start, pos).toString(),
+        WrappedInput.rewrap(in, cpIn.skip(pos - start, count)));
+  }
+
+  private ParseResult<Integer, String> parseElements(ParserInput<Integer> in) {
+    StringBuilder result = new StringBuilder();
+    int count = 0;
+    while (!in.atEnd() && _class.contains(in.first())) {
+      result.appendCodePoint(in.first());
+      in = in.rest();
+      count++;
+    }
+    if (count < _min) {
+      return new Failure<Integer, String>();
+    }
+    return new Success<Integer, String>(result.toString(), in);
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.List;
+
+/**
+ * A rule for choosing between the derivations of an ambiguous node in a parse forest.
+ */
+public interface Disambiguator {
+  /**
+   * Choose one alternative derivation of a node.
+   * @param node the ambiguous node.
+   * @param alternatives the alternatives, in grammar order, each given as the list of child nodes
+   *   of its production.
+   * @return the index of the chosen alternative.
+   */
+  int choose(ForestNode node, List<List<ForestNode>> alternatives);
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser which only succeeds at the end of the input stream, without consuming anything.
+ */
+public class EndParser<In, Out> extends Parser<In, Out> {
+  private final Out _value;
+
+  public EndParser(Out value) {
+    this._value = value;
+  }
+
+  Out getValue() { return _value; }
+
+  @Override
+  public ParseResult<In, Out> parse(ParserInput<In> in) {
+    if (in.atEnd()) {
+      return new Success<In, Out>(_value, in);
+    } else {
+      return new Failure<In, Out>();
+    }
+  }
+}
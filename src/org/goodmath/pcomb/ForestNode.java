@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.goodmath.pcomb.GeneralizedParser.Production;
+import org.goodmath.pcomb.GeneralizedParser.Symbol;
+
+/**
+ * A node of a parse forest: all of the ways that one grammar symbol can derive one span of
+ * the input. Nodes are shared - there's exactly one node for each symbol and span - and are built
+ * lazily from the Earley chart, the first time that someone looks at them.
+ *
+ * Internally, each production is binarized: a production's derivations are represented by a chain
+ * of intermediate nodes, each of which holds the ways of splitting a prefix of the production
+ * into a shorter prefix and one more symbol. That keeps the size of the forest cubic in the length
+ * of the input, even when the number of derivations is exponential.
+ */
+public class ForestNode {
+  private final ParseForest<?> _forest;
+  final Symbol symbol;
+  private final int _start;
+  private final int _end;
+  private List<Prefix> _alternatives;
+  // The number of derivations of each alternative, frozen when they're first counted.
+  long[] counts;
+  long count = -1;
+  boolean counting = false;
+
+  ForestNode(ParseForest<?> forest, Symbol symbol, int start, int end) {
+    this._forest = forest;
+    this.symbol = symbol;
+    this._start = start;
+    this._end = end;
+  }
+
+  /**
+   * Get the parser that this node is a derivation of.
+   */
+  public Parser<?, ?> getParser() { return symbol.node; }
+
+  /**
+   * Get the input offset where this node's span starts, relative to the start of the parse.
+   */
+  public int getStart() { return _start; }
+
+  /**
+   * Get the input offset just past the end of this node's span.
+   */
+  public int getEnd() { return _end; }
+
+  public boolean isTerminal() { return symbol.terminal; }
+
+  /**
+   * Return true if there's more than one derivation of this node, either here or further down.
+   */
+  public boolean isAmbiguous() {
+    return countDerivations() > 1;
+  }
+
+  /**
+   * Get the number of derivations of this node. Derivations that go around a cycle in the
+   * forest (which can only happen in a grammar where a symbol can derive itself) aren't counted.
+   * The count saturates at Long.MAX_VALUE.
+   */
+  public long countDerivations() {
+    return _forest.count(this);
+  }
+
+  /**
+   * Get the alternative ways of deriving this node: one for each production, and each way of
+   * splitting the span among the production's symbols. Each alternative is given as the list of
+   * child nodes for the production's symbols. This is for disambiguation; the lists are built on
+   * demand, and alternatives that only have cyclic derivations are left out.
+   */
+  public List<List<ForestNode>> getAlternatives() {
+    List<List<ForestNode>> result = new ArrayList<List<ForestNode>>();
+    for (ForestNode[] children : expand(null)) {
+      List<ForestNode> list = new ArrayList<ForestNode>(children.length);
+      for (ForestNode child : children) {
+        list.add(child);
+      }
+      result.add(list);
+    }
+    return result;
+  }
+
+  /**
+   * Expand the alternatives of this node into arrays of children.
+   * @param productions if not null, the production for each alternative is added to it.
+   */
+  List<ForestNode[]> expand(List<Production> productions) {
+    _forest.count(this);
+    List<ForestNode[]> result = new ArrayList<ForestNode[]>();
+    List<Prefix> alternatives = alternatives();
+    for (int i = 0; i < alternatives.size(); i++) {
+      if (counts[i] == 0) {
+        continue;
+      }
+      Prefix top = alternatives.get(i);
+      int before = result.size();
+      top.expand(new ForestNode[top.dot], result);
+      if (productions != null) {
+        for (int j = before; j < result.size(); j++) {
+          productions.add(top.production);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the complete productions that derive this node, as the top of their prefix chains.
+   */
+  List<Prefix> alternatives() {
+    if (_alternatives == null) {
+      _alternatives = new ArrayList<Prefix>();
+      if (!symbol.terminal) {
+        for (Production p : symbol.productions) {
+          if (_forest.chart().hasItem(p, p.rhs.length, _start, _end)) {
+            _alternatives.add(_forest.prefix(p, p.rhs.length, _start, _end));
+          }
+        }
+      }
+    }
+    return _alternatives;
+  }
+
+  @Override
+  public String toString() {
+    String name = symbol.node == null ? "start" : symbol.node.getClass().getSimpleName();
+    return name + "[" + _start + ", " + _end + "]";
+  }
+
+  /**
+   * An intermediate node: the ways that the first few symbols of a production can derive a span.
+   */
+  static final class Prefix {
+    private final ParseForest<?> _forest;
+    final Production production;
+    final int dot;
+    final int start;
+    final int end;
+    // Each split is a shorter prefix, and the node for the next symbol.
+    private List<Prefix> _lefts;
+    private List<ForestNode> _rights;
+    long[] counts;
+    long count = -1;
+
+    Prefix(ParseForest<?> forest, Production production, int dot, int start, int end) {
+      this._forest = forest;
+      this.production = production;
+      this.dot = dot;
+      this.start = start;
+      this.end = end;
+    }
+
+    boolean isAmbiguous() {
+      splits();
+      return _lefts.size() > 1 || (_lefts.size() == 1 && _lefts.get(0).isAmbiguous());
+    }
+
+    int splitCount() {
+      splits();
+      return _lefts.size();
+    }
+
+    Prefix left(int i) { return _lefts.get(i); }
+    ForestNode right(int i) { return _rights.get(i); }
+
+    private void splits() {
+      if (_lefts != null) {
+        return;
+      }
+      _lefts = new ArrayList<Prefix>();
+      _rights = new ArrayList<ForestNode>();
+      if (dot == 0) {
+        return;
+      }
+      GeneralizedParser<?, ?>.Chart chart = _forest.chart();
+      Symbol last = production.rhs[dot - 1];
+      // Only look at the places where the last symbol could have started, rather than at
+      // every position in the span; otherwise a long repetition is quadratic.
+      for (int k : chart.startsEndingAt(last, end)) {
+        if (k >= start && chart.hasItem(production, dot - 1, start, k)) {
+          _lefts.add(_forest.prefix(production, dot - 1, start, k));
+          _rights.add(_forest.node(last, k, end));
+        }
+      }
+    }
+
+    /**
+     * Add every way of filling in the children of this chain, skipping splits that only
+     * have cyclic derivations.
+     */
+    void expand(ForestNode[] children, List<ForestNode[]> result) {
+      if (dot == 0) {
+        result.add(children.clone());
+        return;
+      }
+      _forest.count(this);
+      for (int i = 0; i < splitCount(); i++) {
+        if (counts[i] != 0) {
+          children[dot - 1] = right(i);
+          left(i).expand(children, result);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A generalized parsing engine, for ambiguous grammars.
+ *
+ * The normal parse methods treat a grammar as a PEG: a ChoiceParser commits to the first
+ * alternative that succeeds, which means that on an ambiguous grammar it can pick the wrong one,
+ * and exploring all of the alternatives by backtracking takes exponential time. This engine
+ * reads the same combinator graph as a context free grammar, and runs an Earley parser over
+ * it. That handles any grammar - including ambiguous ones, and ones with direct or indirect left
+ * recursion through RefParsers - in at most cubic time, and produces a ParseForest, which
+ * represents every derivation of the input in a shared, packed form.
+ *
+ * Combinators map to grammar rules in the obvious way: a ChoiceParser is a rule with one
+ * production per alternative, a SeqParser or andPair is a production with several symbols,
+ * a ManyParser is a left-recursive list rule, and so on. Any other parser (CharSetParser,
+ * match, end, and hand-written parsers) is a terminal: it's run at each position where the
+ * grammar might need it, and whatever input it consumes is one token. Repetitions that
+ * accumulate their results (RepeatParser) are terminals too, since their accumulators
+ * can't be shared between derivations, and so are RecoveringParsers.
+ *
+ * Unlike the PEG parse methods, a generalized parse has to match the entire input.
+ */
+public class GeneralizedParser<In, Out> {
+  // Production kinds, which say how to build a production's value from its symbols' values.
+  static final int PASS = 0;
+  static final int TRANSFORM = 1;
+  static final int LIST = 2;
+  static final int KEEP = 3;
+  static final int SEQN = 4;
+  static final int PAIR = 5;
+  static final int FIRST = 6;
+  static final int SECOND = 7;
+  static final int DEFAULT = 8;
+  static final int MANY_START = 9;
+  static final int MANY_STEP = 10;
+
+  private final List<Symbol> _symbols = new ArrayList<Symbol>();
+  private final Map<Object, Symbol> _bySource = new IdentityHashMap<Object, Symbol>();
+  private final Symbol _start;
+
+  /**
+   * Compile a combinator grammar for generalized parsing.
+   * @param grammar the start rule of the grammar.
+   */
+  public GeneralizedParser(Parser<In, Out> grammar) {
+    _start = newSymbol(null, false);
+    _start.productions.add(new Production(_start, new Symbol[] { symbolFor(grammar) }, PASS, null));
+  }
+
+  /**
+   * A grammar symbol: either a nonterminal built from a combinator, or a terminal.
+   */
+  static final class Symbol {
+    final int id;
+    final Parser<?, ?> node;
+    final boolean terminal;
+    // For the pseudo-terminal that skips a lexeme's trivia.
+    Lexeme<?> skip;
+    final List<Production> productions = new ArrayList<Production>();
+
+    Symbol(int id, Parser<?, ?> node, boolean terminal) {
+      this.id = id;
+      this.node = node;
+      this.terminal = terminal;
+    }
+  }
+
+  /**
+   * A grammar production, and how to build its value.
+   */
+  static final class Production {
+    final Symbol lhs;
+    final Symbol[] rhs;
+    final int kind;
+    // The action, or other data that the kind needs.
+    final Object data;
+
+    Production(Symbol lhs, Symbol[] rhs, int kind, Object data) {
+      this.lhs = lhs;
+      this.rhs = rhs;
+      this.kind = kind;
+      this.data = data;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Object build(Object[] values) {
+      switch (kind) {
+      case PASS:
+        return values[0];
+      case TRANSFORM:
+        return ((Action)data).run(values[0]);
+      case LIST:
+      case MANY_START:
+        List list = new ArrayList(values.length);
+        Collections.addAll(list, values);
+        return list;
+      case KEEP:
+        return values[(Integer)data];
+      case SEQN:
+        return ((SeqNParser)data).combine(values);
+      case PAIR:
+        return new Pair(values[0], values[1]);
+      case FIRST:
+        return values[0];
+      case SECOND:
+        return values[1];
+      case DEFAULT:
+        return data;
+      case MANY_STEP:
+        // The list was built for this derivation alone, so it can grow in place.
+        List grown = (List)values[0];
+        grown.add(values[1]);
+        return grown;
+      default:
+        throw new IllegalStateException("Unknown production kind " + kind);
+      }
+    }
+  }
+
+  private Symbol newSymbol(Parser<?, ?> node, boolean terminal) {
+    Symbol s = new Symbol(_symbols.size(), node, terminal);
+    _symbols.add(s);
+    return s;
+  }
+
+  private void add(Symbol lhs, int kind, Object data, Parser<?, ?>... rhs) {
+    Symbol[] symbols = new Symbol[rhs.length];
+    for (int i = 0; i < rhs.length; i++) {
+      symbols[i] = symbolFor(rhs[i]);
+    }
+    lhs.productions.add(new Production(lhs, symbols, kind, data));
+  }
+
+  private Symbol skipSymbol(Lexeme<?> lexeme) {
+    Symbol s = _bySource.get(lexeme);
+    if (s == null) {
+      s = newSymbol(null, true);
+      s.skip = lexeme;
+      _bySource.put(lexeme, s);
+    }
+    return s;
+  }
+
+  /**
+   * Get the symbol for a parser node, translating it into productions the first time.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Symbol symbolFor(Parser<?, ?> node) {
+    Symbol s = _bySource.get(node);
+    if (s != null) {
+      return s;
+    }
+    if (!isCombinator(node)) {
+      s = newSymbol(node, true);
+      _bySource.put(node, s);
+      return s;
+    }
+    s = newSymbol(node, false);
+    _bySource.put(node, s);
+    if (node instanceof RefParser) {
+      Parser target = ((RefParser)node).getRef();
+      if (target != null) {
+        add(s, PASS, null, target);
+      }
+    } else if (node instanceof ChoiceParser || node instanceof ParallelChoiceParser) {
+      for (Parser<?, ?> choice : ParserGraph.children(node)) {
+        add(s, PASS, null, choice);
+      }
+    } else if (node instanceof SeqParser) {
+      add(s, LIST, null, ParserGraph.children(node).toArray(new Parser[0]));
+    } else if (node instanceof KeepParser) {
+      add(s, KEEP, ((KeepParser)node).getKeep(), ParserGraph.children(node).toArray(new Parser[0]));
+    } else if (node instanceof SeqNParser) {
+      add(s, SEQN, node, ParserGraph.children(node).toArray(new Parser[0]));
+    } else if (node instanceof AndPairParser) {
+      add(s, PAIR, null, ParserGraph.children(node).toArray(new Parser[0]));
+    } else if (node instanceof AndFirstParser) {
+      add(s, FIRST, null, ParserGraph.children(node).toArray(new Parser[0]));
+    } else if (node instanceof AndSecondParser) {
+      add(s, SECOND, null, ParserGraph.children(node).toArray(new Parser[0]));
+    } else if (node instanceof Transform) {
+      add(s, TRANSFORM, ((Transform)node).getAction(), ((Transform)node).getBase());
+    } else if (node instanceof OptParser) {
+      add(s, PASS, null, ((OptParser)node).getBase());
+      add(s, DEFAULT, ((OptParser)node).getNullVal());
+    } else if (node instanceof ManyParser) {
+      ManyParser m = (ManyParser)node;
+      Parser[] start = new Parser[m.getAtLeast()];
+      for (int i = 0; i < start.length; i++) {
+        start[i] = m.getBase();
+      }
+      add(s, MANY_START, null, start);
+      add(s, MANY_STEP, null, node, m.getBase());
+    } else if (node instanceof LexemeParser) {
+      LexemeParser l = (LexemeParser)node;
+      Symbol skip = skipSymbol(l.getLexeme());
+      Symbol base = symbolFor(l.getBase());
+      if (l.getLexeme().isTrailing()) {
+        s.productions.add(new Production(s, new Symbol[] { base, skip }, FIRST, null));
+      } else {
+        s.productions.add(new Production(s, new Symbol[] { skip, base }, SECOND, null));
+      }
+    } else {
+      // Wrappers like TrampolineParser and InstrumentedParser are transparent.
+      add(s, PASS, null, ParserGraph.children(node).get(0));
+    }
+    return s;
+  }
+
+  private static boolean isCombinator(Parser<?, ?> node) {
+    if (node instanceof RepeatParser || node instanceof RecoveringParser) {
+      return false;
+    }
+    return node instanceof RefParser || node instanceof LexemeParser || !ParserGraph.children(node).isEmpty();
+  }
+
+  /**
+   * Parse an input.
+   * @return a forest containing every derivation of the whole input. If the input can't be parsed,
+   *   the forest is empty.
+   */
+  public ParseForest<Out> parse(ParserInput<In> in) {
+    Chart chart = new Chart(in);
+    chart.run();
+    return new ParseForest<Out>(chart, _start);
+  }
+
+  /**
+   * An Earley item: a production, how much of it has been recognized, and where it started.
+   */
+  static final class Item {
+    final Production production;
+    final int dot;
+    final int origin;
+
+    Item(Production production, int dot, int origin) {
+      this.production = production;
+      this.dot = dot;
+      this.origin = origin;
+    }
+
+    boolean isComplete() { return dot == production.rhs.length; }
+
+    Symbol next() { return production.rhs[dot]; }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Item)) {
+        return false;
+      }
+      Item other = (Item)o;
+      return other.production == production && other.dot == dot && other.origin == origin;
+    }
+
+    @Override
+    public int hashCode() {
+      return (System.identityHashCode(production) * 31 + dot) * 31 + origin;
+    }
+  }
+
+  /**
+   * The Earley chart for one input.
+   */
+  final class Chart {
+    final ParserInput<?>[] inputs;
+    final int base;
+    final List<Set<Item>> items = new ArrayList<Set<Item>>();
+    private final List<List<Item>> _worklists = new ArrayList<List<Item>>();
+    // For each position, the items there that are waiting for a nonterminal, by nonterminal id.
+    private final List<Map<Integer, List<Item>>> _waiting = new ArrayList<Map<Integer, List<Item>>>();
+    // For each position, the (nonterminal, origin) pairs that completed there.
+    private final List<Set<Long>> _completed = new ArrayList<Set<Long>>();
+    // For each position, the origins of the nonterminals that completed there, by nonterminal id.
+    private final List<Map<Integer, List<Integer>>> _origins = new ArrayList<Map<Integer, List<Integer>>>();
+    // Terminal match results, by (terminal, position).
+    private final Map<Long, ParseResult<?, ?>> _matches = new HashMap<Long, ParseResult<?, ?>>();
+    // The positions where each terminal's successful matches started, by (terminal, end).
+    private final Map<Long, List<Integer>> _starts = new HashMap<Long, List<Integer>>();
+
+    Chart(ParserInput<?> in) {
+      List<ParserInput<?>> positions = new ArrayList<ParserInput<?>>();
+      ParserInput<?> cur = in;
+      positions.add(cur);
+      while (!cur.atEnd()) {
+        cur = cur.rest();
+        positions.add(cur);
+      }
+      inputs = positions.toArray(new ParserInput<?>[positions.size()]);
+      base = in.getPosition();
+      for (int i = 0; i < inputs.length; i++) {
+        items.add(new HashSet<Item>());
+        _worklists.add(new ArrayList<Item>());
+        _waiting.add(new HashMap<Integer, List<Item>>());
+        _completed.add(new HashSet<Long>());
+        _origins.add(new HashMap<Integer, List<Integer>>());
+      }
+    }
+
+    int length() { return inputs.length - 1; }
+
+    private long key(Symbol s, int pos) {
+      return (long)s.id * inputs.length + pos;
+    }
+
+    boolean completed(Symbol nonterminal, int origin, int end) {
+      return _completed.get(end).contains(key(nonterminal, origin));
+    }
+
+    boolean hasItem(Production p, int dot, int origin, int pos) {
+      return items.get(pos).contains(new Item(p, dot, origin));
+    }
+
+    /**
+     * Get the positions where a symbol's derivations that end at a position start, in
+     * increasing order.
+     */
+    List<Integer> startsEndingAt(Symbol symbol, int end) {
+      List<Integer> starts = symbol.terminal ? _starts.get(key(symbol, end)) : _origins.get(end).get(symbol.id);
+      if (starts == null) {
+        return Collections.emptyList();
+      }
+      List<Integer> sorted = new ArrayList<Integer>(starts);
+      Collections.sort(sorted);
+      return sorted;
+    }
+
+    /**
+     * Run a terminal at a position.
+     * @return the position where it ended, or -1 if it failed.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    int match(Symbol terminal, int pos) {
+      ParseResult<?, ?> r = matchResult(terminal, pos);
+      if (!(r instanceof Success)) {
+        return -1;
+      }
+      int end = r.getRest().getPosition() - base;
+      return end >= pos && end < inputs.length ? end : -1;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ParseResult<?, ?> matchResult(Symbol terminal, int pos) {
+      long k = key(terminal, pos);
+      ParseResult<?, ?> r = _matches.get(k);
+      if (r == null) {
+        if (terminal.skip != null) {
+          r = new Success(null, ((Lexeme)terminal.skip).skip(inputs[pos]));
+        } else {
+          r = ((Parser)terminal.node).parse(inputs[pos]);
+        }
+        _matches.put(k, r);
+        if (r instanceof Success) {
+          int end = r.getRest().getPosition() - base;
+          if (end >= pos && end < inputs.length) {
+            List<Integer> starts = _starts.get(key(terminal, end));
+            if (starts == null) {
+              starts = new ArrayList<Integer>();
+              _starts.put(key(terminal, end), starts);
+            }
+            starts.add(pos);
+          }
+        }
+      }
+      return r;
+    }
+
+    private void add(int pos, Item item) {
+      if (items.get(pos).add(item)) {
+        _worklists.get(pos).add(item);
+      }
+    }
+
+    void run() {
+      for (Production p : _start.productions) {
+        add(0, new Item(p, 0, 0));
+      }
+      for (int i = 0; i < inputs.length; i++) {
+        List<Item> work = _worklists.get(i);
+        for (int w = 0; w < work.size(); w++) {
+          Item item = work.get(w);
+          if (item.isComplete()) {
+            complete(item, i);
+          } else if (item.next().terminal) {
+            int end = match(item.next(), i);
+            if (end >= 0) {
+              add(end, new Item(item.production, item.dot + 1, item.origin));
+            }
+          } else {
+            predict(item, i);
+          }
+        }
+        _worklists.set(i, null);
+      }
+    }
+
+    private void complete(Item item, int pos) {
+      Symbol lhs = item.production.lhs;
+      if (!_completed.get(pos).add(key(lhs, item.origin))) {
+        return;
+      }
+      List<Integer> origins = _origins.get(pos).get(lhs.id);
+      if (origins == null) {
+        origins = new ArrayList<Integer>();
+        _origins.get(pos).put(lhs.id, origins);
+      }
+      origins.add(item.origin);
+      List<Item> waiting = _waiting.get(item.origin).get(lhs.id);
+      if (waiting != null) {
+        // Completing an empty span can add more waiting items at this position, so use an index.
+        for (int w = 0; w < waiting.size(); w++) {
+          Item waiter = waiting.get(w);
+          add(pos, new Item(waiter.production, waiter.dot + 1, waiter.origin));
+        }
+      }
+    }
+
+    private void predict(Item item, int pos) {
+      Symbol next = item.next();
+      Map<Integer, List<Item>> waitingHere = _waiting.get(pos);
+      List<Item> waiting = waitingHere.get(next.id);
+      boolean predicted = waiting != null;
+      if (waiting == null) {
+        waiting = new ArrayList<Item>();
+        waitingHere.put(next.id, waiting);
+      }
+      waiting.add(item);
+      // If the nonterminal has already matched the empty span here, it won't complete again.
+      if (completed(next, pos, pos)) {
+        add(pos, new Item(item.production, item.dot + 1, item.origin));
+      }
+      if (!predicted) {
+        for (Production p : next.productions) {
+          add(pos, new Item(p, 0, pos));
+        }
+      }
+    }
+  }
+}
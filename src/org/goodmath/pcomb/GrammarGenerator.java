@@ -0,0 +1,652 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A build-time generator which turns a grammar into the Java source of a plain recursive
+ * descent parser with the same behavior.
+ *
+ * A combinator grammar is built at runtime: every program that uses one pays for
+ * constructing the graph, binding its refs, and running any analysis over it, and the
+ * anonymous classes that actions are usually written as get in the way of native-image
+ * compilation. The generated parser is a single class with one method per rule, with no
+ * reflection and nothing to build at startup, so it can be compiled ahead of time.
+ *
+ * The generator finds the grammar's actions, tokens and default values through the public
+ * static fields of a set of holder classes, and the generated code refers to them by name.
+ * Any value that the generated code can't write as a literal has to be held by one of
+ * those fields. Rules held by a field give the generated methods their names. A parser type
+ * that the generator doesn't know about can still be used, if it's held by a field: the
+ * generated code calls it through that field.
+ *
+ * To keep startup free, actions should live in a class which doesn't build the grammar,
+ * since referring to a field initializes the class that holds it.
+ *
+ * Instrumented and stack-safe parsers are generated as their underlying grammar, and
+ * parallel choices as ordinary choices; they all produce the same results. Rules wrapped by
+ * an AdaptiveMemo policy are memoized in the generated parser if the policy had decided to
+ * memoize them when the parser was generated. Left-recursive
+ * refs aren't generated: they have to be held by a field, and are called through it.
+ *
+ * Usage: java org.goodmath.pcomb.GrammarGenerator grammarClass ruleField
+ *     generatedClassName inType outType outputDir [holderClass...]
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class GrammarGenerator {
+  private final Parser<?, ?> _root;
+  // Objects held by a public static field of a holder class, mapped to the field's name.
+  private final Map<Object, String> _fields = new IdentityHashMap<Object, String>();
+  private final Map<Parser<?, ?>, String> _methods = new IdentityHashMap<Parser<?, ?>, String>();
+  private final List<Parser<?, ?>> _pending = new ArrayList<Parser<?, ?>>();
+  private final Map<Object, String> _constants = new IdentityHashMap<Object, String>();
+  private final StringBuilder _constantDecls = new StringBuilder();
+  private final Map<Parser<?, ?>, String> _skips = new IdentityHashMap<Parser<?, ?>, String>();
+  private final StringBuilder _skipDecls = new StringBuilder();
+  private final StringBuilder _runFields = new StringBuilder();
+  private int _memoCount;
+
+  /**
+   * @param root the start rule of the grammar.
+   * @param holders the classes whose public static fields hold the grammar's rules,
+   *   actions, and values.
+   */
+  public GrammarGenerator(Parser<?, ?> root, Class<?>... holders) {
+    this._root = root;
+    for (Class<?> holder : holders) {
+      addFields(holder);
+    }
+    addFields(Parser.class);
+  }
+
+  private void addFields(Class<?> holder) {
+    if (!Modifier.isPublic(holder.getModifiers())) {
+      return;
+    }
+    for (Field f : holder.getFields()) {
+      if (!Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive()) {
+        continue;
+      }
+      try {
+        Object value = f.get(null);
+        if (value != null && !_fields.containsKey(value)) {
+          _fields.put(value, f.getDeclaringClass().getCanonicalName() + "." + f.getName());
+        }
+      } catch (IllegalAccessException e) {
+        // Not visible to generated code either.
+      }
+    }
+  }
+
+  /**
+   * Generate the source of a parser class.
+   * @param className the fully qualified name of the class to generate.
+   * @param inType the source name of the parser's input type, like "Character".
+   * @param outType the source name of the parser's result type.
+   * @throws IllegalStateException if the grammar contains an unbound RefParser.
+   * @throws IllegalArgumentException if the grammar uses a value or parser that the
+   *   generated code has no way to refer to.
+   */
+  public String generate(String className, String inType, String outType) {
+    String rootMethod = methodFor(_root);
+    StringBuilder methods = new StringBuilder();
+    while (!_pending.isEmpty()) {
+      Parser<?, ?> node = _pending.remove(0);
+      methods.append("\n    Object ").append(_methods.get(node)).append("(ParserInput in) {\n");
+      emit(node, methods);
+      methods.append("    }\n");
+    }
+
+    int dot = className.lastIndexOf('.');
+    StringBuilder out = new StringBuilder();
+    out.append("// Generated by org.goodmath.pcomb.GrammarGenerator. Do not edit.\n");
+    if (dot >= 0) {
+      out.append("package ").append(className.substring(0, dot)).append(";\n\n");
+    }
+    out.append("import java.util.ArrayList;\n");
+    out.append("import java.util.List;\n\n");
+    out.append("import org.goodmath.pcomb.Action;\n");
+    for (int i = 2; i <= 8; i++) {
+      out.append("import org.goodmath.pcomb.Action").append(i).append(";\n");
+    }
+    out.append("import org.goodmath.pcomb.Failure;\n");
+    out.append("import org.goodmath.pcomb.Pair;\n");
+    out.append("import org.goodmath.pcomb.ParseResult;\n");
+    out.append("import org.goodmath.pcomb.Parser;\n");
+    out.append("import org.goodmath.pcomb.ParserInput;\n");
+    out.append("import org.goodmath.pcomb.Success;\n\n");
+    out.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+    out.append("public final class ").append(className.substring(dot + 1));
+    out.append(" extends Parser<").append(inType).append(", ").append(outType).append("> {\n");
+    out.append("  private static final Object FAIL = new Object();\n");
+    out.append(_constantDecls);
+    out.append("\n  @Override\n");
+    out.append("  public ParseResult<").append(inType).append(", ").append(outType);
+    out.append("> parse(ParserInput<").append(inType).append("> in) {\n");
+    out.append("    Run run = new Run();\n");
+    out.append("    Object result = run.").append(rootMethod).append("(in);\n");
+    out.append("    if (result == FAIL) {\n");
+    out.append("      return new Failure<").append(inType).append(", ").append(outType).append(">();\n");
+    out.append("    }\n");
+    out.append("    return new Success<").append(inType).append(", ").append(outType);
+    out.append(">((").append(outType).append(")result, run.rest);\n");
+    out.append("  }\n\n");
+    out.append("  // The state of one parse. Each rule method returns its result, or FAIL, and on\n");
+    out.append("  // success leaves the input that follows it in rest.\n");
+    out.append("  private static final class Run {\n");
+    out.append("    ParserInput rest;\n");
+    out.append(_runFields);
+    out.append(methods);
+    out.append(_skipDecls);
+    out.append("  }\n");
+    out.append("}\n");
+    return out.toString();
+  }
+
+  /**
+   * Get the node that actually does the parsing for a parser, skipping over refs and
+   * wrappers that don't change the result.
+   */
+  private Parser<?, ?> resolve(Parser<?, ?> node) {
+    Map<Parser<?, ?>, Boolean> seen = new IdentityHashMap<Parser<?, ?>, Boolean>();
+    while (true) {
+      if (seen.put(node, Boolean.TRUE) != null) {
+        throw new IllegalStateException("Grammar contains a cycle of refs that never consumes input");
+      }
+      if (node instanceof RefParser && !((RefParser<?, ?>)node).isLeftRecursive()) {
+        Parser<?, ?> target = ((RefParser<?, ?>)node).getRef();
+        if (target == null) {
+          throw new IllegalStateException("Grammar contains an unbound RefParser");
+        }
+        node = target;
+      } else if (node instanceof InstrumentedParser) {
+        node = ((InstrumentedParser<?, ?>)node).getBase();
+      } else if (node instanceof MemoParser && !((MemoParser<?, ?>)node).getRule().enabled) {
+        node = ((MemoParser<?, ?>)node).getBase();
+      } else if (node instanceof TrampolineParser) {
+        node = ((TrampolineParser<?, ?>)node).getRoot();
+      } else {
+        return node;
+      }
+    }
+  }
+
+  private String methodFor(Parser<?, ?> node) {
+    Parser<?, ?> target = resolve(node);
+    String name = _methods.get(target);
+    if (name == null) {
+      // A rule is usually held by a field as a ref, so name the method after either one.
+      String field = _fields.containsKey(target) ? _fields.get(target) : _fields.get(node);
+      node = target;
+      if (field != null) {
+        name = "parse_" + field.substring(field.lastIndexOf('.') + 1);
+        if (_methods.containsValue(name)) {
+          name = name + "_" + _methods.size();
+        }
+      } else {
+        name = "parse" + _methods.size();
+      }
+      _methods.put(node, name);
+      _pending.add(node);
+    }
+    return name;
+  }
+
+  /**
+   * Get an expression for a value used by the grammar: a reference to the field that
+   * holds it, or a literal with the same identity.
+   */
+  private String constant(Object value) {
+    if (value == null) {
+      return "null";
+    }
+    String name = _constants.get(value);
+    if (name != null) {
+      return name;
+    }
+    String expr = _fields.get(value);
+    if (expr == null) {
+      expr = literal(value);
+    }
+    if (expr == null) {
+      throw new IllegalArgumentException("No public static field holds the grammar value " + value);
+    }
+    name = "K" + _constants.size();
+    _constants.put(value, name);
+    _constantDecls.append("  private static final Object ").append(name).append(" = ")
+        .append(expr).append(";\n");
+    return name;
+  }
+
+  /**
+   * Write a literal for a value, if the boxing of that literal produces the same object, so
+   * that identity comparisons in the generated code match the original's.
+   */
+  private static String literal(Object value) {
+    if (value instanceof String) {
+      return quote((String)value, '"');
+    } else if (value instanceof Character && (Character)value <= 127
+        && value == Character.valueOf((Character)value)) {
+      return "Character.valueOf(" + quote(value.toString(), '\'') + ")";
+    } else if (value instanceof Integer && value == Integer.valueOf((Integer)value)) {
+      return "Integer.valueOf(" + value + ")";
+    } else if (value instanceof Boolean) {
+      return "Boolean." + value.toString().toUpperCase();
+    }
+    return null;
+  }
+
+  private static String quote(String s, char q) {
+    StringBuilder b = new StringBuilder();
+    b.append(q);
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == q || c == '\\') {
+        b.append('\\').append(c);
+      } else if (c == '\n') {
+        b.append("\\n");
+      } else if (c == '\t') {
+        b.append("\\t");
+      } else if (c == '\r') {
+        b.append("\\r");
+      } else if (c < 32 || c > 126) {
+        b.append(String.format("\\u%04x", (int)c));
+      } else {
+        b.append(c);
+      }
+    }
+    return b.append(q).toString();
+  }
+
+  /**
+   * Check whether every value a node uses itself (not its children) can be referred to
+   * from generated code.
+   */
+  private boolean canGenerate(Parser<?, ?> node) {
+    try {
+      Object value = null;
+      if (node instanceof MatchParser) {
+        value = ((MatchParser<?>)node).getToken();
+      } else if (node instanceof EndParser) {
+        value = ((EndParser<?, ?>)node).getValue();
+      } else if (node instanceof OptParser) {
+        value = ((OptParser<?, ?>)node).getNullVal();
+      } else if (node instanceof Transform) {
+        value = ((Transform<?, ?, ?>)node).getAction();
+      } else if (node instanceof SeqNParser) {
+        value = ((SeqNParser<?, ?>)node).getAction();
+      } else if (node instanceof RepeatParser) {
+        value = ((RepeatParser<?, ?, ?>)node).getAction();
+        if (node instanceof RepeatParser.Fold) {
+          Object seed = ((RepeatParser.Fold<?, ?, ?>)node).getSeed();
+          if (seed != null && !_fields.containsKey(seed) && literal(seed) == null) {
+            return false;
+          }
+        }
+      } else if (!(node instanceof ChoiceParser || node instanceof ParallelChoiceParser
+          || node instanceof SeqParser || node instanceof KeepParser
+          || node instanceof ManyParser || node instanceof LexemeParser
+          || node instanceof AndPairParser || node instanceof AndFirstParser
+          || node instanceof AndSecondParser || node instanceof CharSetParser
+          || node instanceof LineCommentParser || node instanceof PositionParser
+          || node instanceof MemoParser)) {
+        return false;
+      }
+      if (value != null && !_fields.containsKey(value) && literal(value) == null) {
+        return false;
+      }
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private void emit(Parser<?, ?> node, StringBuilder b) {
+    if (!canGenerate(node)) {
+      String field = _fields.get(node);
+      if (field == null) {
+        throw new IllegalArgumentException("Can't generate code for " + node.getClass().getName()
+            + ", and no public static field holds it");
+      }
+      b.append("      ParseResult r = ").append(field).append(".parse(in);\n");
+      b.append("      if (!(r instanceof Success)) {\n");
+      b.append("        return FAIL;\n");
+      b.append("      }\n");
+      b.append("      rest = r.getRest();\n");
+      b.append("      return ((Success)r).getResult();\n");
+    } else if (node instanceof MatchParser) {
+      String token = constant(((MatchParser<?>)node).getToken());
+      b.append("      if (in.first() != ").append(token).append(") {\n");
+      b.append("        return FAIL;\n");
+      b.append("      }\n");
+      b.append("      rest = in.rest();\n");
+      b.append("      return ").append(token).append(";\n");
+    } else if (node instanceof CharSetParser) {
+      b.append("      Object c = in.first();\n");
+      b.append("      if (").append(quote(((CharSetParser)node).getChars(), '"'))
+          .append(".indexOf((Character)c) == -1) {\n");
+      b.append("        return FAIL;\n");
+      b.append("      }\n");
+      b.append("      rest = in.rest();\n");
+      b.append("      return c;\n");
+    } else if (node instanceof EndParser) {
+      b.append("      if (!in.atEnd()) {\n");
+      b.append("        return FAIL;\n");
+      b.append("      }\n");
+      b.append("      rest = in;\n");
+      b.append("      return ").append(constant(((EndParser<?, ?>)node).getValue())).append(";\n");
+    } else if (node instanceof MemoParser) {
+      // The rule was memoized when the grammar was generated, so the decision is frozen in.
+      String memo = "memo" + _memoCount++;
+      _runFields.append("    Object[] ").append(memo).append(";\n");
+      b.append("      Object[] memo = ").append(memo).append(";\n");
+      b.append("      if (memo == null) {\n");
+      b.append("        memo = new Object[").append(3 * AdaptiveMemo.CACHE_SIZE).append("];\n");
+      b.append("        ").append(memo).append(" = memo;\n");
+      b.append("      }\n");
+      b.append("      int slot = (in.hashCode() & ").append(AdaptiveMemo.CACHE_SIZE - 1).append(") * 3;\n");
+      b.append("      if (in.equals(memo[slot])) {\n");
+      b.append("        rest = (ParserInput)memo[slot + 2];\n");
+      b.append("        return memo[slot + 1];\n");
+      b.append("      }\n");
+      b.append("      Object v = ").append(methodFor(((MemoParser<?, ?>)node).getBase())).append("(in);\n");
+      b.append("      memo[slot] = in;\n");
+      b.append("      memo[slot + 1] = v;\n");
+      b.append("      memo[slot + 2] = rest;\n");
+      b.append("      return v;\n");
+    } else if (node instanceof PositionParser) {
+      b.append("      rest = in;\n");
+      b.append("      return Integer.valueOf(org.goodmath.pcomb.LineIndex.offsetOf(in));\n");
+    } else if (node instanceof LineCommentParser) {
+      String marker = ((LineCommentParser)node).getMarker();
+      for (int i = 0; i < marker.length(); i++) {
+        b.append("      if (in.atEnd() || (Character)in.first() != ")
+            .append(quote(String.valueOf(marker.charAt(i)), '\'')).append(") {\n");
+        b.append("        return FAIL;\n");
+        b.append("      }\n");
+        b.append("      in = in.rest();\n");
+      }
+      b.append("      while (!in.atEnd() && (Character)in.first() != '\\n') {\n");
+      b.append("        in = in.rest();\n");
+      b.append("      }\n");
+      b.append("      rest = in;\n");
+      b.append("      return Character.valueOf(' ');\n");
+    } else if (node instanceof ChoiceParser || node instanceof ParallelChoiceParser) {
+      List<? extends Parser<?, ?>> choices = node instanceof ChoiceParser
+          ? ((ChoiceParser<?, ?>)node).getChoices()
+          : ((ParallelChoiceParser<?, ?>)node).getChoices();
+      b.append("      Object v;\n");
+      for (Parser<?, ?> choice : choices) {
+        b.append("      v = ").append(methodFor(choice)).append("(in);\n");
+        b.append("      if (v != FAIL) {\n");
+        b.append("        return v;\n");
+        b.append("      }\n");
+      }
+      b.append("      return FAIL;\n");
+    } else if (node instanceof SeqParser) {
+      b.append("      List<Object> values = new ArrayList<Object>();\n");
+      emitSequence(((SeqParser<?, ?>)node).getParsers(), -1, b);
+      b.append("      return values;\n");
+    } else if (node instanceof KeepParser) {
+      KeepParser<?, ?> keep = (KeepParser<?, ?>)node;
+      b.append("      Object kept = null;\n");
+      emitSequence(keep.getParsers(), keep.getKeep(), b);
+      b.append("      return kept;\n");
+    } else if (node instanceof SeqNParser) {
+      SeqNParser<?, ?> seq = (SeqNParser<?, ?>)node;
+      List<? extends Parser<?, ?>> parsers = seq.getParsers();
+      String cur = "in";
+      for (int i = 0; i < parsers.size(); i++) {
+        b.append("      Object v").append(i).append(" = ").append(methodFor(parsers.get(i)))
+            .append("(").append(cur).append(");\n");
+        b.append("      if (v").append(i).append(" == FAIL) {\n");
+        b.append("        return FAIL;\n");
+        b.append("      }\n");
+        cur = "rest";
+      }
+      b.append("      return ((Action").append(parsers.size()).append(")")
+          .append(constant(seq.getAction())).append(").run(");
+      for (int i = 0; i < parsers.size(); i++) {
+        b.append(i == 0 ? "v" : ", v").append(i);
+      }
+      b.append(");\n");
+    } else if (node instanceof ManyParser) {
+      ManyParser<?, ?> many = (ManyParser<?, ?>)node;
+      String base = methodFor(many.getBase());
+      b.append("      List<Object> values = new ArrayList<Object>();\n");
+      b.append("      ParserInput unparsed = in;\n");
+      b.append("      Object v = ").append(base).append("(unparsed);\n");
+      b.append("      while (v != FAIL) {\n");
+      b.append("        values.add(v);\n");
+      b.append("        unparsed = rest;\n");
+      b.append("        v = ").append(base).append("(unparsed);\n");
+      b.append("      }\n");
+      b.append("      if (values.size() < ").append(many.getAtLeast()).append(") {\n");
+      b.append("        return FAIL;\n");
+      b.append("      }\n");
+      b.append("      rest = unparsed;\n");
+      b.append("      return values;\n");
+    } else if (node instanceof RepeatParser) {
+      emitRepeat((RepeatParser<?, ?, ?>)node, b);
+    } else if (node instanceof OptParser) {
+      OptParser<?, ?> opt = (OptParser<?, ?>)node;
+      b.append("      Object v = ").append(methodFor(opt.getBase())).append("(in);\n");
+      b.append("      if (v != FAIL) {\n");
+      b.append("        return v;\n");
+      b.append("      }\n");
+      b.append("      rest = in;\n");
+      b.append("      return ").append(constant(opt.getNullVal())).append(";\n");
+    } else if (node instanceof Transform) {
+      Transform<?, ?, ?> t = (Transform<?, ?, ?>)node;
+      b.append("      Object v = ").append(methodFor(t.getBase())).append("(in);\n");
+      b.append("      if (v == FAIL) {\n");
+      b.append("        return FAIL;\n");
+      b.append("      }\n");
+      b.append("      return ((Action)").append(constant(t.getAction())).append(").run(v);\n");
+    } else if (node instanceof LexemeParser) {
+      LexemeParser<?, ?> l = (LexemeParser<?, ?>)node;
+      String skip = skipFor(l.getLexeme().getSkip());
+      String base = methodFor(l.getBase());
+      if (!l.getLexeme().isTrailing()) {
+        b.append("      return ").append(base).append("(").append(skip).append("(in));\n");
+      } else {
+        b.append("      Object v = ").append(base).append("(in);\n");
+        b.append("      if (v == FAIL) {\n");
+        b.append("        return FAIL;\n");
+        b.append("      }\n");
+        b.append("      rest = ").append(skip).append("(rest);\n");
+        b.append("      return v;\n");
+      }
+    } else {
+      Parser<?, ?> first;
+      Parser<?, ?> second;
+      if (node instanceof AndPairParser) {
+        first = ((AndPairParser<?, ?, ?>)node).getFirst();
+        second = ((AndPairParser<?, ?, ?>)node).getSecond();
+      } else if (node instanceof AndFirstParser) {
+        first = ((AndFirstParser<?, ?, ?>)node).getFirst();
+        second = ((AndFirstParser<?, ?, ?>)node).getSecond();
+      } else {
+        first = ((AndSecondParser<?, ?, ?>)node).getFirst();
+        second = ((AndSecondParser<?, ?, ?>)node).getSecond();
+      }
+      b.append("      Object a = ").append(methodFor(first)).append("(in);\n");
+      b.append("      if (a == FAIL) {\n");
+      b.append("        return FAIL;\n");
+      b.append("      }\n");
+      b.append("      Object b = ").append(methodFor(second)).append("(rest);\n");
+      b.append("      if (b == FAIL) {\n");
+      b.append("        return FAIL;\n");
+      b.append("      }\n");
+      if (node instanceof AndPairParser) {
+        b.append("      return new Pair<Object, Object>(a, b);\n");
+      } else if (node instanceof AndFirstParser) {
+        b.append("      return a;\n");
+      } else {
+        b.append("      return b;\n");
+      }
+    }
+  }
+
+  private void emitRepeat(RepeatParser<?, ?, ?> r, StringBuilder b) {
+    String first = methodFor(r.getFirst());
+    String next = methodFor(r.getNext());
+    String action = constant(r.getAction());
+    if (r instanceof RepeatParser.Fold) {
+      b.append("      Object acc = ").append(constant(((RepeatParser.Fold<?, ?, ?>)r).getSeed()))
+          .append(";\n");
+    } else if (r instanceof RepeatParser.Collect) {
+      b.append("      java.util.stream.Collector collector = (java.util.stream.Collector)")
+          .append(action).append(";\n");
+      b.append("      java.util.function.BiConsumer add = collector.accumulator();\n");
+      b.append("      Object acc = collector.supplier().get();\n");
+    }
+    b.append("      ParserInput unparsed = in;\n");
+    b.append("      int count = 0;\n");
+    b.append("      while (count < ").append(r.getMax()).append(") {\n");
+    if (first.equals(next)) {
+      b.append("        Object v = ").append(first).append("(unparsed);\n");
+    } else {
+      b.append("        Object v = count == 0 ? ").append(first).append("(unparsed) : ")
+          .append(next).append("(unparsed);\n");
+    }
+    b.append("        if (v == FAIL) {\n");
+    b.append("          break;\n");
+    b.append("        }\n");
+    if (r instanceof RepeatParser.Fold) {
+      b.append("        acc = ((Action2)").append(action).append(").run(acc, v);\n");
+    } else if (r instanceof RepeatParser.Collect) {
+      b.append("        add.accept(acc, v);\n");
+    }
+    b.append("        unparsed = rest;\n");
+    b.append("        count++;\n");
+    b.append("      }\n");
+    b.append("      if (count < ").append(r.getMin()).append(") {\n");
+    b.append("        return FAIL;\n");
+    b.append("      }\n");
+    b.append("      rest = unparsed;\n");
+    if (r instanceof RepeatParser.Fold) {
+      b.append("      return acc;\n");
+    } else if (r instanceof RepeatParser.Collect) {
+      b.append("      return collector.finisher().apply(acc);\n");
+    } else {
+      b.append("      return null;\n");
+    }
+  }
+
+  /**
+   * Emit the steps of a sequence. Every result is added to a list named values, unless keep
+   * is the index of the one result to save in a variable named kept.
+   */
+  private void emitSequence(List<? extends Parser<?, ?>> parsers, int keep, StringBuilder b) {
+    b.append("      Object v;\n");
+    b.append("      ParserInput cur = in;\n");
+    for (int i = 0; i < parsers.size(); i++) {
+      b.append("      v = ").append(methodFor(parsers.get(i))).append("(cur);\n");
+      b.append("      if (v == FAIL) {\n");
+      b.append("        return FAIL;\n");
+      b.append("      }\n");
+      if (keep < 0) {
+        b.append("      values.add(v);\n");
+      } else if (i == keep) {
+        b.append("      kept = v;\n");
+      }
+      b.append("      cur = rest;\n");
+    }
+    b.append("      rest = cur;\n");
+  }
+
+  /**
+   * Get the name of the method which skips a lexeme's trivia, generating it if needed.
+   * Lexemes that share a skip parser share the method.
+   */
+  private String skipFor(Parser<?, ?> skip) {
+    String name = _skips.get(skip);
+    if (name != null) {
+      return name;
+    }
+    name = "skip" + _skips.size();
+    _skips.put(skip, name);
+    StringBuilder b = _skipDecls;
+    b.append("\n    ParserInput ").append(name).append("(ParserInput cur) {\n");
+    if (skip instanceof CharSetParser) {
+      b.append("      while (!cur.atEnd() && ").append(quote(((CharSetParser)skip).getChars(), '"'))
+          .append(".indexOf((Character)cur.first()) != -1) {\n");
+      b.append("        cur = cur.rest();\n");
+      b.append("      }\n");
+    } else {
+      b.append("      while (!cur.atEnd()) {\n");
+      b.append("        if (").append(methodFor(skip)).append("(cur) == FAIL || rest.equals(cur)) {\n");
+      b.append("          break;\n");
+      b.append("        }\n");
+      b.append("        cur = rest;\n");
+      b.append("      }\n");
+    }
+    b.append("      return cur;\n");
+    b.append("    }\n");
+    return name;
+  }
+
+  /**
+   * Generate a parser's source into a directory tree, like a compiler's output directory.
+   * @return the file that was written.
+   */
+  public File generate(File outputDir, String className, String inType, String outType)
+      throws IOException {
+    File file = new File(outputDir, className.replace('.', File.separatorChar) + ".java");
+    File dir = file.getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Can't create directory " + dir);
+    }
+    String source = generate(className, inType, outType);
+    Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      w.write(source);
+    } finally {
+      w.close();
+    }
+    return file;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 6) {
+      System.err.println("Usage: GrammarGenerator grammarClass ruleField generatedClassName "
+          + "inType outType outputDir [holderClass...]");
+      System.exit(1);
+    }
+    Class<?> grammar = Class.forName(args[0]);
+    Parser<?, ?> root = (Parser<?, ?>)grammar.getField(args[1]).get(null);
+    Class<?>[] holders = new Class<?>[args.length - 5];
+    holders[0] = grammar;
+    for (int i = 6; i < args.length; i++) {
+      holders[i - 5] = Class.forName(args[i]);
+    }
+    File file = new GrammarGenerator(root, holders).generate(new File(args[5]), args[2], args[3], args[4]);
+    System.out.println("Wrote " + file);
+  }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An optimizer which rewrites a sealed grammar - one where every RefParser has been bound -
+ * into an equivalent, smaller parser graph.
+ *
+ * Grammars built with the combinator methods tend to be deep and redundant: chained
+ * or calls produce choices nested inside of choices, chains of andFirst and andSecond
+ * produce trees of two-element sequences, every RefParser adds an extra call, and
+ * helper methods like charSet build a fresh copy of the same sub-parser every time they're
+ * called. The optimizer:
+ * <ul>
+ * <li>flattens nested choices into one choice, and chains of andFirst/andSecond into
+ *   a single KeepParser;</li>
+ * <li>merges adjacent single-character alternatives (CharSetParsers and matches of a character)
+ *   into one CharSetParser, and factors a shared leading parser out of adjacent alternatives
+ *   so that the character sets behind it can be merged too;</li>
+ * <li>inlines RefParsers, keeping only the ones that are needed to close a cycle, and the
+ *   left-recursive ones;</li>
+ * <li>hash-conses the result, so that structurally identical sub-parsers are shared.</li>
+ * </ul>
+ *
+ * The optimized grammar is a new graph; the original is left untouched.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class GrammarOptimizer {
+  // Original nodes that have already been rewritten, mapped to their rewritten versions.
+  private final Map<Parser, Parser> _done = new IdentityHashMap<Parser, Parser>();
+  // Nodes that are currently being rewritten, mapped to the placeholder ref that closes the cycle
+  // back to them, if there is one.
+  private final Map<Parser, RefParser> _inProgress = new IdentityHashMap<Parser, RefParser>();
+  // The hash-cons table.
+  private final Map<NodeKey, Parser> _shared = new HashMap<NodeKey, Parser>();
+  private int _nodesBefore;
+  private int _nodesAfter;
+
+  /**
+   * Optimize a grammar.
+   * @param root the start rule of the grammar.
+   * @return the start rule of the optimized grammar.
+   */
+  public static <In, Out> Parser<In, Out> optimize(Parser<In, Out> root) {
+    return new GrammarOptimizer().run(root);
+  }
+
+  /**
+   * Optimize a grammar, and print the number of parser nodes before and after.
+   */
+  public static <In, Out> Parser<In, Out> optimize(Parser<In, Out> root, PrintStream log) {
+    GrammarOptimizer optimizer = new GrammarOptimizer();
+    Parser<In, Out> result = optimizer.run(root);
+    log.println(optimizer);
+    return result;
+  }
+
+  /**
+   * Count the number of distinct parser nodes reachable from a parser.
+   */
+  public static int countNodes(Parser<?, ?> root) {
+    return ParserGraph.reachable(root).size();
+  }
+
+  public <In, Out> Parser<In, Out> run(Parser<In, Out> root) {
+    _nodesBefore = countNodes(root);
+    Parser<In, Out> result = rewrite(root);
+    _nodesAfter = countNodes(result);
+    return result;
+  }
+
+  public int getNodesBefore() { return _nodesBefore; }
+  public int getNodesAfter() { return _nodesAfter; }
+
+  @Override
+  public String toString() {
+    return "grammar optimized from " + _nodesBefore + " to " + _nodesAfter + " parser nodes";
+  }
+
+  private Parser rewrite(Parser node) {
+    Parser done = _done.get(node);
+    if (done != null) {
+      return done;
+    }
+    if (_inProgress.containsKey(node)) {
+      // We've gone around a cycle, so this is a place where we need to keep a ref.
+      RefParser placeholder = _inProgress.get(node);
+      if (placeholder == null) {
+        placeholder = new RefParser();
+        _inProgress.put(node, placeholder);
+      }
+      return placeholder;
+    }
+    _inProgress.put(node, null);
+    Parser result = rewriteNode(node);
+    RefParser placeholder = _inProgress.remove(node);
+    if (placeholder != null) {
+      placeholder.setRef(result);
+    }
+    _done.put(node, result);
+    return result;
+  }
+
+  private Parser rewriteNode(Parser node) {
+    if (node instanceof RefParser) {
+      RefParser ref = (RefParser)node;
+      Parser target = ref.getRef();
+      if (target == null) {
+        throw new IllegalStateException("Grammar is not sealed: a RefParser was never bound");
+      }
+      if (ref.isLeftRecursive()) {
+        // A left-recursive ref's memoization is what makes it work, so it has to stay.
+        RefParser copy = new RefParser(true);
+        _done.put(node, copy);
+        copy.setRef(rewrite(target));
+        return copy;
+      }
+      return rewrite(target);
+    } else if (node instanceof ChoiceParser) {
+      List<Parser> alternatives = new ArrayList<Parser>();
+      for (Object choice : ((ChoiceParser)node).getChoices()) {
+        alternatives.add(rewrite((Parser)choice));
+      }
+      return choice(alternatives);
+    } else if (node instanceof ParallelChoiceParser) {
+      // The alternatives were split up deliberately, so they're optimized but not merged.
+      ParallelChoiceParser p = (ParallelChoiceParser)node;
+      List<Parser> alternatives = new ArrayList<Parser>();
+      for (Object choice : p.getChoices()) {
+        alternatives.add(rewrite((Parser)choice));
+      }
+      return new ParallelChoiceParser(alternatives, p.getExecutor());
+    } else if (node instanceof SeqParser) {
+      List<Parser> parsers = new ArrayList<Parser>();
+      for (Object p : ((SeqParser)node).getParsers()) {
+        parsers.add(rewrite((Parser)p));
+      }
+      return share(new SeqParser(parsers), parsers.toArray());
+    } else if (node instanceof AndFirstParser) {
+      AndFirstParser p = (AndFirstParser)node;
+      Parser first = rewrite(p.getFirst());
+      return keep(Arrays.asList(first, rewrite(p.getSecond())), keepIndex(first));
+    } else if (node instanceof AndSecondParser) {
+      AndSecondParser p = (AndSecondParser)node;
+      Parser first = rewrite(p.getFirst());
+      Parser second = rewrite(p.getSecond());
+      return keep(Arrays.asList(first, second), flatten(first).size() + keepIndex(second));
+    } else if (node instanceof KeepParser) {
+      KeepParser k = (KeepParser)node;
+      List<Parser> parts = new ArrayList<Parser>();
+      int keep = 0;
+      for (int i = 0; i < k.getParsers().size(); i++) {
+        Parser p = rewrite((Parser)k.getParsers().get(i));
+        if (i == k.getKeep()) {
+          keep = flattenedSize(parts) + keepIndex(p);
+        }
+        parts.add(p);
+      }
+      return keep(parts, keep);
+    } else if (node instanceof SeqNParser) {
+      SeqNParser s = (SeqNParser)node;
+      List<Parser> parsers = new ArrayList<Parser>();
+      for (Object p : s.getParsers()) {
+        parsers.add(rewrite((Parser)p));
+      }
+      Object[] key = new Object[parsers.size() + 1];
+      key[0] = s.getAction();
+      for (int i = 0; i < parsers.size(); i++) {
+        key[i + 1] = parsers.get(i);
+      }
+      return share(s.rebuild(parsers), key);
+    } else if (node instanceof AndPairParser) {
+      AndPairParser p = (AndPairParser)node;
+      Parser first = rewrite(p.getFirst());
+      Parser second = rewrite(p.getSecond());
+      return share(new AndPairParser(first, second), first, second);
+    } else if (node instanceof ManyParser) {
+      ManyParser m = (ManyParser)node;
+      Parser base = rewrite(m.getBase());
+      return share(new ManyParser(base, m.getAtLeast()), base, m.getAtLeast());
+    } else if (node instanceof RepeatParser) {
+      RepeatParser r = (RepeatParser)node;
+      Parser first = rewrite(r.getFirst());
+      Parser next = r.getNext() == r.getFirst() ? first : rewrite(r.getNext());
+      Object seed = r instanceof RepeatParser.Fold ? ((RepeatParser.Fold)r).getSeed() : null;
+      return share(r.rebuild(first, next), first, next, r.getMin(), r.getMax(), r.getAction(), seed);
+    } else if (node instanceof RecoveringParser) {
+      RecoveringParser r = (RecoveringParser)node;
+      Parser record = rewrite(r.getRecord());
+      Parser sync = rewrite(r.getSync());
+      return share(new RecoveringParser(record, sync), record, sync);
+    } else if (node instanceof OptParser) {
+      OptParser o = (OptParser)node;
+      Parser base = rewrite(o.getBase());
+      return share(new OptParser(base, o.getNullVal()), base, o.getNullVal());
+    } else if (node instanceof LexemeParser) {
+      LexemeParser l = (LexemeParser)node;
+      Parser base = rewrite(l.getBase());
+      return share(new LexemeParser(l.getLexeme(), base), l.getLexeme(), base);
+    } else if (node instanceof Transform) {
+      Transform t = (Transform)node;
+      Parser base = rewrite(t.getBase());
+      return share(new Transform(base, t.getAction()), base, t.getAction());
+    } else if (node instanceof TrampolineParser) {
+      return new TrampolineParser(rewrite(((TrampolineParser)node).getRoot()));
+    } else if (node instanceof InstrumentedParser) {
+      InstrumentedParser i = (InstrumentedParser)node;
+      return new InstrumentedParser(i.getName(), rewrite(i.getBase()));
+    } else if (node instanceof MemoParser) {
+      MemoParser m = (MemoParser)node;
+      return new MemoParser(m.getRule(), rewrite(m.getBase()));
+    } else if (node instanceof CharSetParser) {
+      return share(node, ((CharSetParser)node).getChars());
+    } else if (node instanceof MatchParser) {
+      return share(node, ((MatchParser)node).getToken());
+    } else if (node instanceof EndParser) {
+      return share(node, ((EndParser)node).getValue());
+    } else {
+      return node;
+    }
+  }
+
+  /**
+   * Build a choice from a list of already-rewritten alternatives, flattening nested choices,
+   * and merging adjacent alternatives where possible.
+   */
+  private Parser choice(List<Parser> alternatives) {
+    List<Parser> merged = new ArrayList<Parser>();
+    for (Parser alt : alternatives) {
+      if (alt instanceof ChoiceParser) {
+        for (Object nested : ((ChoiceParser)alt).getChoices()) {
+          addAlternative(merged, (Parser)nested);
+        }
+      } else {
+        addAlternative(merged, alt);
+      }
+    }
+    if (merged.size() == 1) {
+      return merged.get(0);
+    }
+    return share(new ChoiceParser(merged), merged.toArray());
+  }
+
+  private void addAlternative(List<Parser> alternatives, Parser alt) {
+    if (alternatives.isEmpty()) {
+      alternatives.add(alt);
+      return;
+    }
+    Parser last = alternatives.get(alternatives.size() - 1);
+    String lastChars = charClass(last);
+    String altChars = charClass(alt);
+    if (lastChars != null && altChars != null) {
+      StringBuilder union = new StringBuilder(lastChars);
+      for (int i = 0; i < altChars.length(); i++) {
+        if (union.indexOf(altChars.substring(i, i + 1)) == -1) {
+          union.append(altChars.charAt(i));
+        }
+      }
+      String chars = union.toString();
+      alternatives.set(alternatives.size() - 1, share(new CharSetParser(chars), chars));
+    } else if (last instanceof KeepParser && alt instanceof KeepParser
+        && ((KeepParser)last).getKeep() > 0 && ((KeepParser)alt).getKeep() > 0
+        && ((KeepParser)last).getParsers().get(0) == ((KeepParser)alt).getParsers().get(0)) {
+      // (p >> a) | (p >> b) is the same as p >> (a | b), as long as the result of p is discarded.
+      Parser shared = (Parser)((KeepParser)last).getParsers().get(0);
+      Parser rest = choice(Arrays.asList(dropFirst((KeepParser)last), dropFirst((KeepParser)alt)));
+      alternatives.set(alternatives.size() - 1, keep(Arrays.asList(shared, rest), 1 + keepIndex(rest)));
+    } else {
+      alternatives.add(alt);
+    }
+  }
+
+  private Parser dropFirst(KeepParser k) {
+    List<Parser> parsers = k.getParsers();
+    return keep(parsers.subList(1, parsers.size()), k.getKeep() - 1);
+  }
+
+  /**
+   * If a parser matches exactly one character out of a set, return the set.
+   */
+  private static String charClass(Parser p) {
+    if (p instanceof CharSetParser) {
+      return ((CharSetParser)p).getChars();
+    }
+    if (p instanceof MatchParser) {
+      Object token = ((MatchParser)p).getToken();
+      // match compares tokens by identity, which only works for the cached boxed characters;
+      // merging any others would change what the grammar accepts.
+      if (token instanceof Character && ((Character)token).charValue() <= 127) {
+        return token.toString();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Build a flattened sequence which keeps the result of one element, from already-rewritten
+   * parts.
+   * @param keep the index of the kept result, in the flattened list.
+   */
+  private Parser keep(List<Parser> parts, int keep) {
+    List<Parser> flat = new ArrayList<Parser>();
+    for (Parser p : parts) {
+      flat.addAll(flatten(p));
+    }
+    if (flat.size() == 1) {
+      return flat.get(0);
+    }
+    Object[] key = new Object[flat.size() + 1];
+    key[0] = keep;
+    for (int i = 0; i < flat.size(); i++) {
+      key[i + 1] = flat.get(i);
+    }
+    return share(new KeepParser(flat, keep), key);
+  }
+
+  private static List<Parser> flatten(Parser p) {
+    if (p instanceof KeepParser) {
+      return ((KeepParser)p).getParsers();
+    }
+    return Arrays.asList(p);
+  }
+
+  private static int flattenedSize(List<Parser> parts) {
+    int size = 0;
+    for (Parser p : parts) {
+      size += flatten(p).size();
+    }
+    return size;
+  }
+
+  private static int keepIndex(Parser p) {
+    if (p instanceof KeepParser) {
+      return ((KeepParser)p).getKeep();
+    }
+    return 0;
+  }
+
+  /**
+   * Look up a node in the hash-cons table, returning the existing equivalent node if there
+   * is one, or adding this node if there isn't.
+   * @param parts the values that determine the node's structure, in addition to its class.
+   */
+  private Parser share(Parser node, Object... parts) {
+    NodeKey key = new NodeKey(node.getClass(), parts);
+    Parser existing = _shared.get(key);
+    if (existing != null) {
+      return existing;
+    }
+    _shared.put(key, node);
+    return node;
+  }
+
+  /**
+   * A hash-cons key. Simple values like strings and characters are compared by
+   * value; everything else - sub-parsers, actions, default values - is compared by identity.
+   * Since sub-parsers are hash-consed before their parents, identity comparison of the children
+   * is the same as structural comparison.
+   */
+  private static final class NodeKey {
+    private final Class<?> _kind;
+    private final Object[] _parts;
+
+    NodeKey(Class<?> kind, Object[] parts) {
+      this._kind = kind;
+      this._parts = parts;
+    }
+
+    private static boolean isValue(Object o) {
+      return o instanceof String || o instanceof Character || o instanceof Number
+          || o instanceof Boolean;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof NodeKey)) {
+        return false;
+      }
+      NodeKey other = (NodeKey)o;
+      if (_kind != other._kind || _parts.length != other._parts.length) {
+        return false;
+      }
+      for (int i = 0; i < _parts.length; i++) {
+        Object a = _parts[i];
+        Object b = other._parts[i];
+        if (a != b && !(isValue(a) && a.equals(b))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = _kind.hashCode();
+      for (Object part : _parts) {
+        hash = hash * 31 + (isValue(part) ? part.hashCode() : System.identityHashCode(part));
+      }
+      return hash;
+    }
+  }
+}
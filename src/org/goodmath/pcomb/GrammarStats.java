@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput counters and a latency histogram for an instrumented grammar. The counters are
+ * striped, so threads parsing in parallel with the same grammar don't contend on them.
+ */
+public class GrammarStats implements GrammarStatsMBean {
+  private static final int BUCKETS = 40;
+
+  private volatile boolean _enabled = false;
+  private volatile long _since = System.nanoTime();
+  private final LongAdder _successes = new LongAdder();
+  private final LongAdder _failures = new LongAdder();
+  private final LongAdder _consumed = new LongAdder();
+  private final LongAdder _nanos = new LongAdder();
+  private final AtomicLongArray _histogram = new AtomicLongArray(BUCKETS);
+
+  void record(long nanos, boolean success, int consumed) {
+    if (success) {
+      _successes.increment();
+      _consumed.add(consumed);
+    } else {
+      _failures.increment();
+    }
+    _nanos.add(nanos);
+    long micros = nanos / 1000;
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    _histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+  }
+
+  @Override
+  public boolean isEnabled() { return _enabled; }
+
+  @Override
+  public void setEnabled(boolean enabled) { _enabled = enabled; }
+
+  @Override
+  public long getParses() { return getSuccesses() + getFailures(); }
+
+  @Override
+  public long getSuccesses() { return _successes.sum(); }
+
+  @Override
+  public long getFailures() { return _failures.sum(); }
+
+  @Override
+  public long getElementsConsumed() { return _consumed.sum(); }
+
+  @Override
+  public long getTotalNanos() { return _nanos.sum(); }
+
+  @Override
+  public double getParsesPerSecond() {
+    double seconds = (System.nanoTime() - _since) / 1e9;
+    return seconds > 0 ? getParses() / seconds : 0;
+  }
+
+  @Override
+  public double getMeanMicros() {
+    long parses = getParses();
+    return parses == 0 ? 0 : getTotalNanos() / 1000.0 / parses;
+  }
+
+  @Override
+  public long getLatencyPercentileMicros(double percentile) {
+    long[] histogram = getLatencyHistogram();
+    long total = 0;
+    for (long count : histogram) {
+      total += count;
+    }
+    long target = (long)Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < histogram.length; i++) {
+      seen += histogram[i];
+      if (seen >= target && seen > 0) {
+        return 1L << i;
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public long getMedianMicros() { return getLatencyPercentileMicros(50); }
+
+  @Override
+  public long get99thPercentileMicros() { return getLatencyPercentileMicros(99); }
+
+  @Override
+  public long[] getLatencyHistogram() {
+    long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      result[i] = _histogram.get(i);
+    }
+    return result;
+  }
+
+  @Override
+  public void reset() {
+    _successes.reset();
+    _failures.reset();
+    _consumed.reset();
+    _nanos.reset();
+    for (int i = 0; i < BUCKETS; i++) {
+      _histogram.set(i, 0);
+    }
+    _since = System.nanoTime();
+  }
+}
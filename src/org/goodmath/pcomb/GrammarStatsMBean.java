@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * The JMX management interface for the statistics of an instrumented grammar.
+ */
+public interface GrammarStatsMBean {
+  /**
+   * Return true if statistics are being collected.
+   */
+  boolean isEnabled();
+
+  /**
+   * Turn statistics collection on or off. It starts out off; when it's off, the instrumented
+   * parser costs nothing beyond a flag check.
+   */
+  void setEnabled(boolean enabled);
+
+  long getParses();
+  long getSuccesses();
+  long getFailures();
+
+  /**
+   * Get the total number of input elements consumed by successful parses.
+   */
+  long getElementsConsumed();
+
+  long getTotalNanos();
+
+  /**
+   * Get the number of parses completed per second since the statistics were last reset.
+   */
+  double getParsesPerSecond();
+
+  double getMeanMicros();
+
+  /**
+   * Get an estimated latency percentile in microseconds, from the latency histogram.
+   * @param percentile the percentile, between 0 and 100.
+   */
+  long getLatencyPercentileMicros(double percentile);
+
+  long getMedianMicros();
+  long get99thPercentileMicros();
+
+  /**
+   * Get the latency histogram. Bucket i counts parses that took less than 2^i microseconds,
+   * and at least 2^(i-1).
+   */
+  long[] getLatencyHistogram();
+
+  void reset();
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.EventType;
+
+/**
+ * A parser which wraps a grammar, and reports on its invocations for production monitoring.
+ *
+ * Each parse is reported to JDK Flight Recorder as an org.goodmath.pcomb.Parse event, with
+ * the grammar name, input length, duration, success, the furthest offset read, and the number of
+ * times the parse backtracked. Counters and a latency histogram are exposed through a JMX MBean
+ * named org.goodmath.pcomb:type=Grammar,name=(the grammar name).
+ *
+ * Statistics are off until they're turned on through the MBean. When the Flight Recorder event
+ * isn't enabled and statistics are off, a parse costs two flag checks and allocates nothing.
+ * Offsets and backtracks are only tracked while the event is enabled, since that requires
+ * wrapping the input; parsers with fast paths for particular input types see through the
+ * wrapper (see WrappedInput), so tracing doesn't change what the grammar does.
+ */
+public class InstrumentedParser<In, Out> extends Parser<In, Out> {
+  private static final Map<String, GrammarStats> _registry = new HashMap<String, GrammarStats>();
+  private static final EventType PARSE_EVENT = EventType.getEventType(ParseEvent.class);
+
+  private final String _name;
+  private final Parser<In, Out> _base;
+  private final GrammarStats _stats;
+
+  public InstrumentedParser(String name, Parser<In, Out> base) {
+    this._name = name;
+    this._base = base;
+    this._stats = statsFor(name);
+  }
+
+  String getName() { return _name; }
+  Parser<In, Out> getBase() { return _base; }
+
+  /**
+   * Get the statistics for a grammar name, registering its MBean the first time.
+   */
+  public static GrammarStats statsFor(String name) {
+    synchronized (_registry) {
+      GrammarStats stats = _registry.get(name);
+      if (stats == null) {
+        stats = new GrammarStats();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+          server.registerMBean(stats,
+              new ObjectName("org.goodmath.pcomb:type=Grammar,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+          throw new IllegalStateException("Couldn't register statistics for grammar " + name, e);
+        }
+        _registry.put(name, stats);
+      }
+      return stats;
+    }
+  }
+
+  @Override
+  public ParseResult<In, Out> parse(ParserInput<In> in) {
+    boolean tracing = PARSE_EVENT.isEnabled();
+    if (!tracing && !_stats.isEnabled()) {
+      return _base.parse(in);
+    }
+    ParseEvent event = null;
+    Tracker tracker = null;
+    ParserInput<In> input = in;
+    if (tracing) {
+      event = new ParseEvent();
+      tracker = new Tracker(in.getPosition());
+      input = new TrackingInput<In>(in, tracker);
+      event.begin();
+    }
+    long start = System.nanoTime();
+    ParseResult<In, Out> result = _base.parse(input);
+    long elapsed = System.nanoTime() - start;
+    boolean success = result instanceof Success;
+    if (tracing) {
+      event.end();
+      if (success) {
+        result = new Success<In, Out>(((Success<In, Out>)result).getResult(),
+            TrackingInput.unwrap(result.getRest(), tracker));
+      }
+      if (event.shouldCommit()) {
+        event.grammar = _name;
+        event.inputLength = lengthOf(in);
+        event.success = success;
+        event.furthestOffset = tracker.furthest;
+        event.backtracks = tracker.backtracks;
+        event.commit();
+      }
+    }
+    if (_stats.isEnabled()) {
+      int consumed = success ? result.getRest().getPosition() - in.getPosition() : 0;
+      _stats.record(elapsed, success, Math.max(consumed, 0));
+    }
+    return result;
+  }
+
+  private static int lengthOf(ParserInput<?> in) {
+    if (in instanceof StringParserInput) {
+      return ((StringParserInput)in).remaining();
+    } else if (in instanceof ByteParserInput) {
+      return ((ByteParserInput)in).remaining();
+    } else {
+      return -1;
+    }
+  }
+
+  private static final class Tracker {
+    int furthest;
+    int last;
+    long backtracks;
+
+    Tracker(int start) {
+      this.furthest = start;
+      this.last = start;
+    }
+
+    void touch(int pos) {
+      if (pos < last) {
+        backtracks++;
+      }
+      last = pos;
+      if (pos > furthest) {
+        furthest = pos;
+      }
+    }
+  }
+
+  /**
+   * An input wrapper which reports every element that's read to a tracker. Elements read
+   * through a fast path on the unwrapped input aren't reported.
+   */
+  private static final class TrackingInput<In> implements WrappedInput<In> {
+    private final ParserInput<In> _in;
+    private final Tracker _tracker;
+
+    TrackingInput(ParserInput<In> in, Tracker tracker) {
+      this._in = in;
+      this._tracker = tracker;
+    }
+
+    /**
+     * Remove the wrapper that reports to a tracker, if it's there.
+     */
+    static <In> ParserInput<In> unwrap(ParserInput<In> in, Tracker tracker) {
+      if (in instanceof TrackingInput && ((TrackingInput<In>)in)._tracker == tracker) {
+        return ((TrackingInput<In>)in)._in;
+      }
+      return in;
+    }
+
+    @Override
+    public ParserInput<In> getWrapped() { return _in; }
+
+    @Override
+    public ParserInput<In> wrap(ParserInput<In> inner) {
+      return new TrackingInput<In>(inner, _tracker);
+    }
+
+    @Override
+    public In first() {
+      _tracker.touch(_in.getPosition());
+      return _in.first();
+    }
+
+    @Override
+    public ParserInput<In> rest() {
+      return new TrackingInput<In>(_in.rest(), _tracker);
+    }
+
+    @Override
+    public boolean atEnd() {
+      _tracker.touch(_in.getPosition());
+      return _in.atEnd();
+    }
+
+    @Override
+    public int getPosition() { return _in.getPosition(); }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof TrackingInput && ((TrackingInput<?>)o)._in.equals(_in);
+    }
+
+    @Override
+    public int hashCode() { return _in.hashCode(); }
+  }
+}
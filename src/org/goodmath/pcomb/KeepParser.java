@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.List;
+
+/**
+ * A parser which runs a list of parsers in sequence, and returns the result of one of them.
+ * This is what a chain of andFirst and andSecond calls collapses to: instead of a tree of
+ * two-element sequences, each of which allocates its own intermediate result, it's a single
+ * node that walks its parsers in a loop.
+ */
+public class KeepParser<In, Out> extends Parser<In, Out> {
+  private final List<Parser<In, ?>> _parsers;
+  private final int _keep;
+
+  /**
+   * @param parsers the parsers to run, in order.
+   * @param keep the index of the parser whose result is the result of the sequence.
+   */
+  public KeepParser(List<Parser<In, ?>> parsers, int keep) {
+    this._parsers = parsers;
+    this._keep = keep;
+  }
+
+  List<Parser<In, ?>> getParsers() { return _parsers; }
+  int getKeep() { return _keep; }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public ParseResult<In, Out> parse(ParserInput<In> in) {
+    Out kept = null;
+    for (int i = 0; i < _parsers.size(); i++) {
+      ParseResult<In, ?> step = _parsers.get(i).parse(in);
+      if (step instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      if (i == _keep) {
+        kept = ((Success<In, Out>)step).getResult();
+      }
+      in = step.getRest();
+    }
+    return new Success<In, Out>(kept, in);
+  }
+}
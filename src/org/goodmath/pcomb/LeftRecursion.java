@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The memo table and left recursion bookkeeping for left-recursive refs, following Warth,
+ * Douglass and Millstein's seed-growing algorithm.
+ *
+ * A parse method has nowhere to keep per-parse state, so the state lives in a thread local
+ * for as long as the outermost left-recursive ref on the thread is running. Results are keyed
+ * by ref and input, which relies on the input's equals and hashCode.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+final class LeftRecursion {
+  private static final ThreadLocal<LeftRecursion> CURRENT = new ThreadLocal<LeftRecursion>();
+
+  private final Map<Key, Entry> _memo = new HashMap<Key, Entry>();
+  // The rule whose left recursion is being grown at an input, if there is one.
+  private final Map<ParserInput, Head> _heads = new HashMap<ParserInput, Head>();
+  // The rules being invoked, innermost first.
+  private Invocation _stack;
+  // How many answers have come from the memo table rather than a finished parse. Those can be
+  // a planted seed or a partly grown result, so anything parsed from one is provisional.
+  private long _recalls;
+
+  private LeftRecursion() { }
+
+  /**
+   * Get a count which changes whenever a left-recursive ref on this thread answers from its memo
+   * table. A result parsed while the count stayed the same didn't depend on a seed, so it's safe
+   * to memoize outside of the left recursion bookkeeping (see MemoParser).
+   */
+  static long recalls() {
+    LeftRecursion state = CURRENT.get();
+    return state == null ? 0 : state._recalls;
+  }
+
+  static <In, Out> ParseResult<In, Out> apply(RefParser<In, Out> rule, ParserInput<In> in) {
+    LeftRecursion state = CURRENT.get();
+    if (state != null) {
+      return state.applyRule(rule, in);
+    }
+    state = new LeftRecursion();
+    CURRENT.set(state);
+    try {
+      return state.applyRule(rule, in);
+    } finally {
+      CURRENT.remove();
+    }
+  }
+
+  private ParseResult applyRule(RefParser rule, ParserInput in) {
+    Entry m = recall(rule, in);
+    if (m == null) {
+      // Plant a failure for the rule here, so that a left-recursive call fails instead of
+      // recurring, and find out whether one happened.
+      Invocation lr = new Invocation(rule, _stack);
+      _stack = lr;
+      m = new Entry(lr);
+      _memo.put(new Key(rule, in), m);
+      ParseResult ans = rule.getRef().parse(in);
+      _stack = _stack.next;
+      if (lr.head == null) {
+        m.result = ans;
+        m.lr = null;
+        return ans;
+      }
+      lr.seed = ans;
+      return lrAnswer(rule, in, m);
+    }
+    _recalls++;
+    if (m.lr != null) {
+      setupLr(rule, m.lr);
+      return m.lr.seed;
+    }
+    return m.result;
+  }
+
+  /**
+   * A rule has been called left-recursively: mark the rules between its first invocation and
+   * this one as involved in its left recursion.
+   */
+  private void setupLr(RefParser rule, Invocation lr) {
+    if (lr.head == null) {
+      lr.head = new Head(rule);
+    }
+    for (Invocation s = _stack; s != null && s.head != lr.head; s = s.next) {
+      s.head = lr.head;
+      lr.head.involved.add(s.rule);
+    }
+  }
+
+  private ParseResult lrAnswer(RefParser rule, ParserInput in, Entry m) {
+    Invocation lr = m.lr;
+    if (lr.head.rule != rule) {
+      // This rule is involved in another rule's left recursion; that rule does the growing.
+      _recalls++;
+      return lr.seed;
+    }
+    m.result = lr.seed;
+    m.lr = null;
+    if (!(m.result instanceof Success)) {
+      return m.result;
+    }
+    return growLr(rule, in, m, lr.head);
+  }
+
+  private ParseResult growLr(RefParser rule, ParserInput in, Entry m, Head head) {
+    _heads.put(in, head);
+    while (true) {
+      head.eval.addAll(head.involved);
+      ParseResult ans = rule.getRef().parse(in);
+      if (!(ans instanceof Success)
+          || ans.getRest().getPosition() <= m.result.getRest().getPosition()) {
+        break;
+      }
+      m.result = ans;
+    }
+    _heads.remove(in);
+    return m.result;
+  }
+
+  private Entry recall(RefParser rule, ParserInput in) {
+    Entry m = _memo.get(new Key(rule, in));
+    Head head = _heads.get(in);
+    if (head == null) {
+      return m;
+    }
+    if (m == null && rule != head.rule && !head.involved.contains(rule)) {
+      // Rules that aren't part of the left recursion being grown can't match here yet.
+      Entry fail = new Entry(null);
+      fail.result = new Failure();
+      return fail;
+    }
+    if (head.eval.remove(rule)) {
+      // An involved rule gets re-evaluated once in each round of growing.
+      if (m == null) {
+        m = new Entry(null);
+        _memo.put(new Key(rule, in), m);
+      }
+      m.result = rule.getRef().parse(in);
+      m.lr = null;
+    }
+    return m;
+  }
+
+  private static final class Key {
+    final RefParser rule;
+    final ParserInput in;
+
+    Key(RefParser rule, ParserInput in) {
+      this.rule = rule;
+      this.in = in;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)o;
+      return other.rule == rule && other.in.equals(in);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(rule) * 31 + in.hashCode();
+    }
+  }
+
+  /**
+   * A memo entry: either a result, or an invocation which is still running.
+   */
+  private static final class Entry {
+    Invocation lr;
+    ParseResult result;
+
+    Entry(Invocation lr) {
+      this.lr = lr;
+    }
+  }
+
+  /**
+   * An invocation of a rule which hasn't finished yet.
+   */
+  private static final class Invocation {
+    final RefParser rule;
+    final Invocation next;
+    ParseResult seed = new Failure();
+    Head head;
+
+    Invocation(RefParser rule, Invocation next) {
+      this.rule = rule;
+      this.next = next;
+    }
+  }
+
+  /**
+   * A rule whose left recursion is being grown, and the rules involved in it.
+   */
+  private static final class Head {
+    final RefParser rule;
+    final Set<RefParser> involved = new HashSet<RefParser>();
+    final Set<RefParser> eval = new HashSet<RefParser>();
+
+    Head(RefParser rule) {
+      this.rule = rule;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A lexeme mode for a grammar: a declaration of the trivia (whitespace, comments) that can
+ * appear between tokens, which token parsers then skip automatically.
+ *
+ * Parser.matchWithSpaces and Parser.charSet put a whitespace parser in front of every token,
+ * so every alternative of a choice re-scans the same run of whitespace, and builds a list of
+ * it that's thrown away. A Lexeme skips trivia with a loop that doesn't produce any results,
+ * and remembers where the trivia at an offset ends, so trying several token alternatives at
+ * the same place only skips it once.
+ *
+ * For example:
+ * lex = Lexeme.whitespaceAndComments("#")
+ * number = lex.token(digits)
+ * plus = lex.match('+')
+ *
+ * By default, tokens skip the trivia in front of them. A lexeme can be created to skip
+ * trailing trivia instead; in that case, use start to skip any trivia at the beginning of the
+ * input.
+ *
+ * @param <In> the type of object returned by the parser input.
+ */
+public class Lexeme<In> {
+  private static final int CACHE_SIZE = 8;
+
+  private final Parser<In, ?> _skip;
+  private final boolean _trailing;
+  // A small cache of the end of the trivia starting at recently skipped positions. Entries are
+  // immutable, so racing threads can at worst overwrite each other's entries.
+  private final SkipEntry[] _cache = new SkipEntry[CACHE_SIZE];
+
+  /**
+   * @param skip a parser for one piece of trivia. It's run repeatedly until it fails.
+   * @param trailing true if tokens should skip the trivia after them rather than before.
+   */
+  public Lexeme(Parser<In, ?> skip, boolean trailing) {
+    this._skip = skip;
+    this._trailing = trailing;
+  }
+
+  public Lexeme(Parser<In, ?> skip) {
+    this(skip, false);
+  }
+
+  /**
+   * Create a lexeme mode which skips the same whitespace characters as Parser.space.
+   */
+  public static Lexeme<Character> whitespace() {
+    return new Lexeme<Character>(new CharSetParser(" \t\n"));
+  }
+
+  /**
+   * Create a lexeme mode which skips whitespace, and comments that run from a
+   * marker to the end of the line.
+   * @param marker the string that starts a comment, like "//" or "#".
+   */
+  public static Lexeme<Character> whitespaceAndComments(final String marker) {
+    return new Lexeme<Character>(new CharSetParser(" \t\n").or(new LineCommentParser(marker)));
+  }
+
+  /**
+   * Get a lexeme mode which skips the same trivia as this one, but after tokens instead
+   * of before them.
+   */
+  public Lexeme<In> trailing() {
+    return new Lexeme<In>(_skip, true);
+  }
+
+  Parser<In, ?> getSkip() { return _skip; }
+
+  boolean isTrailing() { return _trailing; }
+
+  /**
+   * Skip any trivia at the start of an input.
+   * @return the input following the trivia.
+   */
+  public ParserInput<In> skip(ParserInput<In> in) {
+    int slot = (in.hashCode() & 0x7fffffff) % CACHE_SIZE;
+    SkipEntry cached = _cache[slot];
+    if (cached != null && cached.from.equals(in)) {
+      @SuppressWarnings("unchecked")
+      ParserInput<In> to = (ParserInput<In>)cached.to;
+      return to;
+    }
+    ParserInput<In> cur = in;
+    if (_skip instanceof CharSetParser) {
+      // The common case of plain whitespace doesn't need to run a parser at all.
+      String chars = ((CharSetParser)_skip).getChars();
+      while (!cur.atEnd() && chars.indexOf((Character)cur.first()) != -1) {
+        cur = cur.rest();
+      }
+    } else {
+      while (!cur.atEnd()) {
+        ParseResult<In, ?> r = _skip.parse(cur);
+        if (r instanceof Failure || r.getRest().equals(cur)) {
+          break;
+        }
+        cur = r.getRest();
+      }
+    }
+    _cache[slot] = new SkipEntry(in, cur);
+    return cur;
+  }
+
+  /**
+   * Create a token parser, which skips trivia before or after the base parser.
+   */
+  public <Out> Parser<In, Out> token(Parser<In, Out> base) {
+    return new LexemeParser<In, Out>(this, base);
+  }
+
+  /**
+   * Create a token parser which matches a specific input element.
+   */
+  public Parser<In, In> match(In i) {
+    return token(Parser.match(i));
+  }
+
+  /**
+   * Create a token parser which matches any character from a string.
+   */
+  @SuppressWarnings("unchecked")
+  public Parser<In, Character> charSet(String chars) {
+    return token((Parser<In, Character>)(Parser<?, ?>)new CharSetParser(chars));
+  }
+
+  /**
+   * Create a parser which skips any trailing trivia, and then only succeeds at the end
+   * of the input.
+   */
+  public <X> Parser<In, X> end(X v) {
+    return new LexemeParser<In, X>(new Lexeme<In>(_skip, false), Parser.<In, X>end(v));
+  }
+
+  /**
+   * Create a parser which skips any trivia at the start of the input before running a parser.
+   * This is only needed when tokens skip trailing trivia.
+   */
+  public <Out> Parser<In, Out> start(Parser<In, Out> base) {
+    return new LexemeParser<In, Out>(new Lexeme<In>(_skip, false), base);
+  }
+
+  private static final class SkipEntry {
+    final ParserInput<?> from;
+    final ParserInput<?> to;
+
+    SkipEntry(ParserInput<?> from, ParserInput<?> to) {
+      this.from = from;
+      this.to = to;
+    }
+  }
+}
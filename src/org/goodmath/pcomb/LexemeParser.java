@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A token parser, which wraps another parser and skips the trivia declared by a
+ * Lexeme before or after it.
+ */
+public class LexemeParser<In, Out> extends Parser<In, Out> {
+  private final Lexeme<In> _lexeme;
+  private final Parser<In, Out> _base;
+
+  public LexemeParser(Lexeme<In> lexeme, Parser<In, Out> base) {
+    this._lexeme = lexeme;
+    this._base = base;
+  }
+
+  Lexeme<In> getLexeme() { return _lexeme; }
+  Parser<In, Out> getBase() { return _base; }
+
+  @Override
+  public ParseResult<In, Out> parse(ParserInput<In> in) {
+    if (!_lexeme.isTrailing()) {
+      return _base.parse(_lexeme.skip(in));
+    }
+    ParseResult<In, Out> result = _base.parse(in);
+    if (result instanceof Failure) {
+      return result;
+    }
+    return new Success<In, Out>(((Success<In, Out>)result).getResult(), _lexeme.skip(result.getRest()));
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser for a comment that starts with a marker string, and runs to the end of the line.
+ * The newline isn't consumed.
+ */
+class LineCommentParser extends Parser<Character, Character> {
+  private final String _marker;
+
+  LineCommentParser(String marker) {
+    this._marker = marker;
+  }
+
+  String getMarker() { return _marker; }
+
+  @Override
+  public ParseResult<Character, Character> parse(ParserInput<Character> in) {
+    for (int i = 0; i < _marker.length(); i++) {
+      if (in.atEnd() || in.first() != _marker.charAt(i)) {
+        return new Failure<Character, Character>();
+      }
+      in = in.rest();
+    }
+    while (!in.atEnd() && in.first() != '\n') {
+      in = in.rest();
+    }
+    return new Success<Character, Character>(' ', in);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.Arrays;
+
+/**
+ * Converts offsets in a text into line and column numbers.
+ *
+ * Parsers only keep track of an offset into their input, so recording where something
+ * was parsed costs nothing. The index of where each line starts is built the first time a
+ * position is looked up, and each lookup is a binary search of it. Lines end at "\n",
+ * "\r\n", or "\r". Line and column numbers start at 1, and columns count chars.
+ *
+ * Offsets are chars into the text. That's an input's position for most text inputs, but a
+ * CodePointParserInput's positions count code points, so offsetOf converts an input to the
+ * offset that a LineIndex expects.
+ *
+ * For example:
+ * LineIndex lines = new LineIndex(text);
+ * Parser<Character, Node> ident = Parser.seq2(Parser.position(), name, makeNode);
+ * ...
+ * error("unknown name at " + lines.describe(node.offset));
+ */
+public final class LineIndex {
+  private final CharSequence _text;
+  private volatile int[] _lineStarts;
+
+  public LineIndex(CharSequence text) {
+    this._text = text;
+  }
+
+  private int[] lineStarts() {
+    int[] starts = _lineStarts;
+    if (starts == null) {
+      // Racing threads would build identical tables, so there's no need to lock.
+      starts = new int[16];
+      int count = 1;
+      int len = _text.length();
+      for (int i = 0; i < len; i++) {
+        char c = _text.charAt(i);
+        if (c == '\n' || (c == '\r' && (i + 1 == len || _text.charAt(i + 1) != '\n'))) {
+          if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+          }
+          starts[count++] = i + 1;
+        }
+      }
+      starts = Arrays.copyOf(starts, count);
+      _lineStarts = starts;
+    }
+    return starts;
+  }
+
+  /**
+   * Get the char offset of an input in its text: its char offset for a CodePointParserInput
+   * (through any wrappers), and its position for anything else.
+   */
+  public static int offsetOf(ParserInput<?> in) {
+    ParserInput<?> raw = WrappedInput.unwrap(in);
+    if (raw instanceof CodePointParserInput) {
+      return ((CodePointParserInput)raw).getCharOffset();
+    }
+    return in.getPosition();
+  }
+
+  /**
+   * Get the number of lines in the text. Text that ends with a line terminator has an
+   * empty last line.
+   */
+  public int getLineCount() {
+    return lineStarts().length;
+  }
+
+  /**
+   * Get the line that contains an offset.
+   * @param offset an offset in the text, from 0 to the length of the text.
+   */
+  public int getLine(int offset) {
+    if (offset < 0 || offset > _text.length()) {
+      throw new IndexOutOfBoundsException("Offset " + offset + " is outside of the text");
+    }
+    int idx = Arrays.binarySearch(lineStarts(), offset);
+    // When the offset isn't the start of a line, binarySearch returns -(insertion point) - 1,
+    // and the line containing it is the one before the insertion point.
+    return idx >= 0 ? idx + 1 : -idx - 1;
+  }
+
+  /**
+   * Get the column of an offset within its line.
+   */
+  public int getColumn(int offset) {
+    return offset - getLineStart(getLine(offset)) + 1;
+  }
+
+  /**
+   * Get the offset of the first character of a line.
+   */
+  public int getLineStart(int line) {
+    return lineStarts()[line - 1];
+  }
+
+  /**
+   * Describe an offset as a line and column, for error messages.
+   */
+  public String describe(int offset) {
+    int line = getLine(offset);
+    return "line " + line + ", column " + (offset - getLineStart(line) + 1);
+  }
+}
@@ -30,6 +30,9 @@ public class ManyParser<In, Out> extends Parser<In, List<Out>> {
     this._atLeast = atLeast;
   }
 
+  Parser<In, Out> getBase() { return _base; }
+  int getAtLeast() { return _atLeast; }
+
   @Override
   public ParseResult<In, List<Out>> parse(ParserInput<In> in) {
     List<Out> results = new ArrayList<Out>();
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser which consumes one specific input token; anything else will fail.
+ */
+public class MatchParser<In> extends Parser<In, In> {
+  private final In _token;
+
+  public MatchParser(In token) {
+    this._token = token;
+  }
+
+  In getToken() { return _token; }
+
+  @Override
+  public ParseResult<In, In> parse(ParserInput<In> in) {
+    if (in.first() == _token) {
+      return new Success<In, In>(_token, in.rest());
+    } else {
+      return new Failure<In, In>();
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser which memoizes the results of a rule, when its AdaptiveMemo policy says to.
+ *
+ * While a left-recursive ref is being grown, the rules inside it are parsed against seeds that
+ * are replaced as the growing goes on, so a result that depended on one isn't recorded.
+ */
+public class MemoParser<In, Out> extends Parser<In, Out> {
+  private final AdaptiveMemo.Rule _rule;
+  private final Parser<In, Out> _base;
+
+  MemoParser(AdaptiveMemo.Rule rule, Parser<In, Out> base) {
+    this._rule = rule;
+    this._base = base;
+  }
+
+  AdaptiveMemo.Rule getRule() { return _rule; }
+  Parser<In, Out> getBase() { return _base; }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public ParseResult<In, Out> parse(ParserInput<In> in) {
+    AdaptiveMemo.Scope scope = _rule.enter();
+    try {
+      ParseResult<In, Out> result = (ParseResult<In, Out>)_rule.lookup(scope, in);
+      if (result == null) {
+        long recalls = LeftRecursion.recalls();
+        result = _base.parse(in);
+        if (LeftRecursion.recalls() == recalls) {
+          _rule.record(scope, in, result);
+        }
+      }
+      return result;
+    } finally {
+      scope.exit();
+    }
+  }
+}
@@ -30,6 +30,9 @@ public class OptParser<In, Out> extends Parser<In, Out> {
     this._nullVal = nullVal;
   }
 
+  Parser<In, Out> getBase() { return _base; }
+  Out getNullVal() { return _nullVal; }
+
   @Override
   public ParseResult<In, Out> parse(
       ParserInput<In> in) {
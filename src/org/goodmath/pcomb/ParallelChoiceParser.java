@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A choice parser which evaluates its alternatives concurrently, for choices between a
+ * few very expensive alternatives (like whole document dialects).
+ *
+ * It has the same ordered-choice semantics as ChoiceParser: the result is the result of the
+ * first alternative in the list that succeeds. The first alternative runs in the calling thread,
+ * and the rest are submitted to an executor, over the same input - inputs are immutable, so
+ * that's safe. As soon as any alternative succeeds, every alternative after it in the list is
+ * cancelled, since none of them can be the result any more.
+ *
+ * Cancellation is cooperative: each alternative reads the input through a wrapper, which
+ * throws a CancellationException on the next read once its alternative has been cancelled.
+ * Parsers with fast paths for particular input types see through the wrapper (see
+ * WrappedInput), so they work the same way inside a parallel choice as outside one, and
+ * memoized rules never hold on to one parse's wrapper.
+ *
+ * The calling thread blocks while it waits for the alternatives, so the executor shouldn't be
+ * one whose threads might themselves be running the parser, like the common fork-join pool.
+ * A dedicated pool, or on newer JVMs a virtual-thread-per-task executor, works well.
+ */
+public class ParallelChoiceParser<In, Out> extends Parser<In, Out> {
+  private final List<Parser<In, Out>> _choices;
+  private final ExecutorService _executor;
+
+  public ParallelChoiceParser(List<Parser<In, Out>> choices, ExecutorService executor) {
+    this._choices = choices;
+    this._executor = executor;
+  }
+
+  List<Parser<In, Out>> getChoices() { return _choices; }
+  ExecutorService getExecutor() { return _executor; }
+
+  @Override
+  public ParseResult<In, Out> parse(final ParserInput<In> in) {
+    final int n = _choices.size();
+    final CancellableInput<?>[] inputs = new CancellableInput<?>[n];
+    for (int i = 0; i < n; i++) {
+      inputs[i] = new CancellableInput<In>(in, new AtomicBoolean());
+    }
+    List<Future<ParseResult<In, Out>>> futures = new ArrayList<Future<ParseResult<In, Out>>>(n);
+    futures.add(null);
+    try {
+      for (int i = 1; i < n; i++) {
+        final int index = i;
+        futures.add(_executor.submit(new Callable<ParseResult<In, Out>>() {
+          @Override
+          public ParseResult<In, Out> call() {
+            return run(index, inputs);
+          }
+        }));
+      }
+      for (int i = 0; i < n; i++) {
+        ParseResult<In, Out> result;
+        if (i == 0) {
+          result = run(0, inputs);
+        } else {
+          result = futures.get(i).get();
+        }
+        if (result instanceof Success) {
+          return new Success<In, Out>(((Success<In, Out>)result).getResult(),
+              CancellableInput.unwrap(result.getRest()));
+        }
+      }
+      return new Failure<In, Out>();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted while waiting for a parallel choice");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      cancelAfter(-1, inputs);
+      for (Future<ParseResult<In, Out>> f : futures) {
+        if (f != null) {
+          f.cancel(true);
+        }
+      }
+    }
+  }
+
+  /**
+   * Run one alternative. If it succeeds, cancel all of the lower priority alternatives.
+   */
+  @SuppressWarnings("unchecked")
+  private ParseResult<In, Out> run(int index, CancellableInput<?>[] inputs) {
+    ParseResult<In, Out> result;
+    try {
+      result = _choices.get(index).parse((ParserInput<In>)inputs[index]);
+    } catch (CancellationException e) {
+      return new Failure<In, Out>();
+    }
+    if (result instanceof Success) {
+      cancelAfter(index, inputs);
+    }
+    return result;
+  }
+
+  private static void cancelAfter(int index, CancellableInput<?>[] inputs) {
+    for (int i = index + 1; i < inputs.length; i++) {
+      inputs[i].cancel();
+    }
+  }
+
+  /**
+   * An input wrapper which stops a parse once it's been cancelled. All of the positions derived
+   * from one wrapped input share the same cancellation flag.
+   */
+  private static final class CancellableInput<In> implements WrappedInput<In> {
+    private final ParserInput<In> _in;
+    private final AtomicBoolean _cancelled;
+
+    CancellableInput(ParserInput<In> in, AtomicBoolean cancelled) {
+      this._in = in;
+      this._cancelled = cancelled;
+    }
+
+    static <In> ParserInput<In> unwrap(ParserInput<In> in) {
+      if (in instanceof CancellableInput) {
+        return ((CancellableInput<In>)in)._in;
+      }
+      return in;
+    }
+
+    @Override
+    public ParserInput<In> getWrapped() { return _in; }
+
+    @Override
+    public ParserInput<In> wrap(ParserInput<In> inner) {
+      check();
+      return new CancellableInput<In>(inner, _cancelled);
+    }
+
+    void cancel() {
+      _cancelled.set(true);
+    }
+
+    private void check() {
+      if (_cancelled.get()) {
+        throw new CancellationException();
+      }
+    }
+
+    @Override
+    public In first() {
+      check();
+      return _in.first();
+    }
+
+    @Override
+    public ParserInput<In> rest() {
+      check();
+      return new CancellableInput<In>(_in.rest(), _cancelled);
+    }
+
+    @Override
+    public boolean atEnd() {
+      check();
+      return _in.atEnd();
+    }
+
+    @Override
+    public int getPosition() { return _in.getPosition(); }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof CancellableInput && ((CancellableInput<?>)o)._in.equals(_in);
+    }
+
+    @Override
+    public int hashCode() { return _in.hashCode(); }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of the results of parsing whole inputs, for programs that parse the same small
+ * inputs again and again.
+ *
+ * Entries are keyed by the grammar's identity and the content of the input: a lookup hashes
+ * the input, and compares it with the cached input to confirm a match, so an equal string or
+ * byte array finds the result of an earlier parse without running the grammar. Grammars have
+ * to be sealed, and their results must be immutable, since every hit returns the same result
+ * object. The rest of a cached result is an input over the text that was parsed first.
+ *
+ * The cache is bounded by a number of entries, and optionally by a total weight - the
+ * combined length of the cached inputs - and evicts the least recently used entries to stay
+ * within them. Entries can also expire a fixed time after they're added. The cache is safe
+ * to share between threads; grammars run outside of its lock, so two threads that miss on
+ * the same input at the same time will both parse it.
+ */
+public class ParseCache {
+  private final int _maxEntries;
+  private final long _maxWeight;
+  private final long _ttlNanos;
+  // In access order, so the first entry is the least recently used one.
+  private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  private long _weight;
+  private final LongAdder _hits = new LongAdder();
+  private final LongAdder _misses = new LongAdder();
+  private final LongAdder _evictions = new LongAdder();
+
+  /**
+   * @param maxEntries the maximum number of results to keep.
+   * @param maxWeight the maximum total length of the cached inputs, or 0 for no limit.
+   * @param ttl how long an entry stays valid after it's added, or 0 for no limit.
+   */
+  public ParseCache(int maxEntries, long maxWeight, long ttl, TimeUnit unit) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("A cache must have room for at least one entry");
+    }
+    this._maxEntries = maxEntries;
+    this._maxWeight = maxWeight;
+    this._ttlNanos = unit.toNanos(ttl);
+  }
+
+  public ParseCache(int maxEntries) {
+    this(maxEntries, 0, 0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Parse a string, or get the result of an earlier parse of an equal string with the
+   * same grammar.
+   */
+  @SuppressWarnings("unchecked")
+  public <Out> ParseResult<Character, Out> parse(Parser<Character, Out> grammar, String text) {
+    Key key = new Key(grammar, text, text.hashCode(), text.length());
+    ParseResult<Character, Out> result = (ParseResult<Character, Out>)lookup(key);
+    if (result == null) {
+      result = grammar.parse(new StringParserInput(text));
+      store(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * Parse a byte array, or get the result of an earlier parse of an equal array with the
+   * same grammar. The array is copied if it's added to the cache, so the caller can reuse it.
+   */
+  @SuppressWarnings("unchecked")
+  public <Out> ParseResult<Byte, Out> parse(Parser<Byte, Out> grammar, byte[] data) {
+    int hash = Arrays.hashCode(data);
+    Key key = new Key(grammar, data, hash, data.length);
+    ParseResult<Byte, Out> result = (ParseResult<Byte, Out>)lookup(key);
+    if (result == null) {
+      byte[] copy = data.clone();
+      result = grammar.parse(new ByteParserInput(copy));
+      store(new Key(grammar, copy, hash, copy.length), result);
+    }
+    return result;
+  }
+
+  private ParseResult<?, ?> lookup(Key key) {
+    synchronized (_entries) {
+      Entry e = _entries.get(key);
+      if (e != null && _ttlNanos > 0 && now() - e.created >= _ttlNanos) {
+        _entries.remove(key);
+        _weight -= key.weight;
+        e = null;
+      }
+      if (e == null) {
+        _misses.increment();
+        return null;
+      }
+      _hits.increment();
+      return e.result;
+    }
+  }
+
+  private void store(Key key, ParseResult<?, ?> result) {
+    if (_maxWeight > 0 && key.weight > _maxWeight) {
+      return;
+    }
+    synchronized (_entries) {
+      Entry old = _entries.put(key, new Entry(result, now()));
+      if (old != null) {
+        _weight -= key.weight;
+      }
+      _weight += key.weight;
+      Iterator<Map.Entry<Key, Entry>> eldest = _entries.entrySet().iterator();
+      while (_entries.size() > _maxEntries || (_maxWeight > 0 && _weight > _maxWeight)) {
+        Map.Entry<Key, Entry> victim = eldest.next();
+        _weight -= victim.getKey().weight;
+        eldest.remove();
+        _evictions.increment();
+      }
+    }
+  }
+
+  /**
+   * The current time in nanoseconds, for expiring entries.
+   */
+  protected long now() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Remove every entry. The statistics are kept.
+   */
+  public void clear() {
+    synchronized (_entries) {
+      _entries.clear();
+      _weight = 0;
+    }
+  }
+
+  public int size() {
+    synchronized (_entries) {
+      return _entries.size();
+    }
+  }
+
+  /**
+   * Get the total length of the cached inputs.
+   */
+  public long getWeight() {
+    synchronized (_entries) {
+      return _weight;
+    }
+  }
+
+  public long getHits() { return _hits.sum(); }
+
+  public long getMisses() { return _misses.sum(); }
+
+  /**
+   * Get the number of entries removed to make room for others. Expired entries aren't counted.
+   */
+  public long getEvictions() { return _evictions.sum(); }
+
+  /**
+   * Get the fraction of lookups that were hits, or 0 if there haven't been any.
+   */
+  public double getHitRate() {
+    long hits = getHits();
+    long total = hits + getMisses();
+    return total == 0 ? 0 : (double)hits / total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d entries, %d hits, %d misses, %d evictions",
+        size(), getHits(), getMisses(), getEvictions());
+  }
+
+  private static final class Key {
+    final Parser<?, ?> grammar;
+    // A String or a byte array.
+    final Object content;
+    final int hash;
+    final long weight;
+
+    Key(Parser<?, ?> grammar, Object content, int hash, long weight) {
+      this.grammar = grammar;
+      this.content = content;
+      this.hash = System.identityHashCode(grammar) * 31 + hash;
+      this.weight = weight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)o;
+      if (other.grammar != grammar || other.hash != hash) {
+        return false;
+      }
+      if (content instanceof byte[]) {
+        return other.content instanceof byte[]
+            && Arrays.equals((byte[])content, (byte[])other.content);
+      }
+      return content.equals(other.content);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Entry {
+    final ParseResult<?, ?> result;
+    final long created;
+
+    Entry(ParseResult<?, ?> result, long created) {
+      this.result = result;
+      this.created = created;
+    }
+  }
+}
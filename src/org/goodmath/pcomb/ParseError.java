@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A record that a RecoveringParser couldn't parse: where it started, and where parsing picked
+ * up again after skipping to the next sync point.
+ */
+public final class ParseError {
+  private final int _offset;
+  private final int _resumeOffset;
+
+  public ParseError(int offset, int resumeOffset) {
+    this._offset = offset;
+    this._resumeOffset = resumeOffset;
+  }
+
+  /**
+   * Get the input offset where the bad record started. For text, this is a char offset (see
+   * LineIndex.offsetOf).
+   */
+  public int getOffset() { return _offset; }
+
+  /**
+   * Get the input offset just past the sync point where parsing resumed, or the end of the
+   * input if there wasn't one.
+   */
+  public int getResumeOffset() { return _resumeOffset; }
+
+  /**
+   * Describe the error using line and column numbers.
+   */
+  public String describe(LineIndex lines) {
+    return "Parse error at " + lines.describe(_offset) + ", resumed at " + lines.describe(_resumeOffset);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ParseError)) {
+      return false;
+    }
+    ParseError other = (ParseError)o;
+    return other._offset == _offset && other._resumeOffset == _resumeOffset;
+  }
+
+  @Override
+  public int hashCode() {
+    return _offset * 31 + _resumeOffset;
+  }
+
+  @Override
+  public String toString() {
+    return "Parse error at offset " + _offset + ", resumed at offset " + _resumeOffset;
+  }
+}
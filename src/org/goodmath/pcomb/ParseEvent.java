@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for one invocation of an instrumented grammar.
+ */
+@Name("org.goodmath.pcomb.Parse")
+@Label("Parse")
+@Category("pcomb")
+@Description("One invocation of an instrumented pcomb grammar")
+class ParseEvent extends Event {
+  @Label("Grammar")
+  String grammar;
+
+  @Label("Input Length")
+  @Description("The number of input elements available to the parse, or -1 if unknown")
+  int inputLength;
+
+  @Label("Success")
+  boolean success;
+
+  @Label("Furthest Offset")
+  @Description("The furthest input offset that any parser looked at")
+  int furthestOffset;
+
+  @Label("Backtracks")
+  @Description("The number of times parsing went back to an earlier input offset")
+  long backtracks;
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.goodmath.pcomb.ForestNode.Prefix;
+import org.goodmath.pcomb.GeneralizedParser.Production;
+import org.goodmath.pcomb.GeneralizedParser.Symbol;
+
+/**
+ * A shared packed parse forest, produced by a GeneralizedParser: a compact representation of
+ * every derivation of an input.
+ *
+ * Derivations are numbered, and can be enumerated or fetched by number without ever building
+ * the whole set. Derivation 0 is the one that a PEG parse would prefer: at every ambiguous node,
+ * it takes the alternative that comes first in the grammar. For other policies, use
+ * disambiguate.
+ */
+public class ParseForest<Out> {
+  private final GeneralizedParser<?, Out>.Chart _chart;
+  private final ForestNode _root;
+  private final Map<Long, ForestNode> _nodes = new HashMap<Long, ForestNode>();
+  private final Map<Object, Prefix> _prefixes = new HashMap<Object, Prefix>();
+
+  ParseForest(GeneralizedParser<?, Out>.Chart chart, Symbol start) {
+    this._chart = chart;
+    if (chart.completed(start, 0, chart.length())) {
+      // The start symbol just wraps the grammar's own start rule.
+      _root = node(start.productions.get(0).rhs[0], 0, chart.length());
+    } else {
+      _root = null;
+    }
+  }
+
+  GeneralizedParser<?, Out>.Chart chart() { return _chart; }
+
+  ForestNode node(Symbol symbol, int start, int end) {
+    long key = ((long)symbol.id * (_chart.length() + 1) + start) * (_chart.length() + 1) + end;
+    ForestNode node = _nodes.get(key);
+    if (node == null) {
+      node = new ForestNode(this, symbol, start, end);
+      _nodes.put(key, node);
+    }
+    return node;
+  }
+
+  Prefix prefix(Production production, int dot, int start, int end) {
+    PrefixKey key = new PrefixKey(production, dot, start, end);
+    Prefix prefix = _prefixes.get(key);
+    if (prefix == null) {
+      prefix = new Prefix(this, production, dot, start, end);
+      _prefixes.put(key, prefix);
+    }
+    return prefix;
+  }
+
+  /**
+   * Return true if the input couldn't be parsed.
+   */
+  public boolean isEmpty() { return _root == null; }
+
+  /**
+   * Get the root of the forest, or null if it's empty.
+   */
+  public ForestNode getRoot() { return _root; }
+
+  /**
+   * Get the number of derivations of the input, saturating at Long.MAX_VALUE.
+   */
+  public long countDerivations() {
+    return _root == null ? 0 : count(_root);
+  }
+
+  /**
+   * Build the value of one derivation.
+   * @param index the derivation's number, from 0 to countDerivations() - 1.
+   */
+  @SuppressWarnings("unchecked")
+  public Out derivation(long index) {
+    if (index < 0 || index >= countDerivations()) {
+      throw new IndexOutOfBoundsException("No derivation " + index);
+    }
+    return (Out)value(_root, index);
+  }
+
+  /**
+   * Get the preferred derivation, or null if the forest is empty.
+   */
+  public Out first() {
+    return isEmpty() ? null : derivation(0);
+  }
+
+  /**
+   * Lazily enumerate the values of all derivations, in order.
+   */
+  public Iterable<Out> derivations() {
+    return new Iterable<Out>() {
+      @Override
+      public Iterator<Out> iterator() {
+        return new Iterator<Out>() {
+          private long _next = 0;
+
+          @Override
+          public boolean hasNext() {
+            return _next < countDerivations();
+          }
+
+          @Override
+          public Out next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return derivation(_next++);
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Build the value of the derivation selected by a disambiguator. The disambiguator is
+   * only consulted for nodes that actually are ambiguous.
+   * @return the value, or null if the forest is empty.
+   */
+  @SuppressWarnings("unchecked")
+  public Out disambiguate(Disambiguator chooser) {
+    return isEmpty() ? null : (Out)choose(_root, chooser);
+  }
+
+  private static long add(long a, long b) {
+    long sum = a + b;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  private static long multiply(long a, long b) {
+    if (a == 0 || b == 0) {
+      return 0;
+    }
+    return a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+  }
+
+  long count(ForestNode node) {
+    if (node.count >= 0) {
+      return node.count;
+    }
+    if (node.isTerminal()) {
+      node.count = 1;
+      return 1;
+    }
+    if (isMany(node) && !node.counting) {
+      countSpine(node);
+    }
+    if (node.counting) {
+      // A cycle: derivations through here are infinite, so don't count them.
+      return 0;
+    }
+    node.counting = true;
+    List<Prefix> alternatives = node.alternatives();
+    long[] counts = new long[alternatives.size()];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = count(alternatives.get(i));
+      total = add(total, counts[i]);
+    }
+    node.counting = false;
+    node.counts = counts;
+    node.count = total;
+    return total;
+  }
+
+  long count(Prefix prefix) {
+    if (prefix.count >= 0) {
+      return prefix.count;
+    }
+    if (prefix.dot == 0) {
+      prefix.count = 1;
+      return 1;
+    }
+    long[] counts = new long[prefix.splitCount()];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = multiply(count(prefix.left(i)), count(prefix.right(i)));
+      total = add(total, counts[i]);
+    }
+    prefix.counts = counts;
+    prefix.count = total;
+    return total;
+  }
+
+  /**
+   * Return true if a node is a ManyParser's list rule, whose derivations are a left-recursive
+   * spine with one node per element.
+   */
+  private static boolean isMany(ForestNode node) {
+    return !node.isTerminal() && node.symbol.node instanceof ManyParser;
+  }
+
+  /**
+   * Count the derivations of the shorter lists down a repetition's spine, shortest first, so
+   * that counting a long list doesn't recurse once per element.
+   */
+  private void countSpine(ForestNode node) {
+    List<ForestNode> spine = new ArrayList<ForestNode>();
+    Map<ForestNode, Boolean> seen = new IdentityHashMap<ForestNode, Boolean>();
+    List<ForestNode> work = new ArrayList<ForestNode>();
+    work.add(node);
+    while (!work.isEmpty()) {
+      ForestNode n = work.remove(work.size() - 1);
+      if (n.count >= 0 || seen.put(n, true) != null) {
+        continue;
+      }
+      if (n != node) {
+        spine.add(n);
+      }
+      for (Prefix top : n.alternatives()) {
+        if (top.production.kind == GeneralizedParser.MANY_STEP) {
+          for (int i = 0; i < top.splitCount(); i++) {
+            Prefix left = top.left(i);
+            for (int j = 0; j < left.splitCount(); j++) {
+              work.add(left.right(j));
+            }
+          }
+        }
+      }
+    }
+    Collections.sort(spine, new Comparator<ForestNode>() {
+      @Override
+      public int compare(ForestNode a, ForestNode b) {
+        return Integer.compare(a.getEnd(), b.getEnd());
+      }
+    });
+    for (ForestNode n : spine) {
+      count(n);
+    }
+  }
+
+  private Object value(ForestNode node, long index) {
+    if (node.isTerminal()) {
+      return terminalValue(node);
+    }
+    if (isMany(node)) {
+      return manyValue(node, index);
+    }
+    count(node);
+    List<Prefix> alternatives = node.alternatives();
+    for (int i = 0; i < alternatives.size(); i++) {
+      if (index < node.counts[i]) {
+        Prefix top = alternatives.get(i);
+        Object[] values = new Object[top.dot];
+        fill(top, index, values);
+        return top.production.build(values);
+      }
+      index -= node.counts[i];
+    }
+    throw new IllegalStateException("Derivation index out of range at " + node);
+  }
+
+  /**
+   * Build the value of a derivation of a repetition, walking down its spine one element at
+   * a time, and building the list once.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Object manyValue(ForestNode node, long index) {
+    // The elements after the start of the list, last first.
+    List<Object> tail = new ArrayList<Object>();
+    while (true) {
+      count(node);
+      List<Prefix> alternatives = node.alternatives();
+      int alt = 0;
+      while (index >= node.counts[alt]) {
+        index -= node.counts[alt];
+        alt++;
+      }
+      Prefix top = alternatives.get(alt);
+      if (top.production.kind != GeneralizedParser.MANY_STEP) {
+        Object[] values = new Object[top.dot];
+        fill(top, index, values);
+        List list = (List)top.production.build(values);
+        for (int i = tail.size() - 1; i >= 0; i--) {
+          list.add(tail.get(i));
+        }
+        return list;
+      }
+      // The step is (shorter list, element): pick the split, then the shorter list's node.
+      int split = 0;
+      while (index >= top.counts[split]) {
+        index -= top.counts[split];
+        split++;
+      }
+      long rights = count(top.right(split));
+      tail.add(value(top.right(split), index % rights));
+      index /= rights;
+      Prefix left = top.left(split);
+      count(left);
+      int shorter = 0;
+      while (index >= left.counts[shorter]) {
+        index -= left.counts[shorter];
+        shorter++;
+      }
+      node = left.right(shorter);
+    }
+  }
+
+  private void fill(Prefix prefix, long index, Object[] values) {
+    if (prefix.dot == 0) {
+      return;
+    }
+    count(prefix);
+    for (int i = 0; i < prefix.splitCount(); i++) {
+      if (index < prefix.counts[i]) {
+        long rights = count(prefix.right(i));
+        values[prefix.dot - 1] = value(prefix.right(i), index % rights);
+        fill(prefix.left(i), index / rights, values);
+        return;
+      }
+      index -= prefix.counts[i];
+    }
+    throw new IllegalStateException("Derivation index out of range");
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Object choose(ForestNode node, Disambiguator chooser) {
+    if (node.isTerminal()) {
+      return terminalValue(node);
+    }
+    // Repetitions are walked down their spines iteratively, collecting the elements last first.
+    List<Object> tail = isMany(node) ? new ArrayList<Object>() : null;
+    while (true) {
+      List<Production> productions = new ArrayList<Production>();
+      List<ForestNode[]> alternatives = node.expand(productions);
+      int chosen = 0;
+      if (alternatives.size() > 1) {
+        chosen = chooser.choose(node, node.getAlternatives());
+      }
+      ForestNode[] children = alternatives.get(chosen);
+      Production production = productions.get(chosen);
+      if (tail != null && production.kind == GeneralizedParser.MANY_STEP) {
+        tail.add(choose(children[1], chooser));
+        node = children[0];
+        continue;
+      }
+      Object[] values = new Object[children.length];
+      for (int i = 0; i < children.length; i++) {
+        values[i] = choose(children[i], chooser);
+      }
+      Object result = production.build(values);
+      if (tail != null) {
+        for (int i = tail.size() - 1; i >= 0; i--) {
+          ((List)result).add(tail.get(i));
+        }
+      }
+      return result;
+    }
+  }
+
+  private Object terminalValue(ForestNode node) {
+    return ((Success<?, ?>)_chart.matchResult(node.symbol, node.getStart())).getResult();
+  }
+
+  private static final class PrefixKey {
+    private final Production _production;
+    private final int _dot;
+    private final int _start;
+    private final int _end;
+
+    PrefixKey(Production production, int dot, int start, int end) {
+      this._production = production;
+      this._dot = dot;
+      this._start = start;
+      this._end = end;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PrefixKey)) {
+        return false;
+      }
+      PrefixKey other = (PrefixKey)o;
+      return other._production == _production && other._dot == _dot && other._start == _start
+          && other._end == _end;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((System.identityHashCode(_production) * 31 + _dot) * 31 + _start) * 31 + _end;
+    }
+  }
+}
@@ -16,6 +16,8 @@
 package org.goodmath.pcomb;
 
 import java.util.List;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
 
 /**
  * Parser combinator master parser class.
@@ -36,24 +38,7 @@ public abstract class Parser<In, Out> {
    * @param other
    */
   public <Out2> Parser<In, Pair<Out, Out2>> andPair(final Parser<In, Out2> other) {
-      return new Parser<In, Pair<Out, Out2>>() {
-        @Override
-        public ParseResult<In, Pair<Out, Out2>> parse(
-            ParserInput<In> in) {
-          ParseResult<In, Out> firstStep = Parser.this.parse(in);
-          if (firstStep instanceof Failure) {
-            return new Failure<In, Pair<Out, Out2>>();
-          }
-          Out firstResult = ((Success<In, Out>)firstStep).getResult();
-          ParseResult<In, Out2> secondStep = other.parse(firstStep.getRest());
-          if (secondStep instanceof Failure) {
-            return new Failure<In, Pair<Out, Out2>>();
-          }
-          Out2 secondResult = ((Success<In, Out2>)secondStep).getResult();
-          return new Success<In, Pair<Out, Out2>>(new Pair<Out, Out2>(firstResult, secondResult), secondStep.getRest());
-        }
-
-      };
+    return new AndPairParser<In, Out, Out2>(this, other);
   }
 
   /**
@@ -62,22 +47,7 @@ public abstract class Parser<In, Out> {
    * @param other
    */
   public <Out2> Parser<In, Out> andFirst(final Parser<In, Out2> other) {
-    return new Parser<In, Out>() {
-      @Override
-      public ParseResult<In, Out> parse(
-          ParserInput<In> in) {
-        ParseResult<In, Out> firstStep = Parser.this.parse(in);
-        if (firstStep instanceof Failure) {
-          return firstStep;
-        }
-        Out firstResult = ((Success<In, Out>)firstStep).getResult();
-        ParseResult<In, Out2> secondStep = other.parse(firstStep.getRest());
-        if (secondStep instanceof Failure) {
-          return new Failure<In, Out>();
-        }
-        return new Success<In, Out>(firstResult, secondStep.getRest());
-      }
-    };
+    return new AndFirstParser<In, Out, Out2>(this, other);
   }
 
   /**
@@ -87,21 +57,7 @@ public abstract class Parser<In, Out> {
    * @return
    */
   public <Out2> Parser<In, Out2> andSecond(final Parser<In, Out2> other) {
-    return new Parser<In, Out2>() {
-      @Override
-      public ParseResult<In, Out2> parse(
-          ParserInput<In> in) {
-        ParseResult<In, Out> firstStep = Parser.this.parse(in);
-        if (firstStep instanceof Failure) {
-          return new Failure<In, Out2>();
-        }
-        ParseResult<In, Out2> secondStep = other.parse(firstStep.getRest());
-        if (secondStep instanceof Failure) {
-          return secondStep;
-        }
-        return secondStep;
-      }
-    };
+    return new AndSecondParser<In, Out, Out2>(this, other);
   }
 
   /**
@@ -122,6 +78,95 @@ public abstract class Parser<In, Out> {
     return new SeqParser<In, Out>(first);
   }
 
+  /**
+   * Create a parser for a sequence of 2 parsers, which combines their results with an action.
+   */
+  public static <In, A, B, Out> Parser<In, Out> seq2(Parser<In, A> p1, Parser<In, B> p2,
+      Action2<A, B, Out> fn) {
+    return new SeqNParser.Seq2<In, A, B, Out>(p1, p2, fn);
+  }
+
+  /**
+   * Create a parser for a sequence of 3 parsers, which combines their results with an action.
+   */
+  public static <In, A, B, C, Out> Parser<In, Out> seq3(
+      Parser<In, A> p1,
+      Parser<In, B> p2,
+      Parser<In, C> p3,
+      Action3<A, B, C, Out> fn) {
+    return new SeqNParser.Seq3<In, A, B, C, Out>(p1, p2, p3, fn);
+  }
+
+  /**
+   * Create a parser for a sequence of 4 parsers, which combines their results with an action.
+   */
+  public static <In, A, B, C, D, Out> Parser<In, Out> seq4(
+      Parser<In, A> p1,
+      Parser<In, B> p2,
+      Parser<In, C> p3,
+      Parser<In, D> p4,
+      Action4<A, B, C, D, Out> fn) {
+    return new SeqNParser.Seq4<In, A, B, C, D, Out>(p1, p2, p3, p4, fn);
+  }
+
+  /**
+   * Create a parser for a sequence of 5 parsers, which combines their results with an action.
+   */
+  public static <In, A, B, C, D, E, Out> Parser<In, Out> seq5(
+      Parser<In, A> p1,
+      Parser<In, B> p2,
+      Parser<In, C> p3,
+      Parser<In, D> p4,
+      Parser<In, E> p5,
+      Action5<A, B, C, D, E, Out> fn) {
+    return new SeqNParser.Seq5<In, A, B, C, D, E, Out>(p1, p2, p3, p4, p5, fn);
+  }
+
+  /**
+   * Create a parser for a sequence of 6 parsers, which combines their results with an action.
+   */
+  public static <In, A, B, C, D, E, F, Out> Parser<In, Out> seq6(
+      Parser<In, A> p1,
+      Parser<In, B> p2,
+      Parser<In, C> p3,
+      Parser<In, D> p4,
+      Parser<In, E> p5,
+      Parser<In, F> p6,
+      Action6<A, B, C, D, E, F, Out> fn) {
+    return new SeqNParser.Seq6<In, A, B, C, D, E, F, Out>(p1, p2, p3, p4, p5, p6, fn);
+  }
+
+  /**
+   * Create a parser for a sequence of 7 parsers, which combines their results with an action.
+   */
+  public static <In, A, B, C, D, E, F, G, Out> Parser<In, Out> seq7(
+      Parser<In, A> p1,
+      Parser<In, B> p2,
+      Parser<In, C> p3,
+      Parser<In, D> p4,
+      Parser<In, E> p5,
+      Parser<In, F> p6,
+      Parser<In, G> p7,
+      Action7<A, B, C, D, E, F, G, Out> fn) {
+    return new SeqNParser.Seq7<In, A, B, C, D, E, F, G, Out>(p1, p2, p3, p4, p5, p6, p7, fn);
+  }
+
+  /**
+   * Create a parser for a sequence of 8 parsers, which combines their results with an action.
+   */
+  public static <In, A, B, C, D, E, F, G, H, Out> Parser<In, Out> seq8(
+      Parser<In, A> p1,
+      Parser<In, B> p2,
+      Parser<In, C> p3,
+      Parser<In, D> p4,
+      Parser<In, E> p5,
+      Parser<In, F> p6,
+      Parser<In, G> p7,
+      Parser<In, H> p8,
+      Action8<A, B, C, D, E, F, G, H, Out> fn) {
+    return new SeqNParser.Seq8<In, A, B, C, D, E, F, G, H, Out>(p1, p2, p3, p4, p5, p6, p7, p8, fn);
+  }
+
   /**
    * Return a parser that parses repetitions of this parser.
    * @param atleast the minimum number of times that the parse must succeed.
@@ -130,6 +175,93 @@ public abstract class Parser<In, Out> {
     return new ManyParser<In, Out>(this, atleast);
   }
 
+  /**
+   * Return a parser that parses repetitions of this parser, and streams their results into a
+   * collector instead of building a list.
+   * @param atleast the minimum number of times that the parse must succeed.
+   */
+  public <R> Parser<In, R> many(int atleast, Collector<? super Out, ?, R> collector) {
+    return RepeatParser.Collect.of(this, this, atleast, Integer.MAX_VALUE, collector);
+  }
+
+  /**
+   * Return a parser that parses repetitions of this parser, folding their results into a
+   * value as they're parsed.
+   * @param seed the starting value. It's shared by every parse, so it should be immutable.
+   * @param fn an action which combines the value so far with the next result.
+   */
+  public <Acc> Parser<In, Acc> foldMany(Acc seed, Action2<Acc, Out, Acc> fn) {
+    return foldMany(0, seed, fn);
+  }
+
+  /**
+   * Return a parser that parses at least some number of repetitions of this parser, folding
+   * their results into a value as they're parsed.
+   */
+  public <Acc> Parser<In, Acc> foldMany(int atleast, Acc seed, Action2<Acc, Out, Acc> fn) {
+    return new RepeatParser.Fold<In, Out, Acc>(this, this, atleast, Integer.MAX_VALUE, seed, fn);
+  }
+
+  /**
+   * Return a parser that parses repetitions of this parser, and throws their results away.
+   * Its result is null.
+   */
+  public Parser<In, Void> skipMany(int atleast) {
+    return new RepeatParser.Skip<In, Out>(this, this, atleast, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Return a parser for repetitions of this parser separated by a separator, like the
+   * arguments of a function call. The separators' results are discarded.
+   */
+  public <R> Parser<In, R> sepBy(Parser<In, ?> sep, int atleast,
+      Collector<? super Out, ?, R> collector) {
+    return RepeatParser.Collect.of(this, RepeatParser.separated(sep, this), atleast,
+        Integer.MAX_VALUE, collector);
+  }
+
+  /**
+   * Return a parser for repetitions of this parser that are each followed by a terminator,
+   * like statements that end with a semicolon. The terminators' results are discarded.
+   */
+  public <R> Parser<In, R> endBy(Parser<In, ?> sep, int atleast,
+      Collector<? super Out, ?, R> collector) {
+    Parser<In, Out> elt = RepeatParser.terminated(this, sep);
+    return RepeatParser.Collect.of(elt, elt, atleast, Integer.MAX_VALUE, collector);
+  }
+
+  /**
+   * Return a parser for records of this parser that runs to the end of the input, skipping
+   * past any records that fail to the next match of a sync parser, and collecting an error
+   * for each one. See RecoveringParser.
+   */
+  public Parser<In, Recovered<Out>> recoverMany(Parser<In, ?> sync) {
+    return new RecoveringParser<In, Out>(this, sync);
+  }
+
+  /**
+   * Return a parser for exactly n repetitions of this parser.
+   */
+  public Parser<In, List<Out>> count(int n) {
+    return count(n, Collectors.<Out>toList());
+  }
+
+  /**
+   * Return a parser for exactly n repetitions of this parser, which streams their
+   * results into a collector.
+   */
+  public <R> Parser<In, R> count(int n, Collector<? super Out, ?, R> collector) {
+    return RepeatParser.Collect.of(this, this, n, n, collector);
+  }
+
+  /**
+   * Return a parser for exactly n repetitions of this parser, which folds their results
+   * into a value.
+   */
+  public <Acc> Parser<In, Acc> count(int n, Acc seed, Action2<Acc, Out, Acc> fn) {
+    return new RepeatParser.Fold<In, Out, Acc>(this, this, n, n, seed, fn);
+  }
+
   /**
    * Return a parser that accepts an optional input.
    * @param nullVal the value to return if the optional element is omitted.
@@ -146,6 +278,13 @@ public abstract class Parser<In, Out> {
     return new RefParser<In, Out>();
   }
 
+  /**
+   * Create a ref parser for a rule that can be left recursive. See RefParser.
+   */
+  public static <In, Out> RefParser<In, Out> leftRecursiveRef() {
+    return new RefParser<In, Out>(true);
+  }
+
 
   /**
    * Create a parser that wraps another, and transforms its result value.
@@ -158,32 +297,57 @@ public abstract class Parser<In, Out> {
   }
 
 
+  /**
+   * Create a parser which runs this parser's graph on a trampoline, using a heap-allocated
+   * stack instead of the Java call stack, so that deeply nested input can't overflow the
+   * thread stack.
+   */
+  public Parser<In, Out> stackSafe() {
+    return new TrampolineParser<In, Out>(this);
+  }
+
+  /**
+   * Create a parser which reports each invocation of this parser to Flight Recorder, and
+   * keeps statistics about them in a JMX MBean.
+   * @param name the grammar name to use in events and in the MBean's name.
+   */
+  public Parser<In, Out> instrument(String name) {
+    return new InstrumentedParser<In, Out>(name, this);
+  }
+
+  /**
+   * Create a parser which memoizes this parser's results whenever a policy decides that it's
+   * worth it.
+   * @param name the rule's name in the policy's decisions.
+   */
+  public Parser<In, Out> memo(AdaptiveMemo policy, String name) {
+    return policy.memo(name, this);
+  }
+
   /**
    * Create a parser which consumes a specific input token; anything else will fail.
    * @param i the input to parse.
    * @return
    */
   public static <In> Parser<In, In> match(final In i) {
-    return new Parser<In, In>() {
-      @Override
-      public org.goodmath.pcomb.ParseResult<In, In> parse(
-          ParserInput<In> in) {
-        if (in.first() == i) {
-          return new Success<In, In>(i, in.rest());
-        } else {
-          return new Failure<In, In>();
-        }
-      }
-    };
+    return new MatchParser<In>(i);
+  }
+
+  /**
+   * Create a parser which consumes nothing, and returns the offset of the input at the point
+   * where it's invoked. Use a LineIndex to turn offsets into lines and columns.
+   */
+  public static <In> Parser<In, Integer> position() {
+    return new PositionParser<In>();
   }
 
   /**
    * A standard utility parser for accepting whitespace.
    */
   public static Parser<Character, Character> space =
-      new CharSetParser(" \t\n").many(0).action(new Action<List<Character>, Character>() {
+      new CharSetParser(" \t\n").skipMany(0).action(new Action<Void, Character>() {
         @Override
-        public Character run(List<Character> in) {
+        public Character run(Void in) {
           return ' ';
         }
       });
@@ -206,24 +370,28 @@ public abstract class Parser<In, Out> {
   }
 
 
+  /**
+   * Create a parser which accepts a single code point from a class. Use it with a
+   * CodePointParserInput.
+   */
+  public static Parser<Integer, Integer> codePoint(final CodePointClass cls) {
+    return new CodePointParser(cls);
+  }
+
+  /**
+   * Create a parser which accepts a run of at least some number of code points from a class,
+   * and returns their text. On a CodePointParserInput, the text is a slice of the input's.
+   */
+  public static Parser<Integer, String> codePoints(final CodePointClass cls, int atleast) {
+    return new CodePointSpanParser(cls, atleast);
+  }
+
   /**
    * Create a parser which only succeeds at the end of the input stream.
    * @param v
    * @return
    */
   public static <In, X> Parser<In, X> end(final X v) {
-    return new Parser<In, X>() {
-
-      @Override
-      public org.goodmath.pcomb.ParseResult<In, X> parse(
-          ParserInput<In> in) {
-        if (in.atEnd()) {
-          return new Success<In, X>(v, in);
-        } else {
-          return new Failure<In, X>();
-        }
-      }
-
-    };
+    return new EndParser<In, X>(v);
   }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utilities for walking the graph of parsers that makes up a grammar.
+ */
+final class ParserGraph {
+  private ParserGraph() { }
+
+  /**
+   * Get the direct sub-parsers of a parser node. Parsers that aren't one of the library's
+   * combinators are treated as leaves, and have no children.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  static List<Parser<?, ?>> children(Parser<?, ?> node) {
+    List result = new ArrayList();
+    if (node instanceof RefParser) {
+      Parser<?, ?> target = ((RefParser<?, ?>)node).getRef();
+      if (target != null) {
+        result.add(target);
+      }
+    } else if (node instanceof ChoiceParser) {
+      result.addAll(((ChoiceParser)node).getChoices());
+    } else if (node instanceof ParallelChoiceParser) {
+      result.addAll(((ParallelChoiceParser)node).getChoices());
+    } else if (node instanceof SeqParser) {
+      result.addAll(((SeqParser)node).getParsers());
+    } else if (node instanceof KeepParser) {
+      result.addAll(((KeepParser)node).getParsers());
+    } else if (node instanceof SeqNParser) {
+      result.addAll(((SeqNParser)node).getParsers());
+    } else if (node instanceof ManyParser) {
+      result.add(((ManyParser)node).getBase());
+    } else if (node instanceof RepeatParser) {
+      RepeatParser r = (RepeatParser)node;
+      result.add(r.getFirst());
+      if (r.getNext() != r.getFirst()) {
+        result.add(r.getNext());
+      }
+    } else if (node instanceof RecoveringParser) {
+      result.add(((RecoveringParser)node).getRecord());
+      result.add(((RecoveringParser)node).getSync());
+    } else if (node instanceof OptParser) {
+      result.add(((OptParser)node).getBase());
+    } else if (node instanceof LexemeParser) {
+      result.add(((LexemeParser)node).getBase());
+    } else if (node instanceof Transform) {
+      result.add(((Transform)node).getBase());
+    } else if (node instanceof AndPairParser) {
+      result.add(((AndPairParser)node).getFirst());
+      result.add(((AndPairParser)node).getSecond());
+    } else if (node instanceof AndFirstParser) {
+      result.add(((AndFirstParser)node).getFirst());
+      result.add(((AndFirstParser)node).getSecond());
+    } else if (node instanceof AndSecondParser) {
+      result.add(((AndSecondParser)node).getFirst());
+      result.add(((AndSecondParser)node).getSecond());
+    } else if (node instanceof TrampolineParser) {
+      result.add(((TrampolineParser)node).getRoot());
+    } else if (node instanceof InstrumentedParser) {
+      result.add(((InstrumentedParser)node).getBase());
+    } else if (node instanceof MemoParser) {
+      result.add(((MemoParser)node).getBase());
+    } else {
+      return Collections.emptyList();
+    }
+    return result;
+  }
+
+  /**
+   * Get every parser node reachable from a root, each one exactly once, in depth first order.
+   */
+  static List<Parser<?, ?>> reachable(Parser<?, ?> root) {
+    Map<Parser<?, ?>, Boolean> seen = new IdentityHashMap<Parser<?, ?>, Boolean>();
+    List<Parser<?, ?>> result = new ArrayList<Parser<?, ?>>();
+    List<Parser<?, ?>> work = new ArrayList<Parser<?, ?>>();
+    work.add(root);
+    while (!work.isEmpty()) {
+      Parser<?, ?> node = work.remove(work.size() - 1);
+      if (seen.put(node, Boolean.TRUE) != null) {
+        continue;
+      }
+      result.add(node);
+      List<Parser<?, ?>> kids = children(node);
+      for (int i = kids.size() - 1; i >= 0; i--) {
+        work.add(kids.get(i));
+      }
+    }
+    return result;
+  }
+}
@@ -36,4 +36,16 @@ public interface ParserInput<In> {
    * Return true if there's no input left in the stream.
    */
   boolean atEnd();
+
+  /**
+   * Get the offset of this point in the stream, counted in input elements from the start.
+   *
+   * The library's inputs all track positions. Other inputs return -1 unless they override this,
+   * so they still work with the plain combinators; but left-recursive refs, generalized parsing,
+   * error recovery and PositionParser need real positions, and instrumentation can't report
+   * offsets without them.
+   */
+  default int getPosition() {
+    return -1;
+  }
 }
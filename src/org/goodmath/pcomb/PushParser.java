@@ -0,0 +1,309 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+
+/**
+ * A push-mode driver for binary parsers, which parses a stream of messages out of
+ * chunks of bytes as they arrive, rather than requiring the whole input up front.
+ *
+ * A PushParser is a Flow.Processor: subscribe it to a publisher of ByteBuffer chunks (for
+ * example, reads from an NIO channel), and subscribe a consumer to it to receive parsed
+ * messages. Each time a chunk arrives, it runs the message parser over the bytes it has so far.
+ * A message which parses successfully without looking past the bytes that have arrived is
+ * emitted immediately. A parse which ran into the end of the bytes that have arrived so far -
+ * whether it failed, or succeeded with a choice or repetition that more data could change -
+ * isn't finished: the parser just returns, without holding on to a thread, and tries again when
+ * the next chunk arrives. So the messages don't depend on where the chunks are split. A parse
+ * which fails anywhere else is a syntax error: it's passed downstream as a ParseException, and
+ * the upstream is cancelled. A ParseException's offset is an int, so errors more than 2 GiB into
+ * the stream are reported at Integer.MAX_VALUE.
+ *
+ * Parsers are combinator graphs that run on the Java stack, so a suspended message is
+ * resumed by re-running the message parser from the start of the message, over the
+ * larger input. That's cheap for messages that fit in a few chunks - which is what
+ * frame-oriented protocols look like - but can be quadratic for a single huge message
+ * that arrives in many small pieces.
+ *
+ * Chunks are copied into an internal buffer when they arrive, so the publisher is free
+ * to reuse them. Bytes which have been handed to a parser are never overwritten, so results
+ * can safely keep zero-copy views (like the ones from Binary.bytes) of the input.
+ */
+public class PushParser<Out> implements Flow.Processor<ByteBuffer, Out> {
+  private final Parser<Byte, Out> _message;
+  private byte[] _data = new byte[4096];
+  // The unparsed bytes are the ones between _start and _end.
+  private int _start = 0;
+  private int _end = 0;
+  // The stream offset of _data[0], for error reporting.
+  private long _base = 0;
+  private boolean _closed = false;
+  private Flow.Subscription _upstream;
+  private boolean _upstreamRequested = false;
+  private Flow.Subscriber<? super Out> _downstream;
+  private long _demand = 0;
+  private final ArrayDeque<Out> _pending = new ArrayDeque<Out>();
+  private Throwable _error;
+  private boolean _done = false;
+  private boolean _delivering = false;
+
+  /**
+   * @param message a parser for one message. It's run repeatedly until the input is exhausted.
+   */
+  public PushParser(Parser<Byte, Out> message) {
+    this._message = message;
+  }
+
+  /**
+   * The state shared by all the inputs created over one snapshot of the buffer.
+   */
+  private static class Feed {
+    int end;
+    boolean closed;
+    boolean starved;
+  }
+
+  /**
+   * An input which notices when a parser tries to read past the bytes that have arrived.
+   */
+  private static class FeedInput extends ByteParserInput {
+    private final ByteBuffer _buf;
+    private final Feed _feed;
+    // True for a bounded slice of the feed, like a length-prefixed field.
+    private final boolean _bounded;
+
+    FeedInput(ByteBuffer buf, int pos, int limit, Feed feed, boolean bounded) {
+      super(buf, pos, limit);
+      this._buf = buf;
+      this._feed = feed;
+      this._bounded = bounded;
+    }
+
+    @Override
+    protected ByteParserInput create(int pos, int limit) {
+      return new FeedInput(_buf, pos, limit, _feed, _bounded);
+    }
+
+    @Override
+    public ByteParserInput slice(int n) {
+      return new FeedInput(_buf, getPosition(), getPosition() + n, _feed, true);
+    }
+
+    @Override
+    protected void underflow() {
+      // Running off the end of a bounded slice is a real failure, even if the slice happens to
+      // end where the data does; running off the end of what's arrived so far just means that
+      // we need more data.
+      if (!_bounded && !_feed.closed) {
+        _feed.starved = true;
+      }
+    }
+  }
+
+  @Override
+  public synchronized void subscribe(Flow.Subscriber<? super Out> subscriber) {
+    if (_downstream != null) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) { }
+
+        @Override
+        public void cancel() { }
+      });
+      subscriber.onError(new IllegalStateException("PushParser only supports one subscriber"));
+      return;
+    }
+    _downstream = subscriber;
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        synchronized (PushParser.this) {
+          if (n <= 0) {
+            // Rule 3.9: signal the error (deliver does that once nothing is pending), and stop
+            // reading.
+            _error = new IllegalArgumentException("Non-positive request: " + n);
+            _pending.clear();
+            if (_upstream != null) {
+              _upstream.cancel();
+            }
+          } else {
+            _demand += n;
+            if (_demand < 0) {
+              _demand = Long.MAX_VALUE;
+            }
+          }
+          deliver();
+        }
+      }
+
+      @Override
+      public void cancel() {
+        synchronized (PushParser.this) {
+          _done = true;
+          _pending.clear();
+          _downstream = null;
+          if (_upstream != null) {
+            _upstream.cancel();
+          }
+        }
+      }
+    });
+    deliver();
+  }
+
+  @Override
+  public synchronized void onSubscribe(Flow.Subscription subscription) {
+    if (_upstream != null) {
+      subscription.cancel();
+      return;
+    }
+    _upstream = subscription;
+    deliver();
+  }
+
+  @Override
+  public synchronized void onNext(ByteBuffer chunk) {
+    _upstreamRequested = false;
+    if (_done) {
+      return;
+    }
+    append(chunk);
+    parseAvailable();
+    deliver();
+  }
+
+  @Override
+  public synchronized void onError(Throwable error) {
+    if (_error == null) {
+      _error = error;
+    }
+    _closed = true;
+    deliver();
+  }
+
+  @Override
+  public synchronized void onComplete() {
+    _closed = true;
+    if (!_done) {
+      parseAvailable();
+      if (_error == null && _start < _end) {
+        fail("Incomplete message at end of input");
+      }
+    }
+    deliver();
+  }
+
+  private void append(ByteBuffer chunk) {
+    int n = chunk.remaining();
+    if (_data.length - _end < n) {
+      // Never compact in place: emitted results may still be looking at the old bytes.
+      int unparsed = _end - _start;
+      byte[] grown = new byte[Math.max(4096, 2 * (unparsed + n))];
+      System.arraycopy(_data, _start, grown, 0, unparsed);
+      _base += _start;
+      _data = grown;
+      _start = 0;
+      _end = unparsed;
+    }
+    chunk.get(_data, _end, n);
+    _end += n;
+  }
+
+  /**
+   * Parse as many complete messages as we can out of the data that's arrived so far.
+   */
+  private void parseAvailable() {
+    ByteBuffer buf = ByteBuffer.wrap(_data);
+    while (_error == null && _start < _end) {
+      Feed feed = new Feed();
+      feed.end = _end;
+      feed.closed = _closed;
+      FeedInput in = new FeedInput(buf, _start, _end, feed, false);
+      ParseResult<Byte, Out> result = _message.parse(in);
+      if (feed.starved && !feed.closed) {
+        // Even a success might have gone differently with more data: an alternative or a
+        // repetition may have been cut short by the end of the chunk. Wait for the rest.
+        return;
+      } else if (result instanceof Success) {
+        int next = ((ByteParserInput)result.getRest()).getPosition();
+        if (next == _start) {
+          fail("Message parser succeeded without consuming input");
+          return;
+        }
+        _pending.add(((Success<Byte, Out>)result).getResult());
+        _start = next;
+      } else {
+        fail("Syntax error in message");
+      }
+    }
+  }
+
+  /**
+   * Stop with an error at the start of the unparsed bytes, and stop reading.
+   */
+  private void fail(String message) {
+    _error = new ParseException(message, (int)Math.min(_base + _start, Integer.MAX_VALUE));
+    if (_upstream != null && !_closed) {
+      _upstream.cancel();
+    }
+  }
+
+  /**
+   * Pass parsed messages and terminal signals downstream, as far as demand allows,
+   * and ask for more input if we're out of messages.
+   */
+  private void deliver() {
+    if (_delivering || _downstream == null) {
+      return;
+    }
+    _delivering = true;
+    try {
+      while (true) {
+        while (_demand > 0 && !_pending.isEmpty()) {
+          _demand--;
+          _downstream.onNext(_pending.poll());
+          if (_downstream == null) {
+            return;
+          }
+        }
+        if (_done || !_pending.isEmpty()) {
+          return;
+        }
+        if (_error != null || _closed) {
+          _done = true;
+          if (_error != null) {
+            _downstream.onError(_error);
+          } else {
+            _downstream.onComplete();
+          }
+          return;
+        }
+        if (_demand == 0 || _upstream == null || _upstreamRequested) {
+          return;
+        }
+        // The upstream may deliver the chunk synchronously, so check again afterwards.
+        _upstreamRequested = true;
+        _upstream.request(1);
+      }
+    } finally {
+      _delivering = false;
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a RecoveringParser: every record that parsed, in order, and an error for each
+ * stretch of input that didn't.
+ */
+public final class Recovered<Out> {
+  private final List<Out> _records = new ArrayList<Out>();
+  private final List<ParseError> _errors = new ArrayList<ParseError>();
+
+  Recovered() { }
+
+  void addRecord(Out record) {
+    _records.add(record);
+  }
+
+  void addError(ParseError error) {
+    _errors.add(error);
+  }
+
+  public List<Out> getRecords() {
+    return Collections.unmodifiableList(_records);
+  }
+
+  public List<ParseError> getErrors() {
+    return Collections.unmodifiableList(_errors);
+  }
+
+  public boolean hasErrors() {
+    return !_errors.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "Recovered(" + _records.size() + " records, " + _errors.size() + " errors)";
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * A parser for a long run of records which keeps going past bad ones.
+ *
+ * Records are parsed until the end of the input. When a record fails, the parser records a
+ * ParseError, scans forward from where the record started to the next place where the sync
+ * parser matches - a newline, a semicolon, a closing bracket - and resumes just after it.
+ * A record that succeeds without consuming anything is treated as a failure, so that the
+ * parse always makes progress. The whole input is consumed in one pass, and the parse
+ * always succeeds.
+ *
+ * Progress is judged by comparing inputs with equals, so this works on inputs that don't keep
+ * track of positions; their ParseErrors just have offsets of -1.
+ *
+ * Since the scan starts at the start of the bad record, records should include their own
+ * terminators: with a sync point of "\n", a record should be a whole line, newline and all.
+ */
+public class RecoveringParser<In, Out> extends Parser<In, Recovered<Out>> {
+  private final Parser<In, Out> _record;
+  private final Parser<In, ?> _sync;
+
+  public RecoveringParser(Parser<In, Out> record, Parser<In, ?> sync) {
+    this._record = record;
+    this._sync = sync;
+  }
+
+  Parser<In, Out> getRecord() { return _record; }
+  Parser<In, ?> getSync() { return _sync; }
+
+  @Override
+  public ParseResult<In, Recovered<Out>> parse(ParserInput<In> in) {
+    Recovered<Out> result = new Recovered<Out>();
+    ParserInput<In> cur = in;
+    while (!cur.atEnd()) {
+      ParseResult<In, Out> r = _record.parse(cur);
+      if (r instanceof Success && !r.getRest().equals(cur)) {
+        result.addRecord(((Success<In, Out>)r).getResult());
+        cur = r.getRest();
+      } else {
+        ParserInput<In> resume = resync(cur);
+        result.addError(new ParseError(LineIndex.offsetOf(cur), LineIndex.offsetOf(resume)));
+        cur = resume;
+      }
+    }
+    return new Success<In, Recovered<Out>>(result, cur);
+  }
+
+  /**
+   * Find the input just past the first sync point at or after a position, or the end of the
+   * input if there isn't one.
+   */
+  private ParserInput<In> resync(ParserInput<In> in) {
+    ParserInput<In> scan = in;
+    while (!scan.atEnd()) {
+      ParseResult<In, ?> r = _sync.parse(scan);
+      if (r instanceof Success && !r.getRest().equals(scan)) {
+        return r.getRest();
+      }
+      scan = scan.rest();
+    }
+    return scan;
+  }
+}
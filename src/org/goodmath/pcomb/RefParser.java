@@ -34,15 +34,35 @@ package org.goodmath.pcomb;
  * xparser = parser.choice(new List<Parser>(parens, yparser)
  * ref.setRef(xparser)
  *
+ * A left-recursive ref can also be used for rules that refer to themselves before consuming any
+ * input, like:
+ * expr := expr '+' term | term
+ * Normally that recursion would never end. A left-recursive ref memoizes its results, and
+ * grows a left-recursive rule's result from a seed: it parses the non-recursive alternative
+ * first, and then re-parses the rule with the previous result standing in for the recursive
+ * call, for as long as that makes the match longer (Warth, Douglass and Millstein, "Packrat
+ * parsers can support left recursion"). The result is left associative, and parsing takes
+ * linear time. Indirect left recursion works too, as long as every left-recursive cycle goes
+ * through at least one left-recursive ref.
+ *
  * @param <In> the type of object returned by the parser input
  * @param <Out> the type of parse result produced by the ref
  */
 public class RefParser<In, Out> extends Parser<In, Out> {
 
   public Parser<In, Out> _ref;
+  private final boolean _leftRecursive;
 
   public RefParser() {
+    this(false);
+  }
+
+  /**
+   * @param leftRecursive true if this ref should support left recursion.
+   */
+  public RefParser(boolean leftRecursive) {
     this._ref = null;
+    this._leftRecursive = leftRecursive;
   }
 
   @Override
@@ -50,6 +70,8 @@ public class RefParser<In, Out> extends Parser<In, Out> {
       ParserInput<In> in) {
     if (_ref == null) {
       return new Failure<In, Out>();
+    } else if (_leftRecursive) {
+      return LeftRecursion.apply(this, in);
     } else {
       return _ref.parse(in);
     }
@@ -57,4 +79,11 @@ public class RefParser<In, Out> extends Parser<In, Out> {
 
   public void setRef(Parser<In, Out> p) { _ref = p; }
 
+  Parser<In, Out> getRef() { return _ref; }
+
+  /**
+   * Return true if this ref supports left recursion.
+   */
+  public boolean isLeftRecursive() { return _leftRecursive; }
+
 }
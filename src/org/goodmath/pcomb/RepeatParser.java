@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+/**
+ * Parsers for repetitions which feed each element's result into an accumulator as it's
+ * parsed, instead of collecting them into a list.
+ *
+ * ManyParser builds a list of every result, even when the caller is going to sum it, count
+ * it, or throw it away. A repeat parser folds the results into a value, streams them into a
+ * Collector, or skips them, so a repetition uses the same amount of memory however many
+ * times it matches.
+ *
+ * A repetition runs one parser for the first element, and another for each element after
+ * that. For a plain repetition they're the same parser. For elements separated by a
+ * separator, the second one parses a separator followed by an element; for elements that
+ * are each followed by a separator, both parse an element followed by a separator.
+ */
+public abstract class RepeatParser<In, Elt, Out> extends Parser<In, Out> {
+  private final Parser<In, Elt> _first;
+  private final Parser<In, Elt> _next;
+  private final int _min;
+  private final int _max;
+
+  RepeatParser(Parser<In, Elt> first, Parser<In, Elt> next, int min, int max) {
+    this._first = first;
+    this._next = next;
+    this._min = min;
+    this._max = max;
+  }
+
+  Parser<In, Elt> getFirst() { return _first; }
+  Parser<In, Elt> getNext() { return _next; }
+  int getMin() { return _min; }
+  int getMax() { return _max; }
+
+  /**
+   * Get the object that accumulates the results - a fold's action, or a collector - if
+   * there is one.
+   */
+  abstract Object getAction();
+
+  /**
+   * Create the accumulator for one invocation of the parser.
+   */
+  abstract Object start();
+
+  /**
+   * Add an element's result to an accumulator.
+   * @return the updated accumulator.
+   */
+  abstract Object add(Object acc, Elt value);
+
+  /**
+   * Get the result of the repetition from its accumulator.
+   */
+  abstract Out finish(Object acc);
+
+  /**
+   * Create a copy of this parser with the same accumulator, but different element parsers.
+   */
+  abstract RepeatParser<In, Elt, Out> rebuild(Parser<In, Elt> first, Parser<In, Elt> next);
+
+  @Override
+  public ParseResult<In, Out> parse(ParserInput<In> in) {
+    Object acc = start();
+    int count = 0;
+    while (count < _max) {
+      ParseResult<In, Elt> r = (count == 0 ? _first : _next).parse(in);
+      if (!(r instanceof Success)) {
+        break;
+      }
+      acc = add(acc, ((Success<In, Elt>)r).getResult());
+      in = r.getRest();
+      count++;
+    }
+    if (count < _min) {
+      return new Failure<In, Out>();
+    }
+    return new Success<In, Out>(finish(acc), in);
+  }
+
+  /**
+   * Get a parser for a separator followed by an element, which returns the element.
+   */
+  static <In, Elt> Parser<In, Elt> separated(Parser<In, ?> sep, Parser<In, Elt> elt) {
+    return new KeepParser<In, Elt>(Arrays.<Parser<In, ?>>asList(sep, elt), 1);
+  }
+
+  /**
+   * Get a parser for an element followed by a terminator, which returns the element.
+   */
+  static <In, Elt> Parser<In, Elt> terminated(Parser<In, Elt> elt, Parser<In, ?> sep) {
+    return new KeepParser<In, Elt>(Arrays.<Parser<In, ?>>asList(elt, sep), 0);
+  }
+
+  /**
+   * A repetition which folds its results into a value with an action.
+   * The seed is shared by every invocation, so it should be immutable.
+   */
+  public static class Fold<In, Elt, Acc> extends RepeatParser<In, Elt, Acc> {
+    private final Acc _seed;
+    private final Action2<Acc, Elt, Acc> _fn;
+
+    public Fold(Parser<In, Elt> first, Parser<In, Elt> next, int min, int max,
+        Acc seed, Action2<Acc, Elt, Acc> fn) {
+      super(first, next, min, max);
+      this._seed = seed;
+      this._fn = fn;
+    }
+
+    Acc getSeed() { return _seed; }
+
+    @Override
+    Object getAction() { return _fn; }
+
+    @Override
+    Object start() { return _seed; }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Object add(Object acc, Elt value) {
+      return _fn.run((Acc)acc, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Acc finish(Object acc) { return (Acc)acc; }
+
+    @Override
+    RepeatParser<In, Elt, Acc> rebuild(Parser<In, Elt> first, Parser<In, Elt> next) {
+      return new Fold<In, Elt, Acc>(first, next, getMin(), getMax(), _seed, _fn);
+    }
+  }
+
+  /**
+   * A repetition which streams its results into a Collector.
+   */
+  public static class Collect<In, Elt, A, Out> extends RepeatParser<In, Elt, Out> {
+    private final Collector<? super Elt, A, Out> _collector;
+    private final Supplier<A> _supplier;
+    private final BiConsumer<A, ? super Elt> _accumulator;
+    private final Function<A, Out> _finisher;
+
+    public Collect(Parser<In, Elt> first, Parser<In, Elt> next, int min, int max,
+        Collector<? super Elt, A, Out> collector) {
+      super(first, next, min, max);
+      this._collector = collector;
+      this._supplier = collector.supplier();
+      this._accumulator = collector.accumulator();
+      this._finisher = collector.finisher();
+    }
+
+    /**
+     * Create a collecting repetition, capturing the collector's accumulation type.
+     */
+    static <In, Elt, A, Out> Collect<In, Elt, A, Out> of(Parser<In, Elt> first, Parser<In, Elt> next,
+        int min, int max, Collector<? super Elt, A, Out> collector) {
+      return new Collect<In, Elt, A, Out>(first, next, min, max, collector);
+    }
+
+    @Override
+    Object getAction() { return _collector; }
+
+    @Override
+    Object start() { return _supplier.get(); }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Object add(Object acc, Elt value) {
+      _accumulator.accept((A)acc, value);
+      return acc;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Out finish(Object acc) { return _finisher.apply((A)acc); }
+
+    @Override
+    RepeatParser<In, Elt, Out> rebuild(Parser<In, Elt> first, Parser<In, Elt> next) {
+      return new Collect<In, Elt, A, Out>(first, next, getMin(), getMax(), _collector);
+    }
+  }
+
+  /**
+   * A repetition which discards its results, and returns null.
+   */
+  public static class Skip<In, Elt> extends RepeatParser<In, Elt, Void> {
+    public Skip(Parser<In, Elt> first, Parser<In, Elt> next, int min, int max) {
+      super(first, next, min, max);
+    }
+
+    @Override
+    Object getAction() { return null; }
+
+    @Override
+    Object start() { return null; }
+
+    @Override
+    Object add(Object acc, Elt value) { return null; }
+
+    @Override
+    Void finish(Object acc) { return null; }
+
+    @Override
+    RepeatParser<In, Elt, Void> rebuild(Parser<In, Elt> first, Parser<In, Elt> next) {
+      return new Skip<In, Elt>(first, next, getMin(), getMax());
+    }
+  }
+}
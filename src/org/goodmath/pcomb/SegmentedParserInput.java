@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parser input for character parsers that reads from a sequence of text segments as if
+ * they'd been concatenated, without copying them. The segments can be any CharSequence,
+ * like Strings, StringBuilders, or CharBuffers; they mustn't be changed while they're being
+ * parsed.
+ *
+ * Stepping through the input is constant time, and seek finds the input at any offset
+ * with a binary search of the segments' starting offsets.
+ */
+public class SegmentedParserInput implements ParserInput<Character> {
+  private final Segments _segments;
+  private final int _seg;
+  private final int _offset;
+
+  private SegmentedParserInput(Segments segments, int seg, int offset) {
+    this._segments = segments;
+    this._seg = seg;
+    this._offset = offset;
+  }
+
+  public SegmentedParserInput(List<? extends CharSequence> segments) {
+    this(new Segments(segments), 0, 0);
+  }
+
+  public SegmentedParserInput(CharSequence... segments) {
+    this(Arrays.asList(segments));
+  }
+
+  @Override
+  public Character first() {
+    if (_seg < _segments.texts.length) {
+      return _segments.texts[_seg].charAt(_offset);
+    } else {
+      return 0;
+    }
+  }
+
+  @Override
+  public ParserInput<Character> rest() {
+    if (_seg == _segments.texts.length) {
+      return this;
+    }
+    if (_offset + 1 < _segments.texts[_seg].length()) {
+      return new SegmentedParserInput(_segments, _seg, _offset + 1);
+    }
+    // Empty segments were dropped when the input was created, so the next one has a first char.
+    return new SegmentedParserInput(_segments, _seg + 1, 0);
+  }
+
+  @Override
+  public boolean atEnd() {
+    return _seg == _segments.texts.length;
+  }
+
+  @Override
+  public int getPosition() {
+    return _segments.starts[_seg] + _offset;
+  }
+
+  /**
+   * Get the number of characters left in the input.
+   */
+  public int remaining() {
+    return _segments.length() - getPosition();
+  }
+
+  /**
+   * Get an input for the same segments, starting at an offset from the start of the first one.
+   */
+  public SegmentedParserInput seek(int position) {
+    int[] starts = _segments.starts;
+    if (position < 0 || position > _segments.length()) {
+      throw new IndexOutOfBoundsException("Position " + position + " is outside of the input");
+    }
+    int seg = Arrays.binarySearch(starts, position);
+    if (seg < 0) {
+      seg = -seg - 2;
+    }
+    return new SegmentedParserInput(_segments, seg, position - starts[seg]);
+  }
+
+  /**
+   * Two segmented inputs are equal if they're at the same position in the same segments.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof SegmentedParserInput)) {
+      return false;
+    }
+    SegmentedParserInput other = (SegmentedParserInput)o;
+    return other._segments == _segments && other._seg == _seg && other._offset == _offset;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(_segments) * 31 + getPosition();
+  }
+
+  /**
+   * The segments shared by all of the inputs over them.
+   */
+  private static final class Segments {
+    // The non-empty segments.
+    final CharSequence[] texts;
+    // The offset where each segment starts. There's one extra entry, for the end of the input.
+    final int[] starts;
+
+    Segments(List<? extends CharSequence> segments) {
+      List<CharSequence> nonEmpty = new ArrayList<CharSequence>(segments.size());
+      for (CharSequence s : segments) {
+        if (s.length() > 0) {
+          nonEmpty.add(s);
+        }
+      }
+      texts = nonEmpty.toArray(new CharSequence[nonEmpty.size()]);
+      starts = new int[texts.length + 1];
+      for (int i = 0; i < texts.length; i++) {
+        starts[i + 1] = starts[i] + texts[i].length();
+      }
+    }
+
+    int length() {
+      return starts[texts.length];
+    }
+  }
+}
@@ -0,0 +1,652 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parsers for running a fixed number of parsers of different types in sequence, and passing
+ * their results straight to an action that combines them.
+ *
+ * Unlike nested andPair calls, there's no intermediate Pair for each step; and unlike SeqParser,
+ * the elements don't need to have the same type, and there's no list of results. The sub-results
+ * are held in locals, so building an AST node from a sequence allocates just the node.
+ */
+public abstract class SeqNParser<In, Out> extends Parser<In, Out> {
+
+  /**
+   * Get the element parsers, in order.
+   */
+  abstract List<Parser<In, ?>> getParsers();
+
+  /**
+   * Get the action which combines the results.
+   */
+  abstract Object getAction();
+
+  /**
+   * Run the action on an array of element results, for engines that don't use parse.
+   */
+  abstract Out combine(Object[] values);
+
+  /**
+   * Create a copy of this parser with the same action, but different element parsers.
+   */
+  abstract SeqNParser<In, Out> rebuild(List<Parser<In, ?>> parsers);
+
+  /**
+   * A sequence of 2 parsers.
+   */
+  public static class Seq2<In, A, B, Out> extends SeqNParser<In, Out> {
+    private final Parser<In, A> _p1;
+    private final Parser<In, B> _p2;
+    private final Action2<A, B, Out> _fn;
+
+    public Seq2(Parser<In, A> p1, Parser<In, B> p2, Action2<A, B, Out> fn) {
+      this._p1 = p1;
+      this._p2 = p2;
+      this._fn = fn;
+    }
+
+    @Override
+    public ParseResult<In, Out> parse(ParserInput<In> in) {
+      ParseResult<In, A> r1 = _p1.parse(in);
+      if (r1 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, B> r2 = _p2.parse(r1.getRest());
+      if (r2 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      return new Success<In, Out>(_fn.run(
+          ((Success<In, A>)r1).getResult(),
+          ((Success<In, B>)r2).getResult()),
+          r2.getRest());
+    }
+
+    @Override
+    List<Parser<In, ?>> getParsers() {
+      return Arrays.<Parser<In, ?>>asList(_p1, _p2);
+    }
+
+    @Override
+    Object getAction() { return _fn; }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Out combine(Object[] values) {
+      return _fn.run((A)values[0], (B)values[1]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    SeqNParser<In, Out> rebuild(List<Parser<In, ?>> parsers) {
+      return new Seq2<In, A, B, Out>(
+          (Parser<In, A>)parsers.get(0),
+          (Parser<In, B>)parsers.get(1),
+          _fn);
+    }
+  }
+
+  /**
+   * A sequence of 3 parsers.
+   */
+  public static class Seq3<In, A, B, C, Out> extends SeqNParser<In, Out> {
+    private final Parser<In, A> _p1;
+    private final Parser<In, B> _p2;
+    private final Parser<In, C> _p3;
+    private final Action3<A, B, C, Out> _fn;
+
+    public Seq3(Parser<In, A> p1, Parser<In, B> p2, Parser<In, C> p3, Action3<A, B, C, Out> fn) {
+      this._p1 = p1;
+      this._p2 = p2;
+      this._p3 = p3;
+      this._fn = fn;
+    }
+
+    @Override
+    public ParseResult<In, Out> parse(ParserInput<In> in) {
+      ParseResult<In, A> r1 = _p1.parse(in);
+      if (r1 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, B> r2 = _p2.parse(r1.getRest());
+      if (r2 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, C> r3 = _p3.parse(r2.getRest());
+      if (r3 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      return new Success<In, Out>(_fn.run(
+          ((Success<In, A>)r1).getResult(),
+          ((Success<In, B>)r2).getResult(),
+          ((Success<In, C>)r3).getResult()),
+          r3.getRest());
+    }
+
+    @Override
+    List<Parser<In, ?>> getParsers() {
+      return Arrays.<Parser<In, ?>>asList(_p1, _p2, _p3);
+    }
+
+    @Override
+    Object getAction() { return _fn; }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Out combine(Object[] values) {
+      return _fn.run((A)values[0], (B)values[1], (C)values[2]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    SeqNParser<In, Out> rebuild(List<Parser<In, ?>> parsers) {
+      return new Seq3<In, A, B, C, Out>(
+          (Parser<In, A>)parsers.get(0),
+          (Parser<In, B>)parsers.get(1),
+          (Parser<In, C>)parsers.get(2),
+          _fn);
+    }
+  }
+
+  /**
+   * A sequence of 4 parsers.
+   */
+  public static class Seq4<In, A, B, C, D, Out> extends SeqNParser<In, Out> {
+    private final Parser<In, A> _p1;
+    private final Parser<In, B> _p2;
+    private final Parser<In, C> _p3;
+    private final Parser<In, D> _p4;
+    private final Action4<A, B, C, D, Out> _fn;
+
+    public Seq4(
+        Parser<In, A> p1,
+        Parser<In, B> p2,
+        Parser<In, C> p3,
+        Parser<In, D> p4,
+        Action4<A, B, C, D, Out> fn) {
+      this._p1 = p1;
+      this._p2 = p2;
+      this._p3 = p3;
+      this._p4 = p4;
+      this._fn = fn;
+    }
+
+    @Override
+    public ParseResult<In, Out> parse(ParserInput<In> in) {
+      ParseResult<In, A> r1 = _p1.parse(in);
+      if (r1 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, B> r2 = _p2.parse(r1.getRest());
+      if (r2 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, C> r3 = _p3.parse(r2.getRest());
+      if (r3 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, D> r4 = _p4.parse(r3.getRest());
+      if (r4 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      return new Success<In, Out>(_fn.run(
+          ((Success<In, A>)r1).getResult(),
+          ((Success<In, B>)r2).getResult(),
+          ((Success<In, C>)r3).getResult(),
+          ((Success<In, D>)r4).getResult()),
+          r4.getRest());
+    }
+
+    @Override
+    List<Parser<In, ?>> getParsers() {
+      return Arrays.<Parser<In, ?>>asList(_p1, _p2, _p3, _p4);
+    }
+
+    @Override
+    Object getAction() { return _fn; }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Out combine(Object[] values) {
+      return _fn.run((A)values[0], (B)values[1], (C)values[2], (D)values[3]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    SeqNParser<In, Out> rebuild(List<Parser<In, ?>> parsers) {
+      return new Seq4<In, A, B, C, D, Out>(
+          (Parser<In, A>)parsers.get(0),
+          (Parser<In, B>)parsers.get(1),
+          (Parser<In, C>)parsers.get(2),
+          (Parser<In, D>)parsers.get(3),
+          _fn);
+    }
+  }
+
+  /**
+   * A sequence of 5 parsers.
+   */
+  public static class Seq5<In, A, B, C, D, E, Out> extends SeqNParser<In, Out> {
+    private final Parser<In, A> _p1;
+    private final Parser<In, B> _p2;
+    private final Parser<In, C> _p3;
+    private final Parser<In, D> _p4;
+    private final Parser<In, E> _p5;
+    private final Action5<A, B, C, D, E, Out> _fn;
+
+    public Seq5(
+        Parser<In, A> p1,
+        Parser<In, B> p2,
+        Parser<In, C> p3,
+        Parser<In, D> p4,
+        Parser<In, E> p5,
+        Action5<A, B, C, D, E, Out> fn) {
+      this._p1 = p1;
+      this._p2 = p2;
+      this._p3 = p3;
+      this._p4 = p4;
+      this._p5 = p5;
+      this._fn = fn;
+    }
+
+    @Override
+    public ParseResult<In, Out> parse(ParserInput<In> in) {
+      ParseResult<In, A> r1 = _p1.parse(in);
+      if (r1 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, B> r2 = _p2.parse(r1.getRest());
+      if (r2 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, C> r3 = _p3.parse(r2.getRest());
+      if (r3 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, D> r4 = _p4.parse(r3.getRest());
+      if (r4 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, E> r5 = _p5.parse(r4.getRest());
+      if (r5 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      return new Success<In, Out>(_fn.run(
+          ((Success<In, A>)r1).getResult(),
+          ((Success<In, B>)r2).getResult(),
+          ((Success<In, C>)r3).getResult(),
+          ((Success<In, D>)r4).getResult(),
+          ((Success<In, E>)r5).getResult()),
+          r5.getRest());
+    }
+
+    @Override
+    List<Parser<In, ?>> getParsers() {
+      return Arrays.<Parser<In, ?>>asList(_p1, _p2, _p3, _p4, _p5);
+    }
+
+    @Override
+    Object getAction() { return _fn; }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Out combine(Object[] values) {
+      return _fn.run((A)values[0], (B)values[1], (C)values[2], (D)values[3], (E)values[4]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    SeqNParser<In, Out> rebuild(List<Parser<In, ?>> parsers) {
+      return new Seq5<In, A, B, C, D, E, Out>(
+          (Parser<In, A>)parsers.get(0),
+          (Parser<In, B>)parsers.get(1),
+          (Parser<In, C>)parsers.get(2),
+          (Parser<In, D>)parsers.get(3),
+          (Parser<In, E>)parsers.get(4),
+          _fn);
+    }
+  }
+
+  /**
+   * A sequence of 6 parsers.
+   */
+  public static class Seq6<In, A, B, C, D, E, F, Out> extends SeqNParser<In, Out> {
+    private final Parser<In, A> _p1;
+    private final Parser<In, B> _p2;
+    private final Parser<In, C> _p3;
+    private final Parser<In, D> _p4;
+    private final Parser<In, E> _p5;
+    private final Parser<In, F> _p6;
+    private final Action6<A, B, C, D, E, F, Out> _fn;
+
+    public Seq6(
+        Parser<In, A> p1,
+        Parser<In, B> p2,
+        Parser<In, C> p3,
+        Parser<In, D> p4,
+        Parser<In, E> p5,
+        Parser<In, F> p6,
+        Action6<A, B, C, D, E, F, Out> fn) {
+      this._p1 = p1;
+      this._p2 = p2;
+      this._p3 = p3;
+      this._p4 = p4;
+      this._p5 = p5;
+      this._p6 = p6;
+      this._fn = fn;
+    }
+
+    @Override
+    public ParseResult<In, Out> parse(ParserInput<In> in) {
+      ParseResult<In, A> r1 = _p1.parse(in);
+      if (r1 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, B> r2 = _p2.parse(r1.getRest());
+      if (r2 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, C> r3 = _p3.parse(r2.getRest());
+      if (r3 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, D> r4 = _p4.parse(r3.getRest());
+      if (r4 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, E> r5 = _p5.parse(r4.getRest());
+      if (r5 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, F> r6 = _p6.parse(r5.getRest());
+      if (r6 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      return new Success<In, Out>(_fn.run(
+          ((Success<In, A>)r1).getResult(),
+          ((Success<In, B>)r2).getResult(),
+          ((Success<In, C>)r3).getResult(),
+          ((Success<In, D>)r4).getResult(),
+          ((Success<In, E>)r5).getResult(),
+          ((Success<In, F>)r6).getResult()),
+          r6.getRest());
+    }
+
+    @Override
+    List<Parser<In, ?>> getParsers() {
+      return Arrays.<Parser<In, ?>>asList(_p1, _p2, _p3, _p4, _p5, _p6);
+    }
+
+    @Override
+    Object getAction() { return _fn; }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Out combine(Object[] values) {
+      return _fn.run(
+          (A)values[0],
+          (B)values[1],
+          (C)values[2],
+          (D)values[3],
+          (E)values[4],
+          (F)values[5]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    SeqNParser<In, Out> rebuild(List<Parser<In, ?>> parsers) {
+      return new Seq6<In, A, B, C, D, E, F, Out>(
+          (Parser<In, A>)parsers.get(0),
+          (Parser<In, B>)parsers.get(1),
+          (Parser<In, C>)parsers.get(2),
+          (Parser<In, D>)parsers.get(3),
+          (Parser<In, E>)parsers.get(4),
+          (Parser<In, F>)parsers.get(5),
+          _fn);
+    }
+  }
+
+  /**
+   * A sequence of 7 parsers.
+   */
+  public static class Seq7<In, A, B, C, D, E, F, G, Out> extends SeqNParser<In, Out> {
+    private final Parser<In, A> _p1;
+    private final Parser<In, B> _p2;
+    private final Parser<In, C> _p3;
+    private final Parser<In, D> _p4;
+    private final Parser<In, E> _p5;
+    private final Parser<In, F> _p6;
+    private final Parser<In, G> _p7;
+    private final Action7<A, B, C, D, E, F, G, Out> _fn;
+
+    public Seq7(
+        Parser<In, A> p1,
+        Parser<In, B> p2,
+        Parser<In, C> p3,
+        Parser<In, D> p4,
+        Parser<In, E> p5,
+        Parser<In, F> p6,
+        Parser<In, G> p7,
+        Action7<A, B, C, D, E, F, G, Out> fn) {
+      this._p1 = p1;
+      this._p2 = p2;
+      this._p3 = p3;
+      this._p4 = p4;
+      this._p5 = p5;
+      this._p6 = p6;
+      this._p7 = p7;
+      this._fn = fn;
+    }
+
+    @Override
+    public ParseResult<In, Out> parse(ParserInput<In> in) {
+      ParseResult<In, A> r1 = _p1.parse(in);
+      if (r1 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, B> r2 = _p2.parse(r1.getRest());
+      if (r2 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, C> r3 = _p3.parse(r2.getRest());
+      if (r3 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, D> r4 = _p4.parse(r3.getRest());
+      if (r4 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, E> r5 = _p5.parse(r4.getRest());
+      if (r5 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, F> r6 = _p6.parse(r5.getRest());
+      if (r6 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, G> r7 = _p7.parse(r6.getRest());
+      if (r7 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      return new Success<In, Out>(_fn.run(
+          ((Success<In, A>)r1).getResult(),
+          ((Success<In, B>)r2).getResult(),
+          ((Success<In, C>)r3).getResult(),
+          ((Success<In, D>)r4).getResult(),
+          ((Success<In, E>)r5).getResult(),
+          ((Success<In, F>)r6).getResult(),
+          ((Success<In, G>)r7).getResult()),
+          r7.getRest());
+    }
+
+    @Override
+    List<Parser<In, ?>> getParsers() {
+      return Arrays.<Parser<In, ?>>asList(_p1, _p2, _p3, _p4, _p5, _p6, _p7);
+    }
+
+    @Override
+    Object getAction() { return _fn; }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Out combine(Object[] values) {
+      return _fn.run(
+          (A)values[0],
+          (B)values[1],
+          (C)values[2],
+          (D)values[3],
+          (E)values[4],
+          (F)values[5],
+          (G)values[6]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    SeqNParser<In, Out> rebuild(List<Parser<In, ?>> parsers) {
+      return new Seq7<In, A, B, C, D, E, F, G, Out>(
+          (Parser<In, A>)parsers.get(0),
+          (Parser<In, B>)parsers.get(1),
+          (Parser<In, C>)parsers.get(2),
+          (Parser<In, D>)parsers.get(3),
+          (Parser<In, E>)parsers.get(4),
+          (Parser<In, F>)parsers.get(5),
+          (Parser<In, G>)parsers.get(6),
+          _fn);
+    }
+  }
+
+  /**
+   * A sequence of 8 parsers.
+   */
+  public static class Seq8<In, A, B, C, D, E, F, G, H, Out> extends SeqNParser<In, Out> {
+    private final Parser<In, A> _p1;
+    private final Parser<In, B> _p2;
+    private final Parser<In, C> _p3;
+    private final Parser<In, D> _p4;
+    private final Parser<In, E> _p5;
+    private final Parser<In, F> _p6;
+    private final Parser<In, G> _p7;
+    private final Parser<In, H> _p8;
+    private final Action8<A, B, C, D, E, F, G, H, Out> _fn;
+
+    public Seq8(
+        Parser<In, A> p1,
+        Parser<In, B> p2,
+        Parser<In, C> p3,
+        Parser<In, D> p4,
+        Parser<In, E> p5,
+        Parser<In, F> p6,
+        Parser<In, G> p7,
+        Parser<In, H> p8,
+        Action8<A, B, C, D, E, F, G, H, Out> fn) {
+      this._p1 = p1;
+      this._p2 = p2;
+      this._p3 = p3;
+      this._p4 = p4;
+      this._p5 = p5;
+      this._p6 = p6;
+      this._p7 = p7;
+      this._p8 = p8;
+      this._fn = fn;
+    }
+
+    @Override
+    public ParseResult<In, Out> parse(ParserInput<In> in) {
+      ParseResult<In, A> r1 = _p1.parse(in);
+      if (r1 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, B> r2 = _p2.parse(r1.getRest());
+      if (r2 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, C> r3 = _p3.parse(r2.getRest());
+      if (r3 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, D> r4 = _p4.parse(r3.getRest());
+      if (r4 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, E> r5 = _p5.parse(r4.getRest());
+      if (r5 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, F> r6 = _p6.parse(r5.getRest());
+      if (r6 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, G> r7 = _p7.parse(r6.getRest());
+      if (r7 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      ParseResult<In, H> r8 = _p8.parse(r7.getRest());
+      if (r8 instanceof Failure) {
+        return new Failure<In, Out>();
+      }
+      return new Success<In, Out>(_fn.run(
+          ((Success<In, A>)r1).getResult(),
+          ((Success<In, B>)r2).getResult(),
+          ((Success<In, C>)r3).getResult(),
+          ((Success<In, D>)r4).getResult(),
+          ((Success<In, E>)r5).getResult(),
+          ((Success<In, F>)r6).getResult(),
+          ((Success<In, G>)r7).getResult(),
+          ((Success<In, H>)r8).getResult()),
+          r8.getRest());
+    }
+
+    @Override
+    List<Parser<In, ?>> getParsers() {
+      return Arrays.<Parser<In, ?>>asList(_p1, _p2, _p3, _p4, _p5, _p6, _p7, _p8);
+    }
+
+    @Override
+    Object getAction() { return _fn; }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Out combine(Object[] values) {
+      return _fn.run(
+          (A)values[0],
+          (B)values[1],
+          (C)values[2],
+          (D)values[3],
+          (E)values[4],
+          (F)values[5],
+          (G)values[6],
+          (H)values[7]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    SeqNParser<In, Out> rebuild(List<Parser<In, ?>> parsers) {
+      return new Seq8<In, A, B, C, D, E, F, G, H, Out>(
+          (Parser<In, A>)parsers.get(0),
+          (Parser<In, B>)parsers.get(1),
+          (Parser<In, C>)parsers.get(2),
+          (Parser<In, D>)parsers.get(3),
+          (Parser<In, E>)parsers.get(4),
+          (Parser<In, F>)parsers.get(5),
+          (Parser<In, G>)parsers.get(6),
+          (Parser<In, H>)parsers.get(7),
+          _fn);
+    }
+  }
+}
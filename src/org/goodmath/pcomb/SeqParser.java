@@ -34,6 +34,8 @@ public class SeqParser<In, Out> extends Parser<In, List<Out>> {
     _parsers.add(first);
   }
 
+  List<Parser<In, Out>> getParsers() { return _parsers; }
+
   public SeqParser<In, Out> andThen(Parser<In, Out> next) {
     List<Parser<In, Out>> parsers = new ArrayList<Parser<In, Out>>();
     parsers.addAll(_parsers);
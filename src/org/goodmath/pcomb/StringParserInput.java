@@ -54,4 +54,29 @@ public class StringParserInput implements ParserInput<Character> {
     return _pos >= _str.length();
   }
 
+  @Override
+  public int getPosition() { return _pos; }
+
+  /**
+   * Get the number of characters left in the input.
+   */
+  public int remaining() { return _str.length() - _pos; }
+
+  /**
+   * Two string inputs are equal if they're at the same position in the same string object.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof StringParserInput)) {
+      return false;
+    }
+    StringParserInput other = (StringParserInput)o;
+    return other._str == _str && other._pos == _pos;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(_str) * 31 + _pos;
+  }
+
 }
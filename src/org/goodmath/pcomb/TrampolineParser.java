@@ -0,0 +1,438 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parser which runs a combinator graph using an explicit, heap-allocated stack of
+ * continuation frames instead of the Java call stack.
+ *
+ * The normal parse methods recurse through the graph - a RefParser calls its target, which
+ * calls an andSecond, which calls another RefParser, and so on. For deeply nested input,
+ * that recursion eventually overflows the thread stack. The trampoline walks the same
+ * graph, but each combinator that it knows about is broken into steps: entering a node
+ * pushes a frame, and the frame is resumed when the child it's waiting on produces a result.
+ * Nesting depth is then limited by the heap, rather than by the thread's stack size.
+ *
+ * Parsers that the trampoline doesn't know about (like hand-written subclasses of Parser)
+ * are treated as leaves, and invoked through their own parse method.
+ *
+ * Frames are reused between steps and between calls, so on shallow input the trampoline
+ * allocates about the same as the recursive parse methods do.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class TrampolineParser<In, Out> extends Parser<In, Out> {
+  private final Parser<In, Out> _root;
+
+  public TrampolineParser(Parser<In, Out> root) {
+    this._root = root;
+  }
+
+  Parser<In, Out> getRoot() { return _root; }
+
+  @Override
+  public ParseResult<In, Out> parse(ParserInput<In> in) {
+    return run(_root, in);
+  }
+
+  /**
+   * Run a parser graph on the trampoline.
+   * @param root the parser to run.
+   * @param in the input stream to feed the parser.
+   */
+  public static <In, Out> ParseResult<In, Out> run(Parser<In, Out> root, ParserInput<In> in) {
+    return (ParseResult<In, Out>)new Engine().run(root, in);
+  }
+
+  /**
+   * A suspended invocation of a parser node.
+   */
+  private static final class Frame {
+    Parser node;
+    ParserInput in;
+    // How far the node has gotten: 0 means that it hasn't started yet.
+    int state;
+    // The input position after the last step that succeeded.
+    ParserInput cur;
+    // The result of a completed earlier step, for sequences.
+    Object value;
+    List values;
+    // Where a RecoveringParser is scanning for a sync point.
+    ParserInput scan;
+    // The left recursion recall count when a memoized rule started parsing.
+    long recalls;
+
+    void reset(Parser node, ParserInput in) {
+      this.node = node;
+      this.in = in;
+      this.state = 0;
+      this.cur = in;
+      this.value = null;
+      this.values = null;
+      this.scan = null;
+    }
+  }
+
+  private static final class Engine {
+    private Frame[] _frames = new Frame[64];
+    private int _top = -1;
+    // The result produced by the most recently completed frame.
+    private ParseResult _result;
+
+    private void push(Parser node, ParserInput in) {
+      _top++;
+      if (_top == _frames.length) {
+        Frame[] grown = new Frame[_frames.length * 2];
+        System.arraycopy(_frames, 0, grown, 0, _frames.length);
+        _frames = grown;
+      }
+      Frame f = _frames[_top];
+      if (f == null) {
+        f = new Frame();
+        _frames[_top] = f;
+      }
+      f.reset(node, in);
+    }
+
+    /**
+     * Replace the top frame with an invocation of another node, whose result will
+     * be the result of the replaced frame.
+     */
+    private void tailCall(Parser node, ParserInput in) {
+      _frames[_top].reset(node, in);
+    }
+
+    private void complete(ParseResult result) {
+      Frame f = _frames[_top];
+      f.node = null;
+      f.in = null;
+      f.cur = null;
+      f.value = null;
+      f.values = null;
+      f.scan = null;
+      _top--;
+      _result = result;
+    }
+
+    ParseResult run(Parser root, ParserInput in) {
+      push(root, in);
+      try {
+        while (_top >= 0) {
+          step(_frames[_top]);
+        }
+      } finally {
+        // If a leaf threw, memoized rules that are still running have to leave their scopes.
+        for (; _top >= 0; _top--) {
+          Frame f = _frames[_top];
+          if (f.node instanceof MemoParser && f.state == 1) {
+            ((AdaptiveMemo.Scope)f.value).exit();
+          }
+        }
+      }
+      return _result;
+    }
+
+    private void step(Frame f) {
+      Parser node = f.node;
+      if (node instanceof RefParser && ((RefParser)node).isLeftRecursive()) {
+        // Left recursion needs the ref's memo table, so it runs on the Java stack.
+        complete(node.parse(f.in));
+      } else if (node instanceof RefParser) {
+        Parser target = ((RefParser)node).getRef();
+        if (target == null) {
+          complete(new Failure());
+        } else {
+          tailCall(target, f.in);
+        }
+      } else if (node instanceof ChoiceParser) {
+        stepChoice(f, ((ChoiceParser)node).getChoices());
+      } else if (node instanceof SeqParser) {
+        stepSeq(f, ((SeqParser)node).getParsers());
+      } else if (node instanceof KeepParser) {
+        stepKeep(f, (KeepParser)node);
+      } else if (node instanceof SeqNParser) {
+        stepSeqN(f, (SeqNParser)node);
+      } else if (node instanceof ManyParser) {
+        stepMany(f, (ManyParser)node);
+      } else if (node instanceof RepeatParser) {
+        stepRepeat(f, (RepeatParser)node);
+      } else if (node instanceof RecoveringParser) {
+        stepRecover(f, (RecoveringParser)node);
+      } else if (node instanceof Transform) {
+        Transform t = (Transform)node;
+        if (f.state == 0) {
+          f.state = 1;
+          push(t.getBase(), f.in);
+        } else if (_result instanceof Failure) {
+          complete(new Failure());
+        } else {
+          Success s = (Success)_result;
+          complete(new Success(t.getAction().run(s.getResult()), s.getRest()));
+        }
+      } else if (node instanceof OptParser) {
+        OptParser o = (OptParser)node;
+        if (f.state == 0) {
+          f.state = 1;
+          push(o.getBase(), f.in);
+        } else if (!(_result instanceof Success)) {
+          complete(new Success(o.getNullVal(), f.in));
+        } else {
+          complete(_result);
+        }
+      } else if (node instanceof LexemeParser) {
+        LexemeParser l = (LexemeParser)node;
+        Lexeme lexeme = l.getLexeme();
+        if (!lexeme.isTrailing()) {
+          tailCall(l.getBase(), lexeme.skip(f.in));
+        } else if (f.state == 0) {
+          f.state = 1;
+          push(l.getBase(), f.in);
+        } else if (_result instanceof Failure) {
+          complete(_result);
+        } else {
+          complete(new Success(((Success)_result).getResult(), lexeme.skip(_result.getRest())));
+        }
+      } else if (node instanceof AndPairParser) {
+        AndPairParser p = (AndPairParser)node;
+        stepAnd(f, p.getFirst(), p.getSecond());
+      } else if (node instanceof AndFirstParser) {
+        AndFirstParser p = (AndFirstParser)node;
+        stepAnd(f, p.getFirst(), p.getSecond());
+      } else if (node instanceof AndSecondParser) {
+        AndSecondParser p = (AndSecondParser)node;
+        stepAnd(f, p.getFirst(), p.getSecond());
+      } else if (node instanceof TrampolineParser) {
+        tailCall(((TrampolineParser)node).getRoot(), f.in);
+      } else if (node instanceof MemoParser) {
+        MemoParser m = (MemoParser)node;
+        if (f.state == 0) {
+          AdaptiveMemo.Scope scope = m.getRule().enter();
+          ParseResult cached = m.getRule().lookup(scope, f.in);
+          if (cached != null) {
+            scope.exit();
+            complete(cached);
+          } else {
+            f.state = 1;
+            f.value = scope;
+            f.recalls = LeftRecursion.recalls();
+            push(m.getBase(), f.in);
+          }
+        } else {
+          AdaptiveMemo.Scope scope = (AdaptiveMemo.Scope)f.value;
+          if (LeftRecursion.recalls() == f.recalls) {
+            m.getRule().record(scope, f.in, _result);
+          }
+          scope.exit();
+          complete(_result);
+        }
+      } else {
+        complete(node.parse(f.in));
+      }
+    }
+
+    private void stepChoice(Frame f, List<Parser> choices) {
+      if (f.state > 0 && _result instanceof Success) {
+        complete(_result);
+        return;
+      }
+      int next = f.state;
+      if (next >= choices.size()) {
+        complete(new Failure());
+      } else if (next == choices.size() - 1) {
+        // The last alternative's result is the choice's result, whatever it is.
+        tailCall(choices.get(next), f.in);
+      } else {
+        f.state = next + 1;
+        push(choices.get(next), f.in);
+      }
+    }
+
+    private void stepSeq(Frame f, List<Parser> parsers) {
+      if (f.state == 0) {
+        f.values = new ArrayList(parsers.size());
+      } else {
+        if (_result instanceof Failure) {
+          complete(new Failure());
+          return;
+        }
+        Success s = (Success)_result;
+        f.values.add(s.getResult());
+        f.cur = s.getRest();
+      }
+      if (f.state == parsers.size()) {
+        complete(new Success(f.values, f.cur));
+      } else {
+        f.state++;
+        push(parsers.get(f.state - 1), f.cur);
+      }
+    }
+
+    private void stepKeep(Frame f, KeepParser k) {
+      List<Parser> parsers = k.getParsers();
+      if (f.state > 0) {
+        if (_result instanceof Failure) {
+          complete(new Failure());
+          return;
+        }
+        if (f.state - 1 == k.getKeep()) {
+          f.value = ((Success)_result).getResult();
+        }
+        f.cur = _result.getRest();
+      }
+      if (f.state == parsers.size()) {
+        complete(new Success(f.value, f.cur));
+      } else if (f.state == parsers.size() - 1 && f.state == k.getKeep()) {
+        tailCall(parsers.get(f.state), f.cur);
+      } else {
+        f.state++;
+        push(parsers.get(f.state - 1), f.cur);
+      }
+    }
+
+    private void stepSeqN(Frame f, SeqNParser s) {
+      List<Parser> parsers = s.getParsers();
+      if (f.state == 0) {
+        f.value = new Object[parsers.size()];
+      } else {
+        if (_result instanceof Failure) {
+          complete(new Failure());
+          return;
+        }
+        ((Object[])f.value)[f.state - 1] = ((Success)_result).getResult();
+        f.cur = _result.getRest();
+      }
+      if (f.state == parsers.size()) {
+        complete(new Success(s.combine((Object[])f.value), f.cur));
+      } else {
+        f.state++;
+        push(parsers.get(f.state - 1), f.cur);
+      }
+    }
+
+    private void stepMany(Frame f, ManyParser m) {
+      if (f.state == 0) {
+        f.values = new ArrayList();
+        f.state = 1;
+      } else if (_result != null && _result instanceof Success) {
+        Success s = (Success)_result;
+        f.values.add(s.getResult());
+        f.cur = s.getRest();
+      } else {
+        if (f.values.size() >= m.getAtLeast()) {
+          complete(new Success(f.values, f.cur));
+        } else {
+          complete(new Failure());
+        }
+        return;
+      }
+      push(m.getBase(), f.cur);
+    }
+
+    private void stepRepeat(Frame f, RepeatParser r) {
+      // The state is the number of the element whose result we're waiting for.
+      int count;
+      if (f.state == 0) {
+        f.value = r.start();
+        f.cur = f.in;
+        count = 0;
+      } else if (_result instanceof Success) {
+        f.value = r.add(f.value, ((Success)_result).getResult());
+        f.cur = _result.getRest();
+        count = f.state;
+      } else {
+        count = f.state - 1;
+        complete(count >= r.getMin() ? new Success(r.finish(f.value), f.cur) : new Failure());
+        return;
+      }
+      if (count == r.getMax()) {
+        complete(count >= r.getMin() ? new Success(r.finish(f.value), f.cur) : new Failure());
+        return;
+      }
+      f.state = count + 1;
+      push(count == 0 ? r.getFirst() : r.getNext(), f.cur);
+    }
+
+    private void stepRecover(Frame f, RecoveringParser r) {
+      // State 1 is waiting for a record at cur; state 2 is waiting for the sync parser at scan.
+      Recovered recovered;
+      if (f.state == 0) {
+        recovered = new Recovered();
+        f.value = recovered;
+      } else {
+        recovered = (Recovered)f.value;
+      }
+      if (f.state == 1) {
+        if (_result instanceof Success && !_result.getRest().equals(f.cur)) {
+          recovered.addRecord(((Success)_result).getResult());
+          f.cur = _result.getRest();
+        } else {
+          f.scan = f.cur;
+          f.state = 2;
+          _result = null;
+        }
+      }
+      if (f.state == 2) {
+        ParserInput resume = null;
+        if (_result instanceof Success && !_result.getRest().equals(f.scan)) {
+          resume = _result.getRest();
+        } else if (_result != null) {
+          f.scan = f.scan.rest();
+        }
+        if (resume == null && !f.scan.atEnd()) {
+          push(r.getSync(), f.scan);
+          return;
+        }
+        if (resume == null) {
+          resume = f.scan;
+        }
+        recovered.addError(new ParseError(LineIndex.offsetOf(f.cur), LineIndex.offsetOf(resume)));
+        f.cur = resume;
+      }
+      if (f.cur.atEnd()) {
+        complete(new Success(recovered, f.cur));
+      } else {
+        f.state = 1;
+        push(r.getRecord(), f.cur);
+      }
+    }
+
+    private void stepAnd(Frame f, Parser first, Parser second) {
+      if (f.state == 0) {
+        f.state = 1;
+        push(first, f.in);
+      } else if (f.state == 1) {
+        if (_result instanceof Failure) {
+          complete(new Failure());
+        } else if (f.node instanceof AndSecondParser) {
+          tailCall(second, _result.getRest());
+        } else {
+          f.state = 2;
+          f.value = ((Success)_result).getResult();
+          push(second, _result.getRest());
+        }
+      } else if (_result instanceof Failure) {
+        complete(new Failure());
+      } else if (f.node instanceof AndPairParser) {
+        Success s = (Success)_result;
+        complete(new Success(new Pair(f.value, s.getResult()), s.getRest()));
+      } else {
+        complete(new Success(f.value, _result.getRest()));
+      }
+    }
+  }
+}
@@ -31,6 +31,9 @@ public class Transform<In, Orig, Transformed> extends Parser<In, Transformed> {
     this._action = trans;
   }
 
+  Parser<In, Orig> getBase() { return _base; }
+  Action<Orig, Transformed> getAction() { return _action; }
+
   @Override
   public ParseResult<In, Transformed> parse(
       ParserInput<In> in) {
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.pcomb;
+
+/**
+ * An input which wraps another one, like the one InstrumentedParser uses to watch how a parse
+ * reads its input.
+ *
+ * Some parsers have fast paths for particular kinds of input: Binary's parsers slice a
+ * ByteParserInput without copying it, and the code point parsers decode straight from a
+ * CodePointParserInput. They use unwrap to find the input underneath any wrappers, and rewrap
+ * to put the wrappers back around the input that they leave behind, so wrapping an input
+ * never changes what a grammar does.
+ */
+interface WrappedInput<In> extends ParserInput<In> {
+  /**
+   * Get the input that this one wraps.
+   */
+  ParserInput<In> getWrapped();
+
+  /**
+   * Wrap another input the same way that this one is wrapped.
+   */
+  ParserInput<In> wrap(ParserInput<In> inner);
+
+  /**
+   * Get the input underneath any number of wrappers.
+   */
+  static <In> ParserInput<In> unwrap(ParserInput<In> in) {
+    while (in instanceof WrappedInput) {
+      in = ((WrappedInput<In>)in).getWrapped();
+    }
+    return in;
+  }
+
+  /**
+   * Wrap an unwrapped input in the same wrappers as another input.
+   * @param original an input, which may be wrapped.
+   * @param inner an input derived from original's unwrapped input.
+   */
+  static <In> ParserInput<In> rewrap(ParserInput<In> original, ParserInput<In> inner) {
+    if (original instanceof WrappedInput) {
+      WrappedInput<In> wrapper = (WrappedInput<In>)original;
+      return wrapper.wrap(rewrap(wrapper.getWrapped(), inner));
+    }
+    return inner;
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.tests.pcomb;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.goodmath.pcomb.Action;
+import org.goodmath.pcomb.CharSetParser;
+import org.goodmath.pcomb.Pair;
+import org.goodmath.pcomb.ParseResult;
+import org.goodmath.pcomb.Parser;
+import org.goodmath.pcomb.ParserInput;
+import org.goodmath.pcomb.RefParser;
+import org.goodmath.pcomb.StringParserInput;
+import org.goodmath.pcomb.Success;
+import org.junit.Test;
+
+/**
+ * Allocation regression tests for the core combinators.
+ *
+ * Each test parses a fixed corpus, and checks two things against a recorded baseline: the number
+ * of bytes allocated per input character, measured with the JVM's per-thread allocation counter,
+ * and the number of parser invocations per input character, counted by wrapping every node of
+ * the grammar.
+ *
+ * How much a parse allocates depends on the JIT: C2's escape analysis removes many short-lived
+ * results, but only once it has compiled the right methods, and not at all under C1 or the
+ * interpreter. So the measurements are made in a separate JVM with escape analysis turned off,
+ * and a fixed small heap so that object layouts don't vary; that way every allocation is counted,
+ * whatever the JIT does, and the numbers are deterministic enough to check in the normal test run.
+ *
+ * The byte baselines have a little headroom over the measured values, to absorb differences
+ * between JVMs. If a change deliberately makes parsing cheaper, lower the baseline to match.
+ */
+public class AllocationTest {
+  private static final int WARMUP_RUNS = 20;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  private static long _invocations = 0;
+
+  /**
+   * A parser which counts its invocations.
+   */
+  private static class Counted<In, Out> extends Parser<In, Out> {
+    private final Parser<In, Out> _base;
+
+    Counted(Parser<In, Out> base) {
+      this._base = base;
+    }
+
+    @Override
+    public ParseResult<In, Out> parse(ParserInput<In> in) {
+      _invocations++;
+      return _base.parse(in);
+    }
+  }
+
+  private static <In, Out> Parser<In, Out> c(Parser<In, Out> p) {
+    return new Counted<In, Out>(p);
+  }
+
+  private static String corpus(String unit, int length) {
+    StringBuilder b = new StringBuilder(length + unit.length());
+    while (b.length() < length) {
+      b.append(unit);
+    }
+    return b.toString();
+  }
+
+  /**
+   * Measure one case in a JVM with escape analysis turned off, and check its allocation and
+   * invocation rates.
+   * @param maxBytesPerChar the baseline for bytes allocated per input character.
+   * @param maxCallsPerChar the baseline for parser invocations per input character.
+   */
+  private void check(String name, double maxBytesPerChar, double maxCallsPerChar)
+      throws IOException, InterruptedException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    Process process = new ProcessBuilder(java, "-XX:-DoEscapeAnalysis", "-Xmx256m", "-XX:+UseCompressedOops",
+        "-cp", System.getProperty("java.class.path"), AllocationTest.class.getName(), name)
+        .redirectErrorStream(true).start();
+    BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+    StringBuilder output = new StringBuilder();
+    String line;
+    while ((line = out.readLine()) != null) {
+      output.append(line).append('\n');
+    }
+    assertEquals(name + ": " + output, 0, process.waitFor());
+    String[] fields = output.toString().trim().split(" ");
+    double bytesPerChar = Double.parseDouble(fields[0]);
+    double callsPerChar = Double.parseDouble(fields[1]);
+    assertTrue(name + ": " + bytesPerChar + " bytes allocated per character, baseline is " + maxBytesPerChar,
+        bytesPerChar <= maxBytesPerChar);
+    assertTrue(name + ": " + callsPerChar + " parser invocations per character, baseline is " + maxCallsPerChar,
+        callsPerChar <= maxCallsPerChar);
+  }
+
+  /**
+   * Measure a case, and print its bytes and invocations per character. This is what check runs
+   * in the forked JVM.
+   */
+  public static void main(String[] args) {
+    String name = args[0];
+    String text;
+    Parser<Character, ?> grammar = null;
+    if (name.equals("input")) {
+      text = corpus("the quick brown fox ", 100000);
+    } else if (name.equals("many")) {
+      grammar = c(c(Parser.match('a')).or(c(Parser.match('b'))).or(c(Parser.match('c'))).many(0));
+      text = corpus("abcabcabcc", 100000);
+    } else if (name.equals("seq")) {
+      Parser<Character, List<Character>> abc = c(Parser.seq(c(Parser.match('a')))
+          .andThen(c(Parser.match('b'))).andThen(c(Parser.match('c'))));
+      grammar = c(abc.many(0));
+      text = corpus("abc", 100000);
+    } else if (name.equals("choice")) {
+      Parser<Character, Character> choice = c(c(Parser.match('a')).or(c(Parser.match('b')))
+          .or(c(Parser.match('c'))).or(c(Parser.match('d'))));
+      grammar = c(choice.many(0));
+      text = corpus("dcba", 100000);
+    } else if (name.equals("transform")) {
+      Action<Character, Integer> digit = new Action<Character, Integer>() {
+        @Override
+        public Integer run(Character c) {
+          return c - '0';
+        }
+      };
+      Parser<Character, Integer> digits = c(c(new CharSetParser("0123456789")).action(digit));
+      grammar = c(digits.many(0));
+      text = corpus("0123456789", 100000);
+    } else if (name.equals("skipMany")) {
+      grammar = c(c(new CharSetParser("abc")).skipMany(0));
+      text = corpus("abcabcabcc", 100000);
+    } else if (name.equals("arithmetic")) {
+      grammar = arithmetic();
+      text = corpus("1 + 2 * (3 + 45 * 6) - 7 / (8 - 9) + ", 50000) + "0";
+    } else {
+      throw new IllegalArgumentException("Unknown case " + name);
+    }
+
+    for (int i = 0; i < WARMUP_RUNS; i++) {
+      run(grammar, text);
+    }
+    long thread = Thread.currentThread().getId();
+    _invocations = 0;
+    long before = THREADS.getThreadAllocatedBytes(thread);
+    run(grammar, text);
+    long allocated = THREADS.getThreadAllocatedBytes(thread) - before;
+    System.out.println((double)allocated / text.length() + " " + (double)_invocations / text.length());
+  }
+
+  /**
+   * Parse a text with a grammar, or if there's no grammar, just walk the input.
+   */
+  private static void run(Parser<Character, ?> grammar, String text) {
+    if (grammar == null) {
+      if (walk(text) != text.length()) {
+        throw new IllegalStateException("Walked the wrong number of characters");
+      }
+      return;
+    }
+    ParseResult<Character, ?> result = grammar.parse(new StringParserInput(text));
+    if (!(result instanceof Success) || !result.getRest().atEnd()) {
+      throw new IllegalStateException("The corpus didn't parse");
+    }
+  }
+
+  private static int walk(String text) {
+    int n = 0;
+    ParserInput<Character> in = new StringParserInput(text);
+    while (!in.atEnd()) {
+      if (in.first() != '\0') {
+        n++;
+      }
+      in = in.rest();
+    }
+    return n;
+  }
+
+  @Test
+  public void testStringParserInput() throws Exception {
+    check("input", 26, 0);
+  }
+
+  @Test
+  public void testManyParser() throws Exception {
+    check("many", 116, 2.11);
+  }
+
+  @Test
+  public void testSeqParser() throws Exception {
+    check("seq", 104, 1.34);
+  }
+
+  @Test
+  public void testChoiceParser() throws Exception {
+    check("choice", 123, 3.51);
+  }
+
+  @Test
+  public void testTransform() throws Exception {
+    check("transform", 89, 2.01);
+  }
+
+  @Test
+  public void testSkipMany() throws Exception {
+    // A repetition that discards its results only allocates the input and each element's
+    // result, and keeps none of them; a ManyParser also builds and grows a list.
+    check("skipMany", 51, 1.01);
+  }
+
+  @Test
+  public void testArithmetic() throws Exception {
+    check("arithmetic", 264, 2.44);
+  }
+
+  private static Parser<Character, Integer> arithmetic() {
+    final Action<List<Character>, Integer> digitsToInt = new Action<List<Character>, Integer>() {
+      @Override
+      public Integer run(List<Character> digits) {
+        int result = 0;
+        for (char d : digits) {
+          result = result * 10 + (d - '0');
+        }
+        return result;
+      }
+    };
+    final Action<Pair<Integer, List<Pair<Character, Integer>>>, Integer> fold =
+        new Action<Pair<Integer, List<Pair<Character, Integer>>>, Integer>() {
+      @Override
+      public Integer run(Pair<Integer, List<Pair<Character, Integer>>> val) {
+        int result = val.getFirst();
+        for (Pair<Character, Integer> term : val.getSecond()) {
+          switch (term.getFirst()) {
+          case '+': result += term.getSecond(); break;
+          case '-': result -= term.getSecond(); break;
+          case '*': result *= term.getSecond(); break;
+          default: result /= term.getSecond(); break;
+          }
+        }
+        return result;
+      }
+    };
+    Parser<Character, Integer> number = c(c(Parser.charSet("0123456789")).many(1).action(digitsToInt));
+    RefParser<Character, Integer> exprRef = Parser.ref();
+    Parser<Character, Integer> parens = c(c(Parser.matchWithSpaces('(')).andSecond(c(exprRef)).andFirst(c(Parser.matchWithSpaces(')'))));
+    Parser<Character, Integer> simple = c(number.or(parens));
+    Parser<Character, Integer> mult = c(simple.andPair(c(c(Parser.charSet("*/")).andPair(simple)).many(0)).action(fold));
+    Parser<Character, Integer> add = c(mult.andPair(c(c(Parser.charSet("+-")).andPair(mult)).many(0)).action(fold));
+    exprRef.setRef(add);
+    return add;
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.tests.pcomb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.goodmath.pcomb.Action;
+import org.goodmath.pcomb.Action3;
+import org.goodmath.pcomb.Disambiguator;
+import org.goodmath.pcomb.ForestNode;
+import org.goodmath.pcomb.GeneralizedParser;
+import org.goodmath.pcomb.Pair;
+import org.goodmath.pcomb.ParseForest;
+import org.goodmath.pcomb.Parser;
+import org.goodmath.pcomb.RefParser;
+import org.goodmath.pcomb.StringParserInput;
+import org.junit.Test;
+
+public class GeneralizedParserTest {
+  private static final Action3<String, Character, String, String> BINARY =
+      new Action3<String, Character, String, String>() {
+    @Override
+    public String run(String left, Character op, String right) {
+      return "(" + left + op + right + ")";
+    }
+  };
+
+  private static final Action<Character, String> TO_STRING = new Action<Character, String>() {
+    @Override
+    public String run(Character c) {
+      return c.toString();
+    }
+  };
+
+  @Test
+  public void testAmbiguousGrammar() {
+    // E -> E + E | n
+    RefParser<Character, String> e = Parser.ref();
+    e.setRef(Parser.seq3(e, Parser.match('+'), e, BINARY).or(Parser.match('n').action(TO_STRING)));
+    GeneralizedParser<Character, String> parser = new GeneralizedParser<Character, String>(e);
+
+    ParseForest<String> forest = parser.parse(new StringParserInput("n+n+n+n"));
+    assertFalse(forest.isEmpty());
+    // The number of binary trees with four leaves.
+    assertEquals(5, forest.countDerivations());
+    List<String> all = new ArrayList<String>();
+    for (String derivation : forest.derivations()) {
+      all.add(derivation);
+    }
+    assertEquals(5, all.size());
+    assertTrue(all.contains("(((n+n)+n)+n)"));
+    assertTrue(all.contains("(n+(n+(n+n)))"));
+    assertTrue(all.contains("((n+n)+(n+n))"));
+    assertTrue(forest.getRoot().isAmbiguous());
+
+    // Prefer the derivation that splits the furthest to the right, giving left associativity.
+    String leftAssociative = forest.disambiguate(new Disambiguator() {
+      @Override
+      public int choose(ForestNode node, List<List<ForestNode>> alternatives) {
+        int best = 0;
+        for (int i = 0; i < alternatives.size(); i++) {
+          List<ForestNode> children = alternatives.get(i);
+          if (children.get(children.size() - 1).getStart() > alternatives.get(best).get(alternatives.get(best).size() - 1).getStart()) {
+            best = i;
+          }
+        }
+        return best;
+      }
+    });
+    assertEquals("(((n+n)+n)+n)", leftAssociative);
+
+    assertTrue(parser.parse(new StringParserInput("n+n+")).isEmpty());
+    assertEquals(0, parser.parse(new StringParserInput("n++n")).countDerivations());
+  }
+
+  @Test
+  public void testLeftRecursion() {
+    // E -> E - T | T, T -> ( E ) | digit
+    RefParser<Character, String> e = Parser.ref();
+    Parser<Character, String> digit = Parser.charSet("0123456789").action(TO_STRING);
+    Parser<Character, String> term = Parser.match('(').andSecond(e).andFirst(Parser.match(')')).or(digit);
+    e.setRef(Parser.seq3(e, Parser.charSet("-"), term, BINARY).or(term));
+    GeneralizedParser<Character, String> parser = new GeneralizedParser<Character, String>(e);
+
+    ParseForest<String> forest = parser.parse(new StringParserInput("1 - 2-(3 -4)- 5"));
+    assertEquals(1, forest.countDerivations());
+    assertEquals("(((1-2)-(3-4))-5)", forest.first());
+  }
+
+  @Test
+  public void testLongRepetition() {
+    // Each element of a repetition is a step down a left-recursive spine in the forest, so
+    // building its value mustn't recurse once per element.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      text.append(i % 2 == 0 ? 'a' : 'b');
+    }
+    GeneralizedParser<Character, List<Character>> parser =
+        new GeneralizedParser<Character, List<Character>>(Parser.charSet("ab").many(0));
+    ParseForest<List<Character>> forest = parser.parse(new StringParserInput(text.toString()));
+    assertEquals(1, forest.countDerivations());
+    List<Character> list = forest.first();
+    assertEquals(20000, list.size());
+    assertEquals(Character.valueOf('a'), list.get(0));
+    assertEquals(Character.valueOf('b'), list.get(19999));
+    List<Character> chosen = forest.disambiguate(new Disambiguator() {
+      @Override
+      public int choose(ForestNode node, List<List<ForestNode>> alternatives) {
+        return 0;
+      }
+    });
+    assertEquals(list, chosen);
+  }
+
+  @Test
+  public void testRepetitionAndOptions() {
+    // G -> x? c? a* b+ $
+    Parser<Character, List<Character>> prefix = Parser.seq(Parser.match('x').opt('?')).andThen(Parser.match('c').opt('-'));
+    Parser<Character, List<Character>> body = Parser.match('a').many(0).andSecond(Parser.match('b').many(1));
+    Parser<Character, Pair<List<Character>, List<Character>>> grammar = prefix.andPair(body).andFirst(Parser.end('$'));
+    GeneralizedParser<Character, Pair<List<Character>, List<Character>>> parser =
+        new GeneralizedParser<Character, Pair<List<Character>, List<Character>>>(grammar);
+
+    ParseForest<Pair<List<Character>, List<Character>>> forest = parser.parse(new StringParserInput("caabbb"));
+    assertEquals(1, forest.countDerivations());
+    assertEquals(new Pair<List<Character>, List<Character>>(Arrays.asList('?', 'c'), Arrays.asList('b', 'b', 'b')),
+        forest.first());
+    assertEquals(new Pair<List<Character>, List<Character>>(Arrays.asList('x', '-'), Arrays.asList('b')),
+        parser.parse(new StringParserInput("xb")).first());
+    assertTrue(parser.parse(new StringParserInput("xcaa")).isEmpty());
+  }
+}
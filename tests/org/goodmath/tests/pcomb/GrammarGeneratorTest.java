@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Mark C. Chu-Carroll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goodmath.tests.pcomb;
+
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import java.util.function.ToIntFunction;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.goodmath.pcomb.Action;
+import org.goodmath.pcomb.Action2;
+import org.goodmath.pcomb.Action3;
+import org.goodmath.pcomb.AdaptiveMemo;
+import org.goodmath.pcomb.CharSetParser;
+import org.goodmath.pcomb.GrammarGenerator;
+import org.goodmath.pcomb.Lexeme;
+import org.goodmath.pcomb.ParseResult;
+import org.goodmath.pcomb.Parser;
+import org.goodmath.pcomb.RefParser;
+import org.goodmath.pcomb.StringParserInput;
+import org.goodmath.pcomb.Success;
+import org.junit.Test;
+
+public class GrammarGeneratorTest {
+  /**
+   * The actions of the test grammar, kept apart from the grammar so that the generated
+   * parser doesn't build the grammar when it's loaded.
+   */
+  public static class Actions {
+    public static final Action2<Integer, Character, Integer> DIGITS =
+        new Action2<Integer, Character, Integer>() {
+      @Override
+      public Integer run(Integer n, Character digit) {
+        return n * 10 + (digit - '0');
+      }
+    };
+
+    public static final Collector<Integer, ?, Integer> SUM = Collectors.summingInt(
+        new ToIntFunction<Integer>() {
+      @Override
+      public int applyAsInt(Integer i) {
+        return i;
+      }
+    });
+
+    public static final Action3<Integer, Character, Integer, Integer> BINARY =
+        new Action3<Integer, Character, Integer, Integer>() {
+      @Override
+      public Integer run(Integer left, Character op, Integer right) {
+        switch (op) {
+          case '+': return left + right;
+          case '-': return left - right;
+          case '*': return left * right;
+          default: return left / right;
+        }
+      }
+    };
+
+    public static final Character NO_OP = '?';
+  }
+
+  public static class Grammar {
+    public static final Lexeme<Character> LEX = Lexeme.whitespaceAndComments("#");
+    public static final Parser<Character, Integer> NUMBER =
+        LEX.token(new CharSetParser("0123456789").foldMany(1, 0, Actions.DIGITS));
+    public static final RefParser<Character, Integer> EXPR = Parser.ref();
+    public static final Parser<Character, Integer> LIST =
+        LEX.match('[').andSecond(EXPR.sepBy(LEX.match(','), 0, Actions.SUM)).andFirst(LEX.match(']'));
+    public static final AdaptiveMemo MEMO = AdaptiveMemo.fixed(Collections.singletonMap("term", true));
+    public static final Parser<Character, Integer> TERM =
+        NUMBER.or(LIST).or(LEX.match('(').andSecond(EXPR).andFirst(LEX.match(')'))).memo(MEMO, "term");
+    public static final Parser<Character, Integer> PRODUCT =
+        Parser.seq3(TERM, Parser.charSet("*/").opt(Actions.NO_OP), TERM, Actions.BINARY).or(TERM);
+    public static final Parser<Character, Integer> TOP;
+
+    static {
+      EXPR.setRef(Parser.seq3(PRODUCT, LEX.charSet("+-"), EXPR, Actions.BINARY).or(PRODUCT));
+      TOP = EXPR.andFirst(LEX.end(null));
+    }
+  }
+
+  @Test
+  public void testGeneratedParser() throws Exception {
+    String source = new GrammarGenerator(Grammar.TOP, Grammar.class, Actions.class)
+        .generate("gen.ExprParser", "Character", "Integer");
+    assertFalse(source.contains("reflect"));
+    assertTrue(source.contains("parse_EXPR"));
+    assertTrue(source.contains("GrammarGeneratorTest.Actions.BINARY"));
+    assertTrue(source.contains("Object[] memo0;"));
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assertNotNull("tests need a JDK", compiler);
+    File dir = Files.createTempDirectory("pcomb-gen").toFile();
+    File file = new GrammarGenerator(Grammar.TOP, Grammar.class, Actions.class)
+        .generate(dir, "gen.ExprParser", "Character", "Integer");
+    assertEquals(0, compiler.run(null, null, null, "-classpath", System.getProperty("java.class.path"),
+        "-d", dir.getPath(), file.getPath()));
+    URLClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() },
+        getClass().getClassLoader());
+    @SuppressWarnings("unchecked")
+    Parser<Character, Integer> generated =
+        (Parser<Character, Integer>)loader.loadClass("gen.ExprParser").getDeclaredConstructor().newInstance();
+
+    String[] inputs = { "1+2*(3+5*4)", " 7 - ( 2 )# comment\n", "12*3 + 4", "1 +", "(1", "8/4-1", "", "[1, 2*3, [4]] + 1", "[]", "[1,]" };
+    for (String input : inputs) {
+      ParseResult<Character, Integer> expected = Grammar.TOP.parse(new StringParserInput(input));
+      ParseResult<Character, Integer> actual = generated.parse(new StringParserInput(input));
+      assertEquals(input, expected instanceof Success, actual instanceof Success);
+      if (expected instanceof Success) {
+        assertEquals(input, ((Success<Character, Integer>)expected).getResult(),
+            ((Success<Character, Integer>)actual).getResult());
+      }
+    }
+    loader.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnreachableAction() {
+    Parser<Character, Integer> p = Parser.match('x').action(new Action<Character, Integer>() {
+      @Override
+      public Integer run(Character c) {
+        return 1;
+      }
+    });
+    new GrammarGenerator(p).generate("gen.Broken", "Character", "Integer");
+  }
+}
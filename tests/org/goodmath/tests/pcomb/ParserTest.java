@@ -17,18 +17,56 @@ package org.goodmath.tests.pcomb;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
 
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+
+import org.goodmath.pcomb.AdaptiveMemo;
+import org.goodmath.pcomb.CharSetParser;
+import org.goodmath.pcomb.ChoiceParser;
+import org.goodmath.pcomb.CodePointClass;
+import org.goodmath.pcomb.CodePointParserInput;
 import org.goodmath.pcomb.Failure;
+import org.goodmath.pcomb.GeneralizedParser;
+import org.goodmath.pcomb.GrammarOptimizer;
+import org.goodmath.pcomb.Lexeme;
+import org.goodmath.pcomb.LineIndex;
 import org.goodmath.pcomb.Pair;
+import org.goodmath.pcomb.ParseError;
+import org.goodmath.pcomb.ParseCache;
 import org.goodmath.pcomb.ParseResult;
 import org.goodmath.pcomb.Parser;
 import org.goodmath.pcomb.ParserInput;
+import org.goodmath.pcomb.PushParser;
+import org.goodmath.pcomb.Recovered;
 import org.goodmath.pcomb.Success;
 import org.goodmath.pcomb.Action;
+import org.goodmath.pcomb.Action2;
+import org.goodmath.pcomb.Action3;
+import org.goodmath.pcomb.Action5;
+import org.goodmath.pcomb.Binary;
+import org.goodmath.pcomb.ByteParserInput;
 import org.goodmath.pcomb.RefParser;
+import org.goodmath.pcomb.SegmentedParserInput;
 import org.goodmath.pcomb.StringParserInput;
 import org.junit.Test;
 
@@ -192,6 +230,984 @@ public class ParserTest {
   }
 
 
+  @Test
+  public void testStackSafeParensParser() {
+    Action<List<String>, String> listToString = new Action<List<String>, String>() {
+      @Override
+      public String run(List<String> in) {
+        return in.toString();
+      }
+    };
+    Action<Character, String> charToString = new Action<Character, String>() {
+      @Override
+      public String run(Character in) {
+        return in.toString();
+      }
+    };
+
+    Parser<Character, String> id = Parser.charSet("abcdefghijklmnopqrstuvwxyz").action(charToString);
+    RefParser<Character, String> ref = new RefParser<Character, String>();
+    Parser<Character, String> parens = Parser.matchWithSpaces('(').andSecond(ref.many(1).action(listToString)).andFirst(Parser.matchWithSpaces(')'));
+    Parser<Character, String> choice = parens.or(id);
+    ref.setRef(choice);
+
+    StringParserInput in = new StringParserInput("(((a (d e) (q)) ((a b c))))");
+    ParseResult<Character, String> result = choice.stackSafe().parse(in);
+    assertSuccessfulParseEquals(result, "[[[a, [d, e], [q]], [[a, b, c]]]]");
+    assertTrue(choice.stackSafe().parse(new StringParserInput("((a)")) instanceof Failure);
+  }
+
+  @Test
+  public void testStackSafeDeepNesting() {
+    int depth = 100000;
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      text.append('(');
+    }
+    text.append('a');
+    for (int i = 0; i < depth; i++) {
+      text.append(')');
+    }
+    RefParser<Character, Character> ref = Parser.ref();
+    Parser<Character, Character> parens = Parser.match('(').andSecond(ref).andFirst(Parser.match(')'));
+    Parser<Character, Character> choice = parens.or(Parser.match('a'));
+    ref.setRef(choice);
+    ParseResult<Character, Character> result = choice.stackSafe().parse(new StringParserInput(text.toString()));
+    assertSuccessfulParseEquals(result, 'a');
+    assertTrue(result.getRest().atEnd());
+  }
+
+  @Test
+  public void testGrammarOptimizer() {
+    Action<List<String>, String> listToString = new Action<List<String>, String>() {
+      @Override
+      public String run(List<String> in) {
+        return in.toString();
+      }
+    };
+    Action<Character, String> charToString = new Action<Character, String>() {
+      @Override
+      public String run(Character in) {
+        return in.toString();
+      }
+    };
+
+    Parser<Character, Character> letter = Parser.charSet("abcdefghijklm").or(Parser.charSet("nopqrstuvwxyz"))
+        .or(Parser.matchWithSpaces('_'));
+    Parser<Character, String> id = letter.action(charToString);
+    RefParser<Character, String> ref = new RefParser<Character, String>();
+    Parser<Character, String> parens = Parser.matchWithSpaces('(').andSecond(ref.many(1).action(listToString)).andFirst(Parser.matchWithSpaces(')'));
+    Parser<Character, String> choice = parens.or(id);
+    ref.setRef(choice);
+
+    GrammarOptimizer optimizer = new GrammarOptimizer();
+    Parser<Character, String> optimized = optimizer.run(choice);
+    assertTrue(optimizer.getNodesAfter() < optimizer.getNodesBefore());
+
+    String text = "(((a (d _) (q)) ((a b z))))";
+    assertSuccessfulParseEquals(optimized.parse(new StringParserInput(text)), "[[[a, [d, _], [q]], [[a, b, z]]]]");
+    assertSuccessfulParseEquals(optimized.stackSafe().parse(new StringParserInput(text)), "[[[a, [d, _], [q]], [[a, b, z]]]]");
+    assertTrue(optimized.parse(new StringParserInput("((a)")) instanceof Failure);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testOptimizerRejectsUnboundRef() {
+    RefParser<Character, Character> ref = Parser.ref();
+    GrammarOptimizer.optimize(Parser.match('(').andSecond(ref));
+  }
+
+  @Test
+  public void testSeqN() {
+    Parser<Character, Integer> digit = Parser.charSet("0123456789").action(new Action<Character, Integer>() {
+      @Override
+      public Integer run(Character c) {
+        return c - '0';
+      }
+    });
+    Parser<Character, String> range = Parser.seq5(Parser.matchWithSpaces('['), digit, Parser.matchWithSpaces(','), digit,
+        Parser.matchWithSpaces(']'),
+        new Action5<Character, Integer, Character, Integer, Character, String>() {
+          @Override
+          public String run(Character open, Integer low, Character comma, Integer high, Character close) {
+            return low + ".." + high;
+          }
+        });
+    assertSuccessfulParseEquals(range.parse(new StringParserInput("[ 3, 7 ]")), "3..7");
+    assertSuccessfulParseEquals(range.stackSafe().parse(new StringParserInput("[3,7]")), "3..7");
+    assertSuccessfulParseEquals(GrammarOptimizer.optimize(range).parse(new StringParserInput("[3 ,7]")), "3..7");
+    assertTrue(range.parse(new StringParserInput("[3 7]")) instanceof Failure);
+  }
+
+  @Test
+  public void testBinaryFrames() {
+    // frame := length:uint16 { kind:uint8 value:varint } count:int32le
+    Parser<Byte, String> body = Parser.seq2(Binary.uint8(), Binary.varint(), new Action2<Integer, Long, String>() {
+      @Override
+      public String run(Integer kind, Long value) {
+        return kind + ":" + value;
+      }
+    });
+    Parser<Byte, Pair<String, Integer>> frame =
+        Binary.lengthPrefixed(Binary.uint16(ByteOrder.BIG_ENDIAN), body).andPair(Binary.int32(ByteOrder.LITTLE_ENDIAN));
+
+    ByteBuffer buf = ByteBuffer.allocateDirect(16);
+    buf.put(new byte[] { 0, 3, 7, (byte)0xac, 0x02, (byte)0xfe, (byte)0xff, (byte)0xff, (byte)0xff });
+    buf.flip();
+    ParseResult<Byte, Pair<String, Integer>> result = frame.parse(new ByteParserInput(buf));
+    assertSuccessfulParseEquals(result, new Pair<String, Integer>("7:300", -2));
+    assertTrue(result.getRest().atEnd());
+    assertEquals(0, buf.position());
+
+    // The length prefix says the body is 2 bytes, but the varint needs 3.
+    ParserInput<Byte> truncated = new ByteParserInput(new byte[] { 0, 2, 7, (byte)0xac, 0x02, 0, 0, 0, 0 });
+    assertTrue(frame.parse(truncated) instanceof Failure);
+
+    // Ten bytes hold 64 bits, with only the low bit of the last one used.
+    byte[] max = new byte[] { -1, -1, -1, -1, -1, -1, -1, -1, -1, 1 };
+    assertSuccessfulParseEquals(Binary.varint().parse(new ByteParserInput(max)), -1L);
+    max[9] = 2;
+    assertTrue(Binary.varint().parse(new ByteParserInput(max)) instanceof Failure);
+    max[9] = (byte)0x81;
+    assertTrue(Binary.varint().parse(new ByteParserInput(max)) instanceof Failure);
+  }
+
+  @Test
+  public void testPushParser() {
+    // message := 0x7e length:uint8 body:varint
+    Parser<Byte, Long> message = Binary.matchByte(0x7e).andSecond(Binary.lengthPrefixed(Binary.uint8(), Binary.varint()));
+    PushParser<Long> push = new PushParser<Long>(message);
+    final List<Object> received = new ArrayList<Object>();
+    push.subscribe(new Flow.Subscriber<Long>() {
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(Long item) {
+        received.add(item);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        received.add(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+        received.add("done");
+      }
+    });
+    final int[] requested = new int[1];
+    push.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        requested[0] += n;
+      }
+
+      @Override
+      public void cancel() {
+      }
+    });
+    assertEquals(1, requested[0]);
+    push.onNext(ByteBuffer.wrap(new byte[] { 0x7e, 2, (byte)0xac }));
+    assertTrue(received.isEmpty());
+    push.onNext(ByteBuffer.wrap(new byte[] { 0x02, 0x7e, 1, 5, 0x7e }));
+    assertEquals(Arrays.asList((Object)300L, 5L), received);
+    push.onNext(ByteBuffer.wrap(new byte[] { 1, 0x7f }));
+    assertEquals(Arrays.asList((Object)300L, 5L, 127L), received);
+    push.onComplete();
+    assertEquals("done", received.get(3));
+    assertEquals(4, requested[0]);
+  }
+
+  @Test
+  public void testPushParserChunkBoundaries() {
+    // A message split in the middle of an alternative parses the same way as a whole one.
+    Parser<Byte, Byte> alternatives = Binary.matchByte(1).andSecond(Binary.matchByte(2)).or(Binary.matchByte(1));
+    List<Object> received = new ArrayList<Object>();
+    PushParser<Byte> push = new PushParser<Byte>(alternatives);
+    pushChunks(push, received, new byte[] { 1, 2 }, new byte[] { 1 });
+    assertEquals(Arrays.asList((Object)(byte)2, (byte)1, "done"), received);
+    received.clear();
+    push = new PushParser<Byte>(alternatives);
+    pushChunks(push, received, new byte[] { 1 }, new byte[] { 2, 1 });
+    assertEquals(Arrays.asList((Object)(byte)2, (byte)1, "done"), received);
+
+    // And so does one split in the middle of a repetition.
+    Parser<Byte, List<Byte>> repetition = Binary.matchByte(7).many(1).andFirst(Binary.matchByte(0).opt((byte)0));
+    received.clear();
+    PushParser<List<Byte>> pushList = new PushParser<List<Byte>>(repetition);
+    pushChunks(pushList, received, new byte[] { 7, 7 }, new byte[] { 7, 0, 7 });
+    assertEquals(Arrays.asList((Object)Arrays.asList((byte)7, (byte)7, (byte)7), Arrays.asList((byte)7), "done"),
+        received);
+  }
+
+  @Test
+  public void testPushParserBadRequest() {
+    PushParser<Byte> push = new PushParser<Byte>(Binary.matchByte(1));
+    final boolean[] cancelled = new boolean[1];
+    push.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+      }
+
+      @Override
+      public void cancel() {
+        cancelled[0] = true;
+      }
+    });
+    final List<Object> received = new ArrayList<Object>();
+    push.subscribe(new Flow.Subscriber<Byte>() {
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(0);
+      }
+
+      @Override
+      public void onNext(Byte item) {
+        received.add(item);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        received.add(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+        received.add("done");
+      }
+    });
+    assertEquals(1, received.size());
+    assertTrue(received.get(0) instanceof IllegalArgumentException);
+    assertTrue(cancelled[0]);
+
+    // A syntax error stops the upstream too.
+    PushParser<Byte> strict = new PushParser<Byte>(Binary.matchByte(1));
+    final boolean[] stopped = new boolean[1];
+    strict.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+      }
+
+      @Override
+      public void cancel() {
+        stopped[0] = true;
+      }
+    });
+    final List<Object> parsed = new ArrayList<Object>();
+    strict.subscribe(new Flow.Subscriber<Byte>() {
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(Byte item) {
+        parsed.add(item);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        parsed.add(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+        parsed.add("done");
+      }
+    });
+    strict.onNext(ByteBuffer.wrap(new byte[] { 1, 2 }));
+    assertEquals(2, parsed.size());
+    assertEquals(1, ((ParseException)parsed.get(1)).getErrorOffset());
+    assertTrue(stopped[0]);
+  }
+
+  /**
+   * Push chunks through a push parser, followed by the end of the input, and collect what
+   * comes out.
+   */
+  private static <Out> void pushChunks(PushParser<Out> push, final List<Object> received, byte[]... chunks) {
+    push.subscribe(new Flow.Subscriber<Out>() {
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(Out item) {
+        received.add(item);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        received.add(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+        received.add("done");
+      }
+    });
+    push.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+      }
+
+      @Override
+      public void cancel() {
+      }
+    });
+    for (byte[] chunk : chunks) {
+      push.onNext(ByteBuffer.wrap(chunk));
+    }
+    push.onComplete();
+  }
+
+  @Test
+  public void testLexeme() {
+    Action<List<String>, String> listToString = new Action<List<String>, String>() {
+      @Override
+      public String run(List<String> in) {
+        return in.toString();
+      }
+    };
+    Action<Character, String> charToString = new Action<Character, String>() {
+      @Override
+      public String run(Character in) {
+        return in.toString();
+      }
+    };
+
+    for (Lexeme<Character> lex : Arrays.asList(Lexeme.whitespaceAndComments("#"),
+        Lexeme.whitespaceAndComments("#").trailing())) {
+      Parser<Character, String> id = lex.charSet("abcdefghijklmnopqrstuvwxyz").action(charToString);
+      RefParser<Character, String> ref = new RefParser<Character, String>();
+      Parser<Character, String> parens = lex.match('(').andSecond(ref.many(1).action(listToString)).andFirst(lex.match(')'));
+      Parser<Character, String> choice = parens.or(id);
+      ref.setRef(choice);
+      Parser<Character, String> doc = lex.start(choice).andFirst(lex.end(' '));
+
+      StringParserInput in = new StringParserInput(" (((a # comment (x)\n (d e) (q)) ((a b c)))) # done");
+      assertSuccessfulParseEquals(doc.parse(in), "[[[a, [d, e], [q]], [[a, b, c]]]]");
+      assertSuccessfulParseEquals(doc.stackSafe().parse(in), "[[[a, [d, e], [q]], [[a, b, c]]]]");
+    }
+  }
+
+  @Test
+  public void testInstrumentation() throws Exception {
+    Parser<Character, List<Character>> letters = Parser.charSet("abc").many(1).instrument("test-letters");
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("org.goodmath.pcomb:type=Grammar,name=\"test-letters\"");
+    // Statistics start out off.
+    letters.parse(new StringParserInput("abc"));
+    assertEquals(0L, server.getAttribute(name, "Parses"));
+    server.setAttribute(name, new Attribute("Enabled", true));
+
+    assertSuccessfulParseEquals(letters.parse(new StringParserInput("ab c")), Arrays.asList('a', 'b', 'c'));
+    assertTrue(letters.parse(new StringParserInput("xyz")) instanceof Failure);
+
+    assertEquals(1L, server.getAttribute(name, "Successes"));
+    assertEquals(1L, server.getAttribute(name, "Failures"));
+    assertEquals(4L, server.getAttribute(name, "ElementsConsumed"));
+
+    // An input that doesn't track positions still parses; it just doesn't count what it consumed.
+    assertSuccessfulParseEquals(letters.parse(new ArrayInput<Character>(new Character[] { 'c', 'a', 'b' }, 0, (char)0)), Arrays.asList('c', 'a', 'b'));
+    assertEquals(4L, server.getAttribute(name, "ElementsConsumed"));
+
+    server.setAttribute(name, new Attribute("Enabled", false));
+    letters.parse(new StringParserInput("abc"));
+    assertEquals(3L, server.getAttribute(name, "Parses"));
+  }
+
+  @Test
+  public void testTracingKeepsFastPaths() {
+    // message := length:uint8 body:bytes
+    Parser<Byte, ByteBuffer> message = Binary.uint8().andSecond(Binary.bytes(2)).instrument("test-tracing");
+    Recording recording = new Recording();
+    recording.enable("org.goodmath.pcomb.Parse");
+    recording.start();
+    try {
+      byte[] data = { 2, 10, 20, 30 };
+      ParseResult<Byte, ByteBuffer> result = message.parse(new ByteParserInput(data));
+      assertTrue(result.getRest() instanceof ByteParserInput);
+      assertEquals(3, result.getRest().getPosition());
+      // The body is still a view of the input, rather than a copy.
+      ByteBuffer body = ((Success<Byte, ByteBuffer>)result).getResult();
+      data[1] = 11;
+      assertEquals(11, body.get(0));
+      ParseResult<Byte, Long> varint = Binary.varint().instrument("test-tracing")
+          .parse(new ByteParserInput(new byte[] { (byte)0xac, 2 }));
+      assertSuccessfulParseEquals(varint, 300L);
+      assertEquals(2, varint.getRest().getPosition());
+    } finally {
+      recording.close();
+    }
+  }
+
+  /**
+   * A minimal input, written against just the original ParserInput methods.
+   */
+  private static class ArrayInput<T> implements ParserInput<T> {
+    private final T[] _elements;
+    private final int _pos;
+    private final T _endValue;
+
+    ArrayInput(T[] elements, int pos, T endValue) {
+      this._elements = elements;
+      this._pos = pos;
+      this._endValue = endValue;
+    }
+
+    @Override
+    public T first() {
+      return _pos < _elements.length ? _elements[_pos] : _endValue;
+    }
+
+    @Override
+    public ParserInput<T> rest() {
+      return _pos < _elements.length ? new ArrayInput<T>(_elements, _pos + 1, _endValue) : this;
+    }
+
+    @Override
+    public boolean atEnd() {
+      return _pos >= _elements.length;
+    }
+  }
+
+
+  @Test
+  public void testParallelChoice() {
+    // An alternative which would read forever, if it weren't cancelled.
+    Parser<Character, String> endless = new Parser<Character, String>() {
+      @Override
+      public ParseResult<Character, String> parse(ParserInput<Character> in) {
+        while (true) {
+          in.first();
+        }
+      }
+    };
+    Parser<Character, String> word = Parser.charSet("abc").many(1).action(new Action<List<Character>, String>() {
+      @Override
+      public String run(List<Character> chars) {
+        return chars.toString();
+      }
+    });
+    List<Parser<Character, String>> choices = new ArrayList<Parser<Character, String>>();
+    choices.add(Parser.match('x').action(new Action<Character, String>() {
+      @Override
+      public String run(Character c) {
+        return "x";
+      }
+    }));
+    choices.add(word);
+    choices.add(endless);
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      Parser<Character, String> choice = new ChoiceParser<Character, String>(choices).parallel(executor);
+      ParseResult<Character, String> result = choice.parse(new StringParserInput("abcx"));
+      assertSuccessfulParseEquals(result, "[a, b, c]");
+      assertSuccessfulParseEquals(Parser.match('x').parse(result.getRest()), 'x');
+      assertSuccessfulParseEquals(choice.parse(new StringParserInput("x")), "x");
+
+      // Binary's parsers still slice the input without copying it inside a parallel choice.
+      List<Parser<Byte, ByteBuffer>> fields = new ArrayList<Parser<Byte, ByteBuffer>>();
+      fields.add(Binary.matchByte(1).andSecond(Binary.bytes(2)));
+      fields.add(Binary.matchByte(2).andSecond(Binary.bytes(1)));
+      byte[] data = { 2, 10, 20 };
+      ParseResult<Byte, ByteBuffer> field = new ChoiceParser<Byte, ByteBuffer>(fields).parallel(executor)
+          .parse(new ByteParserInput(data));
+      data[1] = 11;
+      assertEquals(11, ((Success<Byte, ByteBuffer>)field).getResult().get(0));
+      assertTrue(field.getRest() instanceof ByteParserInput);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testLineIndex() {
+    String text = "ab\ncd\r\n\nxyz";
+    LineIndex lines = new LineIndex(text);
+    assertEquals(4, lines.getLineCount());
+    assertEquals(1, lines.getLine(0));
+    assertEquals(2, lines.getColumn(1));
+    assertEquals(1, lines.getLine(2));
+    assertEquals(2, lines.getLine(3));
+    assertEquals(3, lines.getColumn(5));
+    assertEquals(3, lines.getLine(7));
+    assertEquals(4, lines.getLine(8));
+    assertEquals("line 4, column 4", lines.describe(text.length()));
+
+    Parser<Character, Integer> lastLetter =
+        Parser.charSet("abcdxyz\r\n").many(0).andSecond(Parser.<Character>position());
+    Success<Character, Integer> result =
+        (Success<Character, Integer>)lastLetter.parse(new StringParserInput(text));
+    assertEquals(text.length(), result.getResult().intValue());
+  }
+
+  @Test
+  public void testSegmentedInput() {
+    SegmentedParserInput in = new SegmentedParserInput(
+        "12", "", CharBuffer.wrap("3+4"), new StringBuilder("5"), "");
+    assertEquals(6, in.remaining());
+    Parser<Character, List<Character>> all = new CharSetParser("12345+").many(0);
+    Success<Character, List<Character>> result = (Success<Character, List<Character>>)all.parse(in);
+    assertEquals(Arrays.asList('1', '2', '3', '+', '4', '5'), result.getResult());
+    assertTrue(result.getRest().atEnd());
+    assertEquals(6, result.getRest().getPosition());
+    assertEquals(result.getRest(), in.seek(6));
+
+    SegmentedParserInput mid = in.seek(2);
+    assertEquals('3', mid.first().charValue());
+    assertEquals(in.rest().rest(), mid);
+    assertEquals(in.rest().rest().hashCode(), mid.hashCode());
+    assertEquals('5', in.seek(5).first().charValue());
+  }
+
+  @Test
+  public void testStreamingRepetition() {
+    Action2<Integer, Character, Integer> digit = new Action2<Integer, Character, Integer>() {
+      @Override
+      public Integer run(Integer n, Character c) {
+        return n * 10 + (c - '0');
+      }
+    };
+    Parser<Character, Integer> number = new CharSetParser("0123456789").foldMany(1, 0, digit);
+    Success<Character, Integer> n = (Success<Character, Integer>)number.parse(new StringParserInput("1234x"));
+    assertEquals(1234, n.getResult().intValue());
+    assertEquals('x', n.getRest().first().charValue());
+    assertTrue(number.parse(new StringParserInput("x")) instanceof Failure);
+
+    Parser<Character, Void> spaces = Parser.match(' ').skipMany(0);
+    Success<Character, Void> skipped = (Success<Character, Void>)spaces.parse(new StringParserInput("   !"));
+    assertNull(skipped.getResult());
+    assertEquals(3, skipped.getRest().getPosition());
+
+    Parser<Character, Integer> sum = number.sepBy(Parser.match(','), 1,
+        Collectors.summingInt(new ToIntFunction<Integer>() {
+          @Override
+          public int applyAsInt(Integer i) {
+            return i;
+          }
+        }));
+    Success<Character, Integer> total = (Success<Character, Integer>)sum.parse(new StringParserInput("1,22,300,"));
+    assertEquals(323, total.getResult().intValue());
+    // The trailing separator isn't consumed, since no element follows it.
+    assertEquals(8, total.getRest().getPosition());
+
+    Parser<Character, List<Integer>> statements = number.endBy(Parser.match(';'), 0, Collectors.<Integer>toList());
+    Success<Character, List<Integer>> stmts =
+        (Success<Character, List<Integer>>)statements.parse(new StringParserInput("1;2;3"));
+    assertEquals(Arrays.asList(1, 2), stmts.getResult());
+    assertEquals(4, stmts.getRest().getPosition());
+
+    Parser<Character, List<Character>> three = new CharSetParser("abc").count(3);
+    assertEquals(Arrays.asList('a', 'b', 'c'),
+        ((Success<Character, List<Character>>)three.parse(new StringParserInput("abca"))).getResult());
+    assertTrue(three.parse(new StringParserInput("ab")) instanceof Failure);
+    Parser<Character, Integer> twoDigits = new CharSetParser("0123456789").count(2, 0, digit);
+    assertEquals(12, ((Success<Character, Integer>)twoDigits.parse(new StringParserInput("123"))).getResult().intValue());
+
+    // The same repetitions on the trampoline, and after optimization.
+    for (Parser<Character, Integer> p : Arrays.asList(sum.stackSafe(), GrammarOptimizer.optimize(sum))) {
+      ParseResult<Character, Integer> r = p.parse(new StringParserInput("1,22,300,"));
+      assertEquals(323, ((Success<Character, Integer>)r).getResult().intValue());
+      assertEquals(8, r.getRest().getPosition());
+    }
+    assertEquals(12, ((Success<Character, Integer>)twoDigits.stackSafe().parse(
+        new StringParserInput("123"))).getResult().intValue());
+    assertTrue(three.stackSafe().parse(new StringParserInput("ab")) instanceof Failure);
+  }
+
+  @Test
+  public void testLeftRecursion() {
+    Action3<String, Character, String, String> binary = new Action3<String, Character, String, String>() {
+      @Override
+      public String run(String left, Character op, String right) {
+        return "(" + left + op + right + ")";
+      }
+    };
+    Action<Character, String> digit = new Action<Character, String>() {
+      @Override
+      public String run(Character c) {
+        return c.toString();
+      }
+    };
+    // expr := expr '-' term | term
+    // term := term '*' atom | atom
+    // atom := digit | '(' expr ')'
+    RefParser<Character, String> expr = Parser.leftRecursiveRef();
+    RefParser<Character, String> term = Parser.leftRecursiveRef();
+    Parser<Character, String> atom = new CharSetParser("0123456789").action(digit)
+        .or(Parser.match('(').andSecond(expr).andFirst(Parser.match(')')));
+    term.setRef(Parser.seq3(term, Parser.match('*'), atom, binary).or(atom));
+    expr.setRef(Parser.seq3(expr, Parser.match('-'), term, binary).or(term));
+    Parser<Character, String> top = expr.andFirst(Parser.<Character, Object>end(null));
+
+    // Indirect: value := sum | digit, sum := value '+' digit
+    RefParser<Character, String> value = Parser.leftRecursiveRef();
+    RefParser<Character, String> sum = Parser.ref();
+    Parser<Character, String> d = new CharSetParser("0123456789").action(digit);
+    sum.setRef(Parser.seq3(value, Parser.match('+'), d, binary));
+    value.setRef(sum.or(d));
+
+    List<Parser<Character, String>> variants =
+        Arrays.asList(top, top.stackSafe(), GrammarOptimizer.optimize(top));
+    for (Parser<Character, String> p : variants) {
+      ParseResult<Character, String> r = p.parse(new StringParserInput("1-2*3*4-(5-6)"));
+      assertEquals("((1-((2*3)*4))-(5-6))", ((Success<Character, String>)r).getResult());
+      assertTrue(p.parse(new StringParserInput("1-")) instanceof Failure);
+    }
+    Success<Character, String> indirect = (Success<Character, String>)value.parse(new StringParserInput("1+2+3"));
+    assertEquals("((1+2)+3)", indirect.getResult());
+    assertTrue(indirect.getRest().atEnd());
+
+    // A memoized rule inside the recursion mustn't keep what it parsed against a seed.
+    AdaptiveMemo policy = AdaptiveMemo.fixed(Collections.singletonMap("sum", true));
+    RefParser<Character, String> memoValue = Parser.leftRecursiveRef();
+    memoValue.setRef(Parser.seq3(memoValue, Parser.match('+'), d, binary).memo(policy, "sum").or(d));
+    for (Parser<Character, String> p : Arrays.asList(memoValue, memoValue.stackSafe())) {
+      for (int run = 0; run < 2; run++) {
+        Success<Character, String> memoized = (Success<Character, String>)p.parse(new StringParserInput("1+2+3"));
+        assertEquals("((1+2)+3)", memoized.getResult());
+        assertTrue(memoized.getRest().atEnd());
+      }
+    }
+
+    // A long chain grows the seed in a loop, instead of recursing for each term.
+    StringBuilder longChain = new StringBuilder("1");
+    for (int i = 0; i < 20000; i++) {
+      longChain.append("-1");
+    }
+    ParseResult<Character, String> r = top.parse(new StringParserInput(longChain.toString()));
+    assertTrue(r instanceof Success);
+    assertTrue(((Success<Character, String>)r).getResult().startsWith("((((1-1)-1)-1)-1)", 19996));
+  }
+
+  @Test
+  public void testAdaptiveMemo() {
+    // s := a 'x' | a 'y' | a, a := '(' s ')' | 'z'
+    // Every alternative of s re-parses a, so without memoization nested input takes
+    // exponential time.
+    final int[] calls = new int[1];
+    Parser<Character, Character> z = new Parser<Character, Character>() {
+      @Override
+      public ParseResult<Character, Character> parse(ParserInput<Character> in) {
+        calls[0]++;
+        return Parser.match('z').parse(in);
+      }
+    };
+    AdaptiveMemo policy = new AdaptiveMemo(64, 0.2, 0.05);
+    RefParser<Character, Character> s = Parser.ref();
+    Parser<Character, Character> a =
+        Parser.match('(').andSecond(s).andFirst(Parser.match(')')).or(z).memo(policy, "a");
+    Parser<Character, Character> top =
+        a.andFirst(Parser.match('x')).or(a.andFirst(Parser.match('y'))).or(a).memo(policy, "s");
+    s.setRef(top);
+
+    StringBuilder nested = new StringBuilder();
+    for (int i = 0; i < 12; i++) {
+      nested.append('(');
+    }
+    nested.append('z');
+    for (int i = 0; i < 12; i++) {
+      nested.append(")y");
+    }
+    for (int run = 0; run < 3; run++) {
+      assertTrue(top.parse(new StringParserInput(nested.toString())).getRest().atEnd());
+    }
+    Map<String, Boolean> decisions = policy.getDecisions();
+    assertEquals(Boolean.TRUE, decisions.get("a"));
+    calls[0] = 0;
+    assertTrue(top.parse(new StringParserInput(nested.toString())).getRest().atEnd());
+    assertEquals(1, calls[0]);
+
+    // Freezing the decisions gives the same behavior without any adapting.
+    AdaptiveMemo fixed = AdaptiveMemo.fixed(decisions);
+    assertTrue(fixed.isFrozen());
+    assertEquals(decisions, fixed.getDecisions());
+
+    // A rule that never re-runs on the same input is never memoized.
+    AdaptiveMemo linear = new AdaptiveMemo(64, 0.2, 0.05);
+    Parser<Character, List<Character>> letters = new CharSetParser("abc").memo(linear, "letter").many(0);
+    letters.parse(new StringParserInput(corpus(1000)));
+    assertEquals(Boolean.FALSE, linear.getDecisions().get("letter"));
+
+    // A parse with its own scope reuses results even where its top isn't memoized.
+    Parser<Character, Character> unmemoized = a.andFirst(Parser.match('x')).or(a.andFirst(Parser.match('y')));
+    calls[0] = 0;
+    assertSuccessfulParseEquals(policy.parse(unmemoized, new StringParserInput("zy")), 'z');
+    assertEquals(1, calls[0]);
+    calls[0] = 0;
+    assertSuccessfulParseEquals(unmemoized.parse(new StringParserInput("zy")), 'z');
+    assertEquals(2, calls[0]);
+
+    // Results don't outlast a parse, so a buffer that's reused between parses is read again.
+    Parser<Byte, Integer> u8 = AdaptiveMemo.fixed(Collections.singletonMap("u8", true)).memo("u8", Binary.uint8());
+    ByteBuffer reused = ByteBuffer.allocateDirect(1);
+    reused.put(0, (byte)1);
+    assertSuccessfulParseEquals(u8.parse(new ByteParserInput(reused)), 1);
+    reused.put(0, (byte)99);
+    assertSuccessfulParseEquals(u8.parse(new ByteParserInput(reused)), 99);
+
+    // Cached results are shared by everything in their scope, so they mustn't hold on to
+    // one invocation's input wrappers.
+    Parser<Character, Character> ab = Parser.match('a').andSecond(Parser.match('b'))
+        .memo(AdaptiveMemo.fixed(Collections.singletonMap("ab", true)), "ab");
+    List<Parser<Character, Character>> choices = new ArrayList<Parser<Character, Character>>();
+    choices.add(ab.andSecond(Parser.match('x')));
+    choices.add(ab.andSecond(Parser.match('y')));
+    String aby = "aby";
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      Parser<Character, Character> parallel = new ChoiceParser<Character, Character>(choices).parallel(executor);
+      for (int run = 0; run < 3; run++) {
+        assertSuccessfulParseEquals(parallel.parse(new StringParserInput(aby)), 'y');
+      }
+      assertSuccessfulParseEquals(new ChoiceParser<Character, Character>(choices).parse(new StringParserInput(aby)), 'y');
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static String corpus(int length) {
+    StringBuilder b = new StringBuilder();
+    while (b.length() < length) {
+      b.append("abc");
+    }
+    return b.toString();
+  }
+
+  @Test
+  public void testParseCache() {
+    final int[] parses = new int[1];
+    Parser<Character, List<Character>> letters = new CharSetParser("abc").many(0);
+    Parser<Character, List<Character>> counted = new Parser<Character, List<Character>>() {
+      @Override
+      public ParseResult<Character, List<Character>> parse(ParserInput<Character> in) {
+        parses[0]++;
+        return letters.parse(in);
+      }
+    };
+    final long[] clock = new long[1];
+    ParseCache cache = new ParseCache(2, 8, 10, TimeUnit.SECONDS) {
+      @Override
+      protected long now() {
+        return clock[0];
+      }
+    };
+
+    ParseResult<Character, List<Character>> first = cache.parse(counted, "abc");
+    // An equal string that isn't the same object still hits.
+    assertSame(first, cache.parse(counted, new String("abc")));
+    assertEquals(1, parses[0]);
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    // A different grammar is a different entry.
+    assertNotSame(first, cache.parse(letters, "abc"));
+
+    // The third entry evicts the least recently used one, so "abc" has to be parsed again.
+    cache.parse(counted, "cab");
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    cache.parse(counted, "abc");
+    assertEquals(3, parses[0]);
+    assertEquals(6, cache.getWeight());
+
+    // Inputs heavier than the whole cache aren't kept.
+    cache.parse(counted, "abcabcabc");
+    assertEquals(6, cache.getWeight());
+
+    // Entries expire.
+    clock[0] += TimeUnit.SECONDS.toNanos(11);
+    cache.parse(counted, "abc");
+    assertEquals(5, parses[0]);
+
+    Parser<Byte, Integer> byteParser = Binary.uint8();
+    byte[] data = { 7 };
+    ParseResult<Byte, Integer> r = cache.parse(byteParser, data);
+    data[0] = 8;
+    assertEquals(8, ((Success<Byte, Integer>)cache.parse(byteParser, data)).getResult().intValue());
+    assertSame(r, cache.parse(byteParser, new byte[] { 7 }));
+  }
+
+  @Test
+  public void testCodePoints() {
+    // U+1F600 and U+1D11E are outside of the BMP, so they're surrogate pairs in a String.
+    String text = "a\uD83D\uDE00\u00e9\uD834\uDD1Ez";
+    CodePointParserInput in = new CodePointParserInput(text);
+    assertEquals('a', in.codePoint());
+    ParserInput<Integer> second = in.rest();
+    assertEquals(1, second.getPosition());
+    assertEquals(0x1F600, second.first().intValue());
+    // Positions count code points; char offsets index the text.
+    assertEquals(2, second.rest().getPosition());
+    assertEquals(3, ((CodePointParserInput)second.rest()).getCharOffset());
+    assertEquals(0xE9, second.rest().first().intValue());
+    assertEquals(new CodePointParserInput(text, 3), second.rest());
+
+    CodePointClass emoji = CodePointClass.range(0x1F600, 0x1F64F);
+    CodePointClass letters = CodePointClass.range('a', 'z').union(CodePointClass.of("\u00e9\uD834\uDD1E"));
+    assertTrue(emoji.contains(0x1F600));
+    assertFalse(emoji.contains(0xD83D));
+    assertTrue(letters.contains('q'));
+    assertTrue(letters.contains(0x1D11E));
+    assertFalse(letters.contains('A'));
+    assertFalse(letters.complement().contains('q'));
+    assertTrue(letters.complement().contains('A'));
+    assertTrue(letters.complement().contains(0x1F600));
+    assertFalse(letters.complement().contains(0x1D11E));
+
+    Parser<Integer, List<Integer>> any = Parser.codePoint(letters.union(emoji)).many(0);
+    ParseResult<Integer, List<Integer>> all = any.parse(in);
+    assertEquals(Arrays.asList(0x61, 0x1F600, 0xE9, 0x1D11E, 0x7A), ((Success<Integer, List<Integer>>)all).getResult());
+    assertTrue(all.getRest().atEnd());
+    assertTrue(Parser.codePoint(letters).parse(second) instanceof Failure);
+
+    Parser<Integer, String> word = Parser.codePoints(letters, 1);
+    ParseResult<Integer, String> w = word.parse(new CodePointParserInput(CharBuffer.wrap("\u00e9t\u00e9 \uD83D\uDE00")));
+    assertEquals("\u00e9t\u00e9", ((Success<Integer, String>)w).getResult());
+    assertEquals(3, w.getRest().getPosition());
+    assertTrue(word.parse(w.getRest()) instanceof Failure);
+
+    // Reported offsets are chars into the text, so a LineIndex can describe them.
+    String astral = "\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00=1\nbad\nx=2\n";
+    LineIndex astralLines = new LineIndex(astral);
+    Parser<Integer, Integer> newline = Parser.match(Integer.valueOf('\n'));
+    Parser<Integer, String> entry = Parser.codePoints(letters.union(emoji), 1)
+        .andFirst(Parser.match(Integer.valueOf('='))).andFirst(Parser.codePoint(CodePointClass.range('0', '9')))
+        .andFirst(newline);
+    Parser<Integer, Recovered<String>> entries = entry.recoverMany(newline);
+    for (Parser<Integer, Recovered<String>> p : Arrays.asList(entries, entries.stackSafe())) {
+      Recovered<String> recovered = ((Success<Integer, Recovered<String>>)p.parse(new CodePointParserInput(astral))).getResult();
+      assertEquals(Arrays.asList("\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00", "x"), recovered.getRecords());
+      assertEquals(Arrays.asList(new ParseError(11, 15)), recovered.getErrors());
+      assertEquals("Parse error at line 2, column 1, resumed at line 3, column 1",
+          recovered.getErrors().get(0).describe(astralLines));
+    }
+    ParseResult<Integer, Integer> at = Parser.codePoints(emoji, 1).andSecond(Parser.<Integer>position())
+        .parse(new CodePointParserInput(astral));
+    assertEquals("line 1, column 9", astralLines.describe(((Success<Integer, Integer>)at).getResult()));
+
+    // A lone surrogate is just itself.
+    CodePointParserInput lone = new CodePointParserInput("\uD83Dx");
+    assertEquals(0xD83D, lone.codePoint());
+    assertEquals('x', lone.rest().first().intValue());
+    assertEquals(-1, new CodePointParserInput("").codePoint());
+    assertEquals(2, new CodePointParserInput(text, 3).getPosition());
+
+    // Generalized parsing indexes its chart by position, so it needs positions in code points.
+    GeneralizedParser<Integer, List<Integer>> general = new GeneralizedParser<Integer, List<Integer>>(
+        Parser.codePoint(CodePointClass.range(0, Character.MAX_CODE_POINT)).many(1));
+    assertEquals(Arrays.asList(0x61, 0x1F600, 0x62),
+        general.parse(new CodePointParserInput("a\uD83D\uDE00b")).first());
+    assertEquals(Arrays.asList(0x1F600), general.parse(new CodePointParserInput("\uD83D\uDE00")).first());
+  }
+
+  @Test
+  public void testCodePointsThroughWrappers() throws Exception {
+    CodePointClass letters = CodePointClass.range('a', 'z').union(CodePointClass.range(0x1F600, 0x1F64F));
+    Parser<Integer, String> word = Parser.codePoints(letters, 1);
+    String text = "ab\uD83D\uDE00c d";
+
+    // Traced by Flight Recorder, which wraps the input.
+    Recording recording = new Recording();
+    recording.enable("org.goodmath.pcomb.Parse");
+    recording.start();
+    try {
+      ParseResult<Integer, String> r = word.instrument("test-code-points").parse(new CodePointParserInput(text));
+      assertSuccessfulParseEquals(r, "ab\uD83D\uDE00c");
+      assertEquals(4, r.getRest().getPosition());
+    } finally {
+      recording.close();
+    }
+
+    // As an alternative of a parallel choice, which wraps the input too.
+    List<Parser<Integer, String>> choices = new ArrayList<Parser<Integer, String>>();
+    choices.add(Parser.codePoints(CodePointClass.of("0123456789"), 1));
+    choices.add(word.andFirst(Parser.codePoint(CodePointClass.of(" "))));
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      ParseResult<Integer, String> r = new ChoiceParser<Integer, String>(choices).parallel(executor)
+          .parse(new CodePointParserInput(text));
+      assertSuccessfulParseEquals(r, "ab\uD83D\uDE00c");
+      assertEquals(5, r.getRest().getPosition());
+      assertSuccessfulParseEquals(word.parse(r.getRest()), "d");
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // Any other input of code points is read one element at a time.
+    ParseResult<Integer, String> listed = word.parse(new ArrayInput<Integer>(new Integer[] { 0x61, 0x1F600, 0x20 }, 0, 0));
+    assertSuccessfulParseEquals(listed, "a\uD83D\uDE00");
+  }
+
+  @Test
+  public void testErrorRecovery() {
+    // A record is a line of the form name=digits.
+    Parser<Character, String> name = new CharSetParser("abcdefghijklmnopqrstuvwxyz").many(1, Collectors.<Character>toList())
+        .action(new Action<List<Character>, String>() {
+          @Override
+          public String run(List<Character> chars) {
+            StringBuilder b = new StringBuilder();
+            for (Character c : chars) {
+              b.append(c);
+            }
+            return b.toString();
+          }
+        });
+    Parser<Character, Integer> number = new CharSetParser("0123456789").foldMany(1, 0, new Action2<Integer, Character, Integer>() {
+      @Override
+      public Integer run(Integer acc, Character c) {
+        return acc * 10 + (c - '0');
+      }
+    });
+    Parser<Character, String> record = Parser.seq3(name, Parser.match('='), number,
+        new Action3<String, Character, Integer, String>() {
+          @Override
+          public String run(String n, Character eq, Integer v) {
+            return n + ":" + v;
+          }
+        }).andFirst(Parser.match('\n'));
+    Parser<Character, Recovered<String>> file = record.recoverMany(Parser.match('\n'));
+
+    String text = "a=1\nb=x2\n\nc=3\n=4\nd=5\ne=";
+    LineIndex lines = new LineIndex(text);
+    for (Parser<Character, Recovered<String>> p : Arrays.asList(file, file.stackSafe(), GrammarOptimizer.optimize(file))) {
+      ParseResult<Character, Recovered<String>> r = p.parse(new StringParserInput(text));
+      assertTrue(r.getRest().atEnd());
+      Recovered<String> recovered = ((Success<Character, Recovered<String>>)r).getResult();
+      assertEquals(Arrays.asList("a:1", "c:3", "d:5"), recovered.getRecords());
+      assertEquals(Arrays.asList(new ParseError(4, 9), new ParseError(9, 10), new ParseError(14, 17),
+          new ParseError(21, 23)), recovered.getErrors());
+      assertEquals("Parse error at line 2, column 1, resumed at line 3, column 1",
+          recovered.getErrors().get(0).describe(lines));
+    }
+
+    // A long file with a bad record every so often is parsed in one pass, without using the stack.
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      big.append(i % 100 == 0 ? "bad\n" : "k=" + i + "\n");
+    }
+    Recovered<String> bulk = ((Success<Character, Recovered<String>>)file.stackSafe()
+        .parse(new StringParserInput(big.toString()))).getResult();
+    assertEquals(19800, bulk.getRecords().size());
+    assertEquals(200, bulk.getErrors().size());
+    assertEquals("k:1", bulk.getRecords().get(0));
+
+    // An input without positions still makes progress; its errors just can't say where they are.
+    Parser<Character, Recovered<Character>> items =
+        Parser.match('a').andFirst(Parser.match(';')).recoverMany(Parser.match(';'));
+    for (Parser<Character, Recovered<Character>> p : Arrays.asList(items, items.stackSafe())) {
+      ParserInput<Character> listed = new ArrayInput<Character>(new Character[] { 'a', ';', 'b', ';', 'a', ';' }, 0, (char)0);
+      Recovered<Character> recovered = ((Success<Character, Recovered<Character>>)p.parse(listed)).getResult();
+      assertEquals(Arrays.asList('a', 'a'), recovered.getRecords());
+      assertEquals(Arrays.asList(new ParseError(-1, -1)), recovered.getErrors());
+    }
+  }
+
   @Test
   public void testArithmetic() {
     final Action<Pair<Character, Integer>, Integer> unary_to_int = new Action<Pair<Character, Integer>, Integer>() {